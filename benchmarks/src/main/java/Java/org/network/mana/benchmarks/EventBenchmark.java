@@ -0,0 +1,95 @@
+package Java.org.network.mana.benchmarks;
+
+import Java.org.network.mana.base_components.synapses.EventWheel;
+import Java.org.network.mana.base_components.synapses.HebSTDP;
+import Java.org.network.mana.base_components.synapses.STDP;
+import Java.org.network.mana.globals.Default_Parameters;
+import Java.org.network.mana.mana_components.MANAMatrix;
+import Java.org.network.mana.mana_components.MANA_Node;
+import Java.org.network.mana.mana_components.MANA_Unit;
+import Java.org.network.mana.utils.BufferedDoubleArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Synaptic event scheduling and delivery for the largest recurrent node. Each call corresponds to one time step in
+ * which a random fraction of the node's sources spike.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class EventBenchmark {
+
+    @Param({"200", "500", "1000"})
+    public int N;
+
+    /** Fraction of sources spiking on each step. */
+    @Param({"0.1"})
+    public double spkFrac;
+
+    private final double dt = Default_Parameters.dt;
+    private MANAMatrix mat;
+    private EventWheel wheel;
+    private STDP stdp;
+    private BufferedDoubleArray lastSpkTimes;
+    private double [] incCur;
+    private int [] spikers;
+    private double time;
+
+    @Setup
+    public void setup() throws IOException {
+        MANA_Unit unit = Networks.buildUnit(N);
+        unit.initialize();
+        MANA_Node node = Networks.largestRecurrentNode(unit);
+        mat = node.getSynMatrix();
+        wheel = new EventWheel(Default_Parameters.MAX_DELAY, dt);
+        stdp = new HebSTDP();
+        lastSpkTimes = node.targData.getLastSpkTimes();
+        incCur = new double[node.targData.getSize()];
+        spikers = Networks.randomSubset(node.srcData.getSize(), spkFrac, 7);
+        time = 0;
+    }
+
+    /**
+     * Schedules the events of every spiking source, then throws them away.
+     */
+    @Benchmark
+    public void addEvents(Blackhole bh) {
+        for (int src : spikers) {
+            mat.addEvents(src, time, dt, wheel);
+        }
+        bh.consume(wheel.size());
+        wheel.clear();
+    }
+
+    /**
+     * A steady state step: schedules events from the spiking sources and delivers (with STDP) everything arriving
+     * this step.
+     */
+    @Benchmark
+    public void addAndProcessEventsSTDP(Blackhole bh) {
+        for (int src : spikers) {
+            mat.addEvents(src, time, dt, wheel);
+        }
+        mat.processEventsSTDP(wheel, incCur, stdp, lastSpkTimes, time, dt);
+        bh.consume(incCur);
+        time += dt;
+    }
+
+}
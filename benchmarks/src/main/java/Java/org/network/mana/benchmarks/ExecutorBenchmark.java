@@ -0,0 +1,60 @@
+package Java.org.network.mana.benchmarks;
+
+import Java.org.network.mana.exec.mana.MANA_Executor;
+import Java.org.network.mana.mana_components.MANA_Unit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A full time step of a whole network (all nodes, sectors and inputs) under each execution mode. Structural
+ * plasticity is turned off so that every step does comparable work.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class ExecutorBenchmark {
+
+    @Param({"200", "500", "1000"})
+    public int N;
+
+    @Param({"THREAD_POOL", "PERSISTENT_WORKERS"})
+    public MANA_Executor.ExecutionMode mode;
+
+    private MANA_Executor exec;
+
+    @Setup
+    public void setup() throws IOException {
+        MANA_Unit unit = Networks.buildUnit(N);
+        exec = new MANA_Executor(400, mode);
+        exec.spOn = false;
+        exec.addUnit(unit, unit.getFullSize(), unit.getSize(), unit.getMaxDist() / 2, unit.getMaxDist());
+        unit.initialize();
+    }
+
+    @TearDown
+    public void tearDown() {
+        exec.shutdown();
+    }
+
+    @Benchmark
+    public void invoke() throws InterruptedException {
+        exec.invoke();
+    }
+
+}
@@ -0,0 +1,97 @@
+package Java.org.network.mana.benchmarks;
+
+import Java.org.network.mana.mana_components.MANA_Node;
+import Java.org.network.mana.mana_components.MANA_Unit;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Builds the networks the benchmarks run on. Inputs are Poisson spike trains written to a temporary file in the
+ * format {@link Java.org.network.mana.io.InputReader} expects, so every benchmark starts from a network built the same
+ * way as one built by RunMANA.
+ */
+public final class Networks {
+
+    public static final int DEF_NO_INPUTS = 40;
+    /** Mean firing rate of each input (Hz). */
+    public static final double DEF_INPUT_RATE = 10;
+    /** Length of the input spike trains (ms). */
+    public static final double DEF_INPUT_LENGTH = 600_000;
+
+    private Networks() {
+    }
+
+    /**
+     * Writes noInp Poisson spike trains with the given rate to a temporary file.
+     * @return the file
+     */
+    public static Path writePoissonInputs(int noInp, double rateHz, double lengthMs, long seed) throws IOException {
+        Path file = Files.createTempFile("mana-bench-inp", ".txt");
+        file.toFile().deleteOnExit();
+        Random rand = new Random(seed);
+        double meanISI = 1000 / rateHz;
+        try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(file))) {
+            pw.print(noInp);
+            for (int ii = 0; ii < noInp; ++ii) {
+                StringBuilder sb = new StringBuilder();
+                double t = -meanISI * Math.log(1 - rand.nextDouble());
+                while (t < lengthMs) {
+                    sb.append(' ').append(String.format(Locale.ROOT, "%.3f", t));
+                    t += -meanISI * Math.log(1 - rand.nextDouble());
+                }
+                pw.println(sb);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * @return a unit with N reservoir neurons driven by the default inputs. Like any other unit it must be
+     * initialized (after being added to an executor, if it is going to be) before use.
+     */
+    public static MANA_Unit buildUnit(int N) throws IOException {
+        Path inp = writePoissonInputs(DEF_NO_INPUTS, DEF_INPUT_RATE, DEF_INPUT_LENGTH, 42);
+        return MANA_Unit.MANABuilder(inp.toString(), N);
+    }
+
+    /**
+     * @return the node with the most synapses whose source is another reservoir sector.
+     */
+    public static MANA_Node largestRecurrentNode(MANA_Unit unit) {
+        MANA_Node best = null;
+        for (MANA_Node n : unit.nodes) {
+            if (!n.inputIsExternal && (best == null || n.getNNZ() > best.getNNZ())) {
+                best = n;
+            }
+        }
+        if (best == null) {
+            throw new IllegalStateException("Unit has no recurrent nodes.");
+        }
+        return best;
+    }
+
+    /**
+     * @return distinct indices in [0, n) chosen with probability p each, in ascending order. Never empty.
+     */
+    public static int[] randomSubset(int n, double p, long seed) {
+        Random rand = new Random(seed);
+        int [] tmp = new int[n];
+        int k = 0;
+        for (int ii = 0; ii < n; ++ii) {
+            if (rand.nextDouble() < p) {
+                tmp[k++] = ii;
+            }
+        }
+        if (k == 0) {
+            tmp[k++] = rand.nextInt(n);
+        }
+        return Arrays.copyOf(tmp, k);
+    }
+
+}
@@ -0,0 +1,112 @@
+package Java.org.network.mana.benchmarks;
+
+import Java.org.network.mana.base_components.neurons.LeakyIFwAdapt;
+import Java.org.network.mana.globals.Default_Parameters;
+import Java.org.network.mana.mana_components.MANANeurons;
+import Java.org.network.mana.utils.BoolArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One integration step of a group of leaky integrate and fire neurons, with either the scalar or vector update, and
+ * one full update of a group of MANA neurons, with or without fused (blocked) stages. The fused parameter only
+ * changes the full update.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class NeuronBenchmark {
+
+    @Param({"200", "1000", "10000"})
+    public int N;
+
+    @Param({"false", "true"})
+    public boolean vector;
+
+    @Param({"false", "true"})
+    public boolean fused;
+
+    private final double dt = Default_Parameters.dt;
+    private LeakyIFwAdapt neus;
+    private BoolArray spks;
+    private double [] drive;
+    private double time;
+
+    private MANANeurons manaNeus;
+    private BoolArray spkBuffer;
+    private double [] pfrDts;
+    private double [] excSums;
+    private double [] inhSums;
+
+    @Setup
+    public void setup() {
+        double [] coor = new double[N];
+        neus = new LeakyIFwAdapt(N, true, coor, coor, coor);
+        spks = new BoolArray(N, true);
+        drive = new double[N];
+        Random rand = new Random(3);
+        for (int ii = 0; ii < N; ++ii) {
+            drive[ii] = rand.nextDouble() * 4;
+        }
+        manaNeus = new MANANeurons(N, true, coor, coor, coor);
+        spkBuffer = new BoolArray(N, true);
+        pfrDts = new double[N];
+        excSums = new double[N];
+        inhSums = new double[N];
+        LeakyIFwAdapt.useVectorKernel = vector;
+        MANANeurons.fusedUpdateOn = fused;
+        time = 0;
+    }
+
+    @TearDown
+    public void tearDown() {
+        LeakyIFwAdapt.useVectorKernel = false;
+        MANANeurons.fusedUpdateOn = false;
+    }
+
+    @Benchmark
+    public void update(Blackhole bh) {
+        for (int ii = 0; ii < N; ++ii) {
+            neus.i_e[ii] += drive[ii];
+        }
+        spks.clear();
+        neus.update(dt, time, spks);
+        neus.lastSpkTime.pushBufferDeep();
+        bh.consume(spks);
+        time += dt;
+    }
+
+    @Benchmark
+    public void fullUpdate(Blackhole bh) {
+        double [] i_e = manaNeus.getIncExcCurrent();
+        for (int ii = 0; ii < N; ++ii) {
+            i_e[ii] += drive[ii];
+        }
+        manaNeus.performFullUpdate(spkBuffer, pfrDts, excSums, inhSums, time, dt);
+        // What a sector synchronize does with the neurons' buffers.
+        manaNeus.getSpikes().swapWith(spkBuffer);
+        spkBuffer.clear();
+        manaNeus.estFR.pushBufferShallow();
+        manaNeus.getLastSpkTimes().pushBuffer(manaNeus.getSpikes().getTrueIndices(), manaNeus.getSpikes().getNoTrue());
+        bh.consume(manaNeus.getSpikes());
+        time += dt;
+    }
+
+}
@@ -0,0 +1,82 @@
+package Java.org.network.mana.benchmarks;
+
+import Java.org.network.mana.base_components.sparse.InterleavedSparseAddOn;
+import Java.org.network.mana.base_components.sparse.InterleavedSparseMatrix;
+import Java.org.network.mana.base_components.synapses.HebSTDP;
+import Java.org.network.mana.base_components.synapses.MexHatSTDP;
+import Java.org.network.mana.base_components.synapses.STDP;
+import Java.org.network.mana.globals.Default_Parameters;
+import Java.org.network.mana.mana_components.MANAMatrix;
+import Java.org.network.mana.mana_components.MANA_Node;
+import Java.org.network.mana.mana_components.MANA_Unit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Post-synaptically triggered STDP over the incoming synapses of a random fraction of the largest recurrent node's
+ * targets, i.e. the work done for post-synaptic spikes in one time step.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class STDPBenchmark {
+
+    @Param({"200", "500", "1000"})
+    public int N;
+
+    @Param({"HEB", "MEX_HAT"})
+    public String rule;
+
+    /** Fraction of targets spiking on each step. */
+    @Param({"0.1"})
+    public double spkFrac;
+
+    private final double dt = Default_Parameters.dt;
+    private STDP stdp;
+    private InterleavedSparseMatrix wts;
+    private InterleavedSparseAddOn lastArrs;
+    private int [] spikers;
+    private double time;
+
+    @Setup
+    public void setup() throws IOException {
+        MANA_Unit unit = Networks.buildUnit(N);
+        unit.initialize();
+        MANA_Node node = Networks.largestRecurrentNode(unit);
+        MANAMatrix mat = node.getSynMatrix();
+        stdp = rule.equals("HEB") ? new HebSTDP() : new MexHatSTDP();
+        wts = mat.getWeightsTOrd();
+        lastArrs = mat.gettOrdLastArrivals();
+        // Spread the last arrival times over the STDP window preceding the first step
+        time = 200;
+        Random rand = new Random(11);
+        for (int ii = 0, n = wts.getNnz(); ii < n; ++ii) {
+            lastArrs.setValue(ii, time - rand.nextDouble() * 100, 0);
+        }
+        spikers = Networks.randomSubset(node.targData.getSize(), spkFrac, 13);
+    }
+
+    @Benchmark
+    public void postTriggered() {
+        for (int tar : spikers) {
+            stdp.postTriggered(wts, lastArrs, tar, time, dt);
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+package Java.org.network.mana.benchmarks;
+
+import Java.org.network.mana.base_components.sparse.InterleavedSparseMatrix;
+import Java.org.network.mana.mana_components.MANA_Unit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-step sweeps over the target ordered weight matrix of the largest recurrent node: scaling incoming weights
+ * (normalization), summing incoming weights and adding weight derivatives to weights.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class SparseMatrixBenchmark {
+
+    @Param({"200", "500", "1000"})
+    public int N;
+
+    private InterleavedSparseMatrix wts;
+    private double [] sums;
+    private double [] scales;
+
+    @Setup
+    public void setup() throws IOException {
+        MANA_Unit unit = Networks.buildUnit(N);
+        unit.initialize();
+        wts = Networks.largestRecurrentNode(unit).getWeightMatrix();
+        sums = new double[wts.getMajorDegrees().length];
+        scales = new double[sums.length];
+        for (int ii = 0; ii < scales.length; ++ii) {
+            // Alternate slightly up and down so weights stay bounded over many calls
+            scales[ii] = ii % 2 == 0 ? 1.0001 : 0.9999;
+        }
+    }
+
+    @Benchmark
+    public void scaleMajor() {
+        for (int ii = 0; ii < scales.length; ++ii) {
+            wts.scaleMajor(ii, scales[ii], 0);
+        }
+    }
+
+    @Benchmark
+    public void sumIncoming(Blackhole bh) {
+        wts.sumIncoming(sums, 0);
+        bh.consume(sums);
+    }
+
+    @Benchmark
+    public void addDw2W() {
+        wts.addDw2W();
+    }
+
+}
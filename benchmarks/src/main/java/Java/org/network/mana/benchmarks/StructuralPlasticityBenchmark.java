@@ -0,0 +1,61 @@
+package Java.org.network.mana.benchmarks;
+
+import Java.org.network.mana.enums.ConnectRule;
+import Java.org.network.mana.functions.StructuralPlasticity;
+import Java.org.network.mana.mana_components.MANA_Node;
+import Java.org.network.mana.mana_components.MANA_Unit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One round of pruning and growth for the largest recurrent node. Rounds are applied to the node in place one after
+ * the other, so after the first few (which prune the randomly initialized network heavily) the node settles into a
+ * steady state where about as many synapses are grown as are pruned.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class StructuralPlasticityBenchmark {
+
+    @Param({"200", "500", "1000"})
+    public int N;
+
+    private MANA_Unit unit;
+    private MANA_Node node;
+    private double lambda;
+    private double maxDist;
+    private double maxWt;
+
+    @Setup
+    public void setup() throws IOException {
+        unit = Networks.buildUnit(N);
+        unit.initialize();
+        node = Networks.largestRecurrentNode(unit);
+        maxDist = unit.getMaxDist();
+        lambda = maxDist / 2;
+        maxWt = node.getWeightMatrix().getMax(0);
+    }
+
+    @Benchmark
+    public Object pruneGrow() {
+        return StructuralPlasticity.pruneGrow(node, node.srcData, node.targData, unit.getSize(), unit.getFullSize(),
+                lambda, ConnectRule.getConProbBase(node.srcData.isExcitatory(), node.targData.isExcitatory()) / 2,
+                maxDist, 0, maxWt);
+    }
+
+}
@@ -0,0 +1,108 @@
+package Java.org.network.mana.base_components.neurons;
+
+import Java.org.network.mana.globals.Default_Parameters;
+import Java.org.network.mana.utils.BoolArray;
+import Java.org.network.mana.utils.DataWrapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The vector kernel has to leave neurons in exactly the state the scalar update does, including when a potential
+ * becomes NaN, after which neither updates any more potentials on that step.
+ */
+public class LIFVectorKernelTest {
+
+    private static final int N = 37; // not a multiple of any vector length
+
+    private final double dt = Default_Parameters.dt;
+    private LeakyIFwAdapt ref;
+    private LeakyIFwAdapt vec;
+    private final Random rand = new Random(11);
+
+    @BeforeEach
+    public void setUp() {
+        double [] coor = new double[N];
+        ref = new LeakyIFwAdapt(N, true, coor, coor, coor);
+        vec = new LeakyIFwAdapt(N, true, coor, coor, coor);
+        vec.tau_m = new DataWrapper(ref.tau_m.data().clone());
+        ref.noiseStd = 0;
+        vec.noiseStd = 0;
+    }
+
+    @AfterEach
+    public void tearDown() {
+        LeakyIFwAdapt.useVectorKernel = false;
+    }
+
+    /**
+     * Updates both groups with the same input currents, in the given blocks, and checks that they match.
+     * @return the spikes
+     */
+    private BoolArray step(double time, int ... blockEnds) {
+        for (int ii = 0; ii < N; ++ii) {
+            double ie = rand.nextDouble() * 4;
+            double ii_ = rand.nextDouble() * 2;
+            ref.i_e[ii] += ie;
+            vec.i_e[ii] += ie;
+            ref.i_i[ii] += ii_;
+            vec.i_i[ii] += ii_;
+        }
+        BoolArray refSpks = new BoolArray(N, true);
+        BoolArray vecSpks = new BoolArray(N, true);
+        LeakyIFwAdapt.useVectorKernel = false;
+        update(ref, time, refSpks, blockEnds);
+        LeakyIFwAdapt.useVectorKernel = true;
+        update(vec, time, vecSpks, blockEnds);
+        for (int ii = 0; ii < N; ++ii) {
+            assertEquals(refSpks.get(ii), vecSpks.get(ii), "spike of " + ii);
+            assertEquals(ref.v_m[ii], vec.v_m[ii], "v_m of " + ii);
+            assertEquals(ref.dv_m[ii], vec.dv_m[ii], "dv_m of " + ii);
+            assertEquals(ref.adapt[ii], vec.adapt[ii], "adapt of " + ii);
+            assertEquals(ref.i_e[ii], vec.i_e[ii], "i_e of " + ii);
+            assertEquals(ref.i_i[ii], vec.i_i[ii], "i_i of " + ii);
+        }
+        ref.lastSpkTime.pushBufferDeep();
+        vec.lastSpkTime.pushBufferDeep();
+        return vecSpks;
+    }
+
+    private void update(LeakyIFwAdapt neu, double time, BoolArray spks, int ... blockEnds) {
+        neu.prepareUpdate(rand);
+        int start = 0;
+        for (int end : blockEnds) {
+            neu.updateRange(dt, time, spks, start, end);
+            start = end;
+        }
+    }
+
+    @Test
+    public void matchesScalarUpdate() {
+        for (int tt = 0; tt < 2000; ++tt) {
+            step(tt * dt, N);
+        }
+    }
+
+    @Test
+    public void stopsUpdatingPotentialsAfterANaNLikeTheScalarUpdate() {
+        for (int tt = 0; tt < 100; ++tt) {
+            step(tt * dt, 11, N);
+        }
+        double [] before = ref.v_m.clone();
+        ref.i_e[5] = Double.NaN;
+        vec.i_e[5] = Double.NaN;
+        BoolArray spks = step(100 * dt, 11, N);
+        assertTrue(Double.isNaN(vec.v_m[5]));
+        for (int ii = 6; ii < N; ++ii) {
+            if (!spks.get(ii)) {
+                assertEquals(before[ii], vec.v_m[ii], "v_m of " + ii + " after the NaN");
+            }
+        }
+    }
+
+}
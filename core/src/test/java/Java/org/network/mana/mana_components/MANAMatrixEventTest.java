@@ -0,0 +1,143 @@
+package Java.org.network.mana.mana_components;
+
+import Java.org.network.mana.base_components.synapses.EventPool;
+import Java.org.network.mana.base_components.synapses.EventWheel;
+import Java.org.network.mana.base_components.synapses.HebSTDP;
+import Java.org.network.mana.globals.Default_Parameters;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Events which were invalidated (e.g. because the synapses were laid out again while they were in flight) have to
+ * be delivered to the same synapses as valid ones.
+ */
+public class MANAMatrixEventTest {
+
+    private final double dt = Default_Parameters.dt;
+    private MANA_Node node;
+    private MANAMatrix mat;
+    private EventWheel wheel;
+    private int src;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        MANA_Unit unit = MANA_Unit.MANABuilder(writeInputs(10, 5000).toString(), 50);
+        unit.initialize();
+        for (MANA_Node n : unit.nodes) {
+            if (!n.inputIsExternal && (node == null || n.getNNZ() > node.getNNZ())) {
+                node = n;
+            }
+        }
+        mat = node.getSynMatrix();
+        src = 0;
+        while (mat.getOutDataSOrd().getEndIndex(src) == mat.getOutDataSOrd().getStartIndex(src)) {
+            ++src;
+        }
+        wheel = new EventWheel(Default_Parameters.MAX_DELAY, dt);
+        mat.addEvents(src, 0, dt, wheel);
+    }
+
+    /**
+     * @return a copy of the events in the wheel, in the order they will be delivered
+     */
+    private EventPool scheduled(int lastStep) {
+        EventPool evts = new EventPool();
+        for (int s = 0; s <= lastStep; ++s) {
+            evts.addAll(wheel.getSlot(s), 0, wheel.getSlot(s).size());
+        }
+        return evts;
+    }
+
+    private int lastStep() {
+        return (int) (Default_Parameters.MAX_DELAY / dt);
+    }
+
+    /** Invalidates every event and scrambles its synapse index, so that it can only be found by looking it up. */
+    private void invalidate() {
+        wheel.invalidate();
+        for (int s = 0; s <= lastStep(); ++s) {
+            Arrays.fill(wheel.getSlot(s).tOrdInd, -1);
+        }
+    }
+
+    @Test
+    public void invalidatedEventsHitTheirOwnSynapses() {
+        EventPool expected = scheduled(lastStep());
+        assertTrue(expected.size() > 0);
+        invalidate();
+        double [] lastArrBefore = mat.gettOrdLastArrivals().values.clone();
+        double [] incCur = new double[node.width];
+        for (int s = 0; s <= lastStep(); ++s) {
+            mat.processEvents(wheel, incCur, s * dt, dt);
+        }
+
+        double [] wts = mat.getWeightsTOrd().getRawData();
+        double [] expCur = new double[node.width];
+        double [] expLastArr = lastArrBefore.clone();
+        for (int jj = 0; jj < expected.size(); ++jj) {
+            expCur[expected.tar[jj]] += wts[expected.tOrdInd[jj]] * expected.udf[jj];
+            expLastArr[expected.tOrdInd[jj] / mat.getWeightsTOrd().getInc()] = expected.arrStep[jj] * dt;
+        }
+        for (int ii = 0; ii < node.width; ++ii) {
+            assertEquals(expCur[ii], incCur[ii], 1E-12);
+        }
+        for (int ii = 0; ii < expLastArr.length; ++ii) {
+            assertEquals(expLastArr[ii], mat.gettOrdLastArrivals().values[ii], "Last arrival of synapse " + ii);
+        }
+    }
+
+    @Test
+    public void invalidatedEventsApplySTDPToTheirOwnSynapses() {
+        EventPool expected = scheduled(lastStep());
+        invalidate();
+        double [] wtsBefore = mat.getWeightsTOrd().getRawData().clone();
+        double [] incCur = new double[node.width];
+        for (int s = 0; s <= lastStep(); ++s) {
+            mat.processEventsSTDP(wheel, incCur, new HebSTDP(), node.targData.getLastSpkTimes(), s * dt, dt);
+        }
+
+        boolean [] hit = new boolean[wtsBefore.length];
+        for (int jj = 0; jj < expected.size(); ++jj) {
+            hit[expected.tOrdInd[jj]] = true;
+            assertEquals(expected.arrStep[jj] * dt,
+                    mat.gettOrdLastArrivals().values[expected.tOrdInd[jj] / mat.getWeightsTOrd().getInc()]);
+        }
+        double [] wts = mat.getWeightsTOrd().getRawData();
+        for (int ii = 0; ii < wts.length; ii += mat.getWeightsTOrd().getInc()) {
+            assertEquals(wtsBefore[ii], wts[ii], "Weight " + ii);
+            if (!hit[ii]) {
+                assertEquals(wtsBefore[ii + 1], wts[ii + 1], "dw of synapse " + ii + " which got no event");
+            }
+        }
+    }
+
+    private static Path writeInputs(int noInp, double lengthMs) throws IOException {
+        Path file = Files.createTempFile("mana-test-inp", ".txt");
+        file.toFile().deleteOnExit();
+        Random rand = new Random(42);
+        try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(file))) {
+            pw.print(noInp);
+            for (int ii = 0; ii < noInp; ++ii) {
+                StringBuilder sb = new StringBuilder();
+                for (double t = -100 * Math.log(1 - rand.nextDouble()); t < lengthMs;
+                     t += -100 * Math.log(1 - rand.nextDouble())) {
+                    sb.append(' ').append(String.format(Locale.ROOT, "%.3f", t));
+                }
+                pw.println(sb);
+            }
+        }
+        return file;
+    }
+
+}
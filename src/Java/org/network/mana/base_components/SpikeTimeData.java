@@ -1,110 +1,303 @@
 package Java.org.network.mana.base_components;
 
+import Java.org.network.mana.io.StateInput;
+import Java.org.network.mana.io.StateOutput;
 import Java.org.network.mana.utils.BoolArray;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Records spike times and can return them in formats which allow them to be reasonably written to files. Can be used
- * one of two ways
+ * Records the spikes of a group of neurons as a raster of (time step, neuron) pairs, one pair per spike, so that
+ * recording costs nothing on steps where nothing spikes and nothing is allocated per step. Pairs are appended to
+ * fixed size primitive chunks. Full chunks are either kept in memory or, once {@link #streamTo(Path)} has been
+ * called, appended to a file and dropped, so that memory use stays flat however long the simulation runs.
+ *
+ * The file is a flat sequence of little endian 32 bit integer pairs: { time step, neuron index } in order of time
+ * step (and neuron within a step). Time steps are counted from the first step recorded.
+ *
+ * Not thread safe; spikes are pushed by the sector's synchronization and read between time steps.
  */
 public class SpikeTimeData {
 
-	private static final int DEF_INIT_CAP = 1000;
-	private static final double DEF_LOAD_FAC = 0.8;
-	
-	private final double[][] spkTimes;
-	private final int[] ptrs;
-	public final double loadFac;
-	public final int initCap;
+	/** Number of spikes held by each chunk. */
+	public static int CHUNK_SIZE = 1 << 14;
+
 	public final int size;
-	private double lastFlush = 0;
-	public final List<BoolArray> buffer = new ArrayList<>();
-	
+
+	/** Number of steps recorded so far, i.e. the step the next call to {@link #pushSpks} records. */
+	private int noSteps = 0;
+
+	/** The chunk being filled, interleaved { step, neuron } pairs. */
+	private int [] chunk = new int[2 * CHUNK_SIZE];
+	private int chunkLen = 0;
+
+	/** Full chunks which have not been written to the file (or all of them if there is no file). */
+	private final List<int[]> fullChunks = new ArrayList<>();
+
+	/** The file spikes are streamed to, null if they are kept in memory. */
+	private FileChannel file;
+	/** Number of spikes in the file. */
+	private long noFiled = 0;
+
+	/** Number of spikes recorded when {@link #getNewSpikeTimes(double)} was last called. */
+	private long noTaken = 0;
+
+	private ByteBuffer ioBuff;
+
 	public SpikeTimeData(final int n) { // all default values...
 		size = n;
-		spkTimes = new double[n][];
-		ptrs = new int[n];
-		initCap = DEF_INIT_CAP;
-		loadFac = DEF_LOAD_FAC;
-		initSpkTimes();
 	}
 
 	/**
-	 * Record spikes directly to a 2D array instead of the buffer
-	 * @param spks
-	 * @param time
+	 * Records which neurons spiked on the next time step.
+	 * @param spks the spikes, with their indices up to date (see {@link BoolArray#getTrueIndices()})
 	 */
-	public void update(BoolArray spks, final double time) {
-		for(int ii=0; ii<size;++ii) {
-			if(spks.get(ii)) { // if the neuron spiked record the time at which it did...
-				if(ptrs[ii] > spkTimes[ii].length * loadFac) { // If we're running out of space to hold calcSpikeResponses times, make more...
-					double[] newTimes = new double[spkTimes[ii].length*2];
-					System.arraycopy(spkTimes[ii], 0, newTimes, 0, spkTimes[ii].length);
-					spkTimes[ii] = newTimes;
-				} 
-				// record the calcSpikeResponses time.
-				spkTimes[ii][ptrs[ii]] = time;
-				ptrs[ii]++;
+	public void pushSpks(BoolArray spks) {
+		int [] inds = spks.getTrueIndices();
+		for(int kk=0, n=spks.getNoTrue(); kk<n; ++kk) {
+			if (chunkLen == chunk.length) {
+				chunkFull();
 			}
-			
+			chunk[chunkLen++] = noSteps;
+			chunk[chunkLen++] = inds[kk];
+		}
+		noSteps++;
+	}
+
+	private void chunkFull() {
+		fullChunks.add(chunk);
+		chunk = new int[2 * CHUNK_SIZE];
+		chunkLen = 0;
+		if (file != null) {
+			writeFullChunks();
 		}
 	}
 
 	/**
-	 * Record spikes by pushing them to the buffer.
-	 * @param spks
+	 * Starts streaming spikes to a file: everything recorded so far (and after) which is not already in it is
+	 * appended to it. If the spikes were restored from a checkpoint (see {@link #readState(StateInput)}) which was
+	 * taken while streaming to the same file, it is cut back to where it was when the checkpoint was taken and
+	 * continued from there, otherwise it is overwritten.
+	 * @param path
 	 */
-	public void pushSpks(BoolArray spks) {
-		buffer.add(new BoolArray(spks));
+	public void streamTo(Path path) throws IOException {
+		closeFile();
+		file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		if (file.size() < noFiled * 2 * Integer.BYTES) {
+			long onFile = file.size() / (2 * Integer.BYTES);
+			closeFile();
+			throw new IllegalStateException(path + " holds " + onFile + " spikes, but " + noFiled
+					+ " were recorded in it when the checkpoint was taken.");
+		}
+		file.truncate(noFiled * 2 * Integer.BYTES);
+		file.position(file.size());
+		writeFullChunks();
+	}
+
+	private void writeFullChunks() {
+		try {
+			for (int[] full : fullChunks) {
+				writePairs(full, full.length / 2);
+			}
+			fullChunks.clear();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void writePairs(int[] pairs, int len) throws IOException {
+		if (ioBuff == null) {
+			ioBuff = ByteBuffer.allocateDirect(2 * CHUNK_SIZE * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		for (int off = 0; off < len; ) {
+			int n = Math.min(len - off, ioBuff.capacity() / (2 * Integer.BYTES));
+			ioBuff.clear();
+			ioBuff.asIntBuffer().put(pairs, 2 * off, 2 * n);
+			ioBuff.limit(2 * n * Integer.BYTES);
+			while (ioBuff.hasRemaining()) {
+				file.write(ioBuff);
+			}
+			off += n;
+		}
+		noFiled += len;
+	}
+
+	/**
+	 * Writes the partially filled chunk to the file (if there is one) so that the file holds every spike recorded.
+	 */
+	public void flush() throws IOException {
+		if (file == null) {
+			return;
+		}
+		writeFullChunks();
+		writePairs(chunk, chunkLen / 2);
+		chunkLen = 0;
+		file.force(false);
+	}
+
+	/**
+	 * Stops streaming, leaving the file with every spike recorded.
+	 */
+	public void close() throws IOException {
+		flush();
+		closeFile();
+	}
+
+	private void closeFile() throws IOException {
+		if (file != null) {
+			file.close();
+			file = null;
+		}
 	}
 
+	/**
+	 * @return the number of time steps recorded.
+	 */
+	public int getNoSteps() {
+		return noSteps;
+	}
 
+	/**
+	 * @return the number of spikes recorded.
+	 */
+	public long getNoSpikes() {
+		long n = noFiled + chunkLen / 2;
+		for (int[] full : fullChunks) {
+			n += full.length / 2;
+		}
+		return n;
+	}
+
+	/**
+	 * Returns the time of every spike recorded (including any in the file) of each neuron in ASDF format, presumably
+	 * to be written to a .mat or some other file. Spikes in the file are read back in two passes so that nothing but
+	 * the returned arrays is allocated.
+	 * @param dt simulation time step
+	 * @return the spike times of each neuron
+	 */
+	public double[][] getSpikeTimes(double dt) {
+		return getSpikeTimes(0, dt);
+	}
 
 	/**
-	 * Clears all recorded times and buffers, returns values as a list of array lists in ASDF format, presumably
-	 * to be written to a .mat or some other file.
-	 * @param time current simulation time
+	 * Returns the time of every spike recorded since the last call (or since recording started) in the same format
+	 * as {@link #getSpikeTimes(double)}, so that periodic output takes time and memory in proportion to the spikes
+	 * since the last output rather than to the length of the run.
 	 * @param dt simulation time step
-	 * @return a list of array lists in ASDF
+	 * @return the spike times of each neuron since the last call
 	 */
-	public List<ArrayList<Double>> flushToASDFFormat(double time, double dt) {
-		List<ArrayList<Double>> temp = new ArrayList<>();
-		for(int jj=0; jj<size; ++jj) {
-			temp.add(new ArrayList<>());
-		}
-		for(int ii=0, n = buffer.size(); ii < n; ++ii) {
-			for(int jj=0; jj<size; ++jj) {
-				if(buffer.get(ii).get(jj)) {
-					temp.get(jj).add(lastFlush + ii*dt);
+	public double[][] getNewSpikeTimes(double dt) {
+		long noSpikes = getNoSpikes();
+		double [][] times = getSpikeTimes(noTaken, dt);
+		noTaken = noSpikes;
+		return times;
+	}
+
+	private double[][] getSpikeTimes(long from, double dt) {
+		int [] counts = new int[size];
+		forEachSpike(from, (step, neu) -> counts[neu]++);
+		double [][] times = new double[size][];
+		for(int ii=0; ii<size; ++ii) {
+			times[ii] = new double[counts[ii]];
+			counts[ii] = 0;
+		}
+		forEachSpike(from, (step, neu) -> times[neu][counts[neu]++] = step * dt);
+		return times;
+	}
+
+	private interface SpikeVisitor {
+		void visit(int step, int neu);
+	}
+
+	/**
+	 * Visits every spike recorded in order, starting from the spike with the given number.
+	 * @throws IllegalStateException if some of those spikes are in a file which is not open, i.e. after restoring a
+	 * checkpoint without streaming to its file.
+	 */
+	private void forEachSpike(long from, SpikeVisitor visitor) {
+		if (from < noFiled) {
+			if (file == null) {
+				throw new IllegalStateException((noFiled - from) + " of the spikes asked for were streamed to a file "
+						+ "which is not open, they can only be read after streaming to it again.");
+			}
+			try {
+				if (ioBuff == null) {
+					ioBuff = ByteBuffer.allocateDirect(2 * CHUNK_SIZE * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
 				}
+				long end = noFiled * 2 * Integer.BYTES;
+				for (long pos = from * 2 * Integer.BYTES; pos < end; ) {
+					ioBuff.clear();
+					ioBuff.limit((int) Math.min(ioBuff.capacity(), end - pos));
+					while (ioBuff.hasRemaining()) {
+						int n = file.read(ioBuff, pos + ioBuff.position());
+						if (n < 0) {
+							throw new IOException("Spike file is shorter than expected.");
+						}
+					}
+					ioBuff.flip();
+					while (ioBuff.hasRemaining()) {
+						visitor.visit(ioBuff.getInt(), ioBuff.getInt());
+					}
+					pos += ioBuff.limit();
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		long first = noFiled; // the number of the first spike in each chunk
+		for (int[] full : fullChunks) {
+			for (int kk = (int) Math.max(0, Math.min(full.length, 2 * (from - first))); kk < full.length; kk += 2) {
+				visitor.visit(full[kk], full[kk + 1]);
 			}
+			first += full.length / 2;
+		}
+		for (int kk = (int) Math.max(0, Math.min(chunkLen, 2 * (from - first))); kk < chunkLen; kk += 2) {
+			visitor.visit(chunk[kk], chunk[kk + 1]);
 		}
-		lastFlush = time;
-		buffer.clear();
-		return temp;
 	}
 
-	private double[] listDouble2DoubleArr(List<Double> list) {
-		double [] ret = new double[list.size()];
-		for(int ii=0, n = list.size(); ii < n; ++ii) {
-			ret[ii] = list.get(ii).doubleValue();
+	/**
+	 * Writes the number of steps recorded, how many spikes are in the file and have been taken by
+	 * {@link #getNewSpikeTimes(double)}, and every spike which is not in the file.
+	 */
+	public void writeState(StateOutput out) throws IOException {
+		out.writeInt(noSteps);
+		out.writeLong(noFiled);
+		out.writeLong(noTaken);
+		out.writeInt(fullChunks.size());
+		for (int[] full : fullChunks) {
+			out.writeInts(full);
 		}
-		return ret;
+		out.writeInt(chunkLen);
+		out.writeInts(chunk, 0, chunkLen);
 	}
 
-	private final void initSpkTimes() {
-		for(int ii=0; ii<size; ++ii) {
-			ptrs[ii] = 0;
-			spkTimes[ii] = new double[initCap]; 
+	/**
+	 * Restores what was written by {@link #writeState(StateOutput)}. Spikes which were in the file when the
+	 * checkpoint was taken are only restored by streaming to the same file afterwards, see {@link #streamTo(Path)}.
+	 */
+	public void readState(StateInput in) throws IOException {
+		closeFile();
+		noSteps = in.readInt();
+		noFiled = in.readLong();
+		noTaken = in.readLong();
+		fullChunks.clear();
+		for(int ii=0, n=in.readInt(); ii<n; ++ii) {
+			fullChunks.add(in.readInts());
 		}
+		chunkLen = in.readInt();
+		if (chunkLen > chunk.length) {
+			chunk = new int[chunkLen];
+		}
+		in.readInts(chunk, 0, chunkLen);
 	}
-	
-	private final double[] getTrimmed(int ind) {
-		double[] trimmed = new double[ptrs[ind]];
-		System.arraycopy(spkTimes[ind], 0, trimmed, 0, ptrs[ind]);
-		return trimmed;
-	}
-	
+
 }
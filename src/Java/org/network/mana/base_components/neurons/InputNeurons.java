@@ -2,12 +2,19 @@ package Java.org.network.mana.base_components.neurons;
 
 import Java.org.network.mana.exec.Syncable;
 import Java.org.network.mana.globals.Default_Parameters;
+import Java.org.network.mana.io.ArraySpikeTrains;
 import Java.org.network.mana.io.InputReader;
+import Java.org.network.mana.io.SpikeTrainSource;
+import Java.org.network.mana.io.StateInput;
+import Java.org.network.mana.io.StateOutput;
 import Java.org.network.mana.utils.BoolArray;
 import Java.org.network.mana.utils.BufferedDoubleArray;
 import Java.org.network.mana.utils.Utils;
 import Java.org.network.mana.utils.Utils.ProbDistType;
 
+import java.io.IOException;
+import java.util.Arrays;
+
 public class InputNeurons implements Neuron, Syncable {
 
 	public static final double def_con_prob = 0.25;
@@ -18,9 +25,39 @@ public class InputNeurons implements Neuron, Syncable {
 	public final int id;
 	private String filename;
 
-	private double[][] spk_times;
+	private SpikeTrainSource trains;
+	/** Each neuron's cursor into its spike train: the index of its next spike... */
 	private int[] ptrs;
 	private double[] offsets;
+	/** ... and the time of that spike (offset included), so the train is only read once per spike. */
+	private double[] nextSpk;
+
+	/*
+	 * Input spikes are sparse, so rather than checking every input neuron every step, each neuron is put in a
+	 * (hashed) bucket wheel under the step on which it should next be checked: the step before its next spike could
+	 * first fall in the window in which it is counted, or the step after it spikes for the last time in its train
+	 * (when the train starts over). Each step only the neurons in that step's bucket are checked, which is done
+	 * exactly as if every neuron was checked every step. Neurons due more than a revolution ahead stay in their
+	 * bucket until their step comes round.
+	 */
+	private static final int WHEEL_SIZE = 1 << 10;
+	private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+	private int[][] wheel;
+	private int[] wheelLens;
+	private int[] spareBucket;
+	/** The step each neuron is next due to be checked on. */
+	private long[] due;
+	/** The step of the last update, after which the neurons due on the next step are in their bucket. */
+	private long lastStep;
+	/** If the wheel has to be rebuilt by checking every neuron, i.e. before the first update or after a restore. */
+	private boolean rescan = true;
+
+	/**
+	 * Indices of the neurons which spiked on the last step in ascending order, kept here rather than by spks since
+	 * spikes are set one at a time.
+	 */
+	private int[] spkInds;
+	private int noSpks = 0;
 	public BufferedDoubleArray lastSpkTime; // vanilla MANA does not use this for inputs, but someone might....
 	public BoolArray spks;
 	public double[][] xyzCoors;
@@ -65,11 +102,12 @@ public class InputNeurons implements Neuron, Syncable {
 															 double[] yCoors,
 															 double[] zCoors) {
 		InputNeurons inNeu = new InputNeurons();
-		inNeu.init(spk_times.length);
+		double[][] cpy = new double[spk_times.length][];
 		for(int ii=0, n = spk_times.length; ii<n; ++ii) {
-			inNeu.spk_times[ii] = new double[spk_times[ii].length];
-			System.arraycopy(spk_times[ii], 0, inNeu.spk_times[ii], 0, spk_times[ii].length);
+			cpy[ii] = new double[spk_times[ii].length];
+			System.arraycopy(spk_times[ii], 0, cpy[ii], 0, spk_times[ii].length);
 		}
+		inNeu.init(new ArraySpikeTrains(cpy));
 		inNeu.xyzCoors = new double[inNeu.getSize()][3];
 		for (int ii = 0; ii < inNeu.getSize(); ++ii) {
 			inNeu.xyzCoors[ii][0] = xCoors[ii];
@@ -83,28 +121,126 @@ public class InputNeurons implements Neuron, Syncable {
 		id = Default_Parameters.getID();
 	}
 
-	public void init(int noNeu) {
-		spk_times = new double[noNeu][];
+	public void init(SpikeTrainSource trains) {
+		int noNeu = trains.getNoNeurons();
+		this.trains = trains;
 		ptrs = new int[noNeu];
 		offsets = new double[noNeu];
+		nextSpk = new double[noNeu];
+		for(int ii=0; ii<noNeu; ++ii) {
+			advance(ii);
+		}
+		wheel = new int[WHEEL_SIZE][4];
+		wheelLens = new int[WHEEL_SIZE];
+		spareBucket = new int[4];
+		due = new long[noNeu];
+		spkInds = new int[noNeu];
+		rescan = true;
 		lastSpkTime = new BufferedDoubleArray(noNeu);
 		spks = new BoolArray(noNeu);
 		outDegree = new int[noNeu];
 	}
 
 	public void update(double dt, double time, BoolArray spkBuffer) {
-		double edge2 = time+1.5*dt;
-		for(int ii=0, n=spk_times.length; ii<n; ++ii) {
-			if(ptrs[ii] >= spk_times[ii].length) {
-				ptrs[ii] = 0;
-				offsets[ii] += time; // start the cycle over again
+		long step = Math.round(time / dt);
+		for(int kk=0; kk<noSpks; ++kk) {
+			spkBuffer.set(spkInds[kk], false);
+		}
+		noSpks = 0;
+		if (rescan || step != lastStep + 1) {
+			// Steps were skipped or repeated (or this is the first), check every neuron and start over
+			spkBuffer.clear();
+			Arrays.fill(wheelLens, 0);
+			for(int ii=0, n=ptrs.length; ii<n; ++ii) {
+				check(ii, step, dt, time, spkBuffer);
+			}
+			rescan = false;
+		} else {
+			int slot = (int) (step & WHEEL_MASK);
+			int [] bucket = wheel[slot];
+			int len = wheelLens[slot];
+			wheel[slot] = spareBucket;
+			wheelLens[slot] = 0;
+			for(int kk=0; kk<len; ++kk) {
+				int ii = bucket[kk];
+				if (due[ii] == step) {
+					check(ii, step, dt, time, spkBuffer);
+				} else {
+					schedule(ii, due[ii]); // a later revolution
+				}
 			}
-			double nextSpkTime = spk_times[ii][ptrs[ii]] + offsets[ii];
-			spkBuffer.set(ii, nextSpkTime >= time && nextSpkTime < edge2);
-			if(spkBuffer.get(ii)) {
-				++ptrs[ii];
-				lastSpkTime.setBuffer(ii, nextSpkTime);
+			spareBucket = bucket;
+			Arrays.sort(spkInds, 0, noSpks);
+		}
+		lastStep = step;
+	}
+
+	/**
+	 * Checks if neuron ii spikes on this step (if its next spike is in [time, time + 1.5*dt)), starting its train
+	 * over if it has reached the end of it, and schedules when it should be checked next.
+	 */
+	private void check(int ii, long step, double dt, double time, BoolArray spkBuffer) {
+		int len = trains.getNoSpikes(ii);
+		if (len == 0) {
+			return; // never spikes
+		}
+		if(ptrs[ii] >= len) {
+			ptrs[ii] = 0;
+			offsets[ii] += time; // start the cycle over again
+			advance(ii);
+		}
+		double nextSpkTime = nextSpk[ii];
+		double edge2 = time+1.5*dt;
+		if (nextSpkTime >= time && nextSpkTime < edge2) {
+			spkBuffer.set(ii, true);
+			spkInds[noSpks++] = ii;
+			++ptrs[ii];
+			lastSpkTime.setBuffer(ii, nextSpkTime);
+			if (ptrs[ii] >= len) {
+				schedule(ii, step + 1);
+				return;
 			}
+			advance(ii);
+			schedule(ii, nextCheck(nextSpk[ii], step, dt));
+		} else if (nextSpkTime >= edge2) {
+			schedule(ii, nextCheck(nextSpkTime, step, dt));
+		}
+		// Otherwise its next spike is already behind the window, so (as before) it never spikes again
+	}
+
+	/**
+	 * @return the step before the first on which a spike at the given time falls in the window (one step early so
+	 * that rounding can never make it late), but no earlier than the next.
+	 */
+	private static long nextCheck(double spkTime, long step, double dt) {
+		return Math.max(step + 1, (long) Math.floor(spkTime / dt - 1.5));
+	}
+
+	private void schedule(int ii, long step) {
+		due[ii] = step;
+		int slot = (int) (step & WHEEL_MASK);
+		if (wheelLens[slot] == wheel[slot].length) {
+			wheel[slot] = Arrays.copyOf(wheel[slot], 2 * wheel[slot].length);
+		}
+		wheel[slot][wheelLens[slot]++] = ii;
+	}
+
+	@Override
+	public int[] getSpikeIndices() {
+		return spkInds;
+	}
+
+	@Override
+	public int getSpikeCount() {
+		return noSpks;
+	}
+
+	/**
+	 * Reads the time of the spike the neuron's cursor points to, if there is one.
+	 */
+	private void advance(int ii) {
+		if (ptrs[ii] < trains.getNoSpikes(ii)) {
+			nextSpk[ii] = trains.getSpikeTime(ii, ptrs[ii]) + offsets[ii];
 		}
 	}
 
@@ -113,8 +249,8 @@ public class InputNeurons implements Neuron, Syncable {
 
 	}
 
-	public double[][] getSpk_times() {
-		return spk_times;
+	public SpikeTrainSource getSpikeTrains() {
+		return trains;
 	}
 
 	public BoolArray getSpikes() {
@@ -122,7 +258,7 @@ public class InputNeurons implements Neuron, Syncable {
 	}
 
 	public int getSize() {
-		return spk_times.length;
+		return ptrs.length;
 	}
 
 	@Override
@@ -154,4 +290,53 @@ public class InputNeurons implements Neuron, Syncable {
 		return  outDegree;
 	}
 
+	/**
+	 * Writes where each input neuron is in its spike train (and how often it has been replayed) along with its
+	 * location and spiking state. The spike trains themselves are not written, they are read from the input file
+	 * when the neurons are built, so along with its size the number of spikes in each train is written to check that
+	 * state is restored against the same input.
+	 */
+	public void writeState(StateOutput out) throws IOException {
+		int [] lens = new int[getSize()];
+		for(int ii=0; ii<lens.length; ++ii) {
+			lens[ii] = trains.getNoSpikes(ii);
+		}
+		out.writeInts(lens);
+		out.writeInts(ptrs);
+		out.writeDoubles(offsets);
+		lastSpkTime.writeState(out);
+		spks.writeState(out);
+		for (double[] xyz : xyzCoors) {
+			out.writeDoubles(xyz, 0, 3);
+		}
+		out.writeInts(outDegree);
+	}
+
+	public void readState(StateInput in) throws IOException {
+		int [] lens = in.readInts();
+		for(int ii=0; ii<lens.length; ++ii) {
+			if (lens.length != getSize() || lens[ii] != trains.getNoSpikes(ii)) {
+				throw new IllegalStateException("Checkpoint was not written by input neurons reading the same spike trains.");
+			}
+		}
+		in.readIntsInto(ptrs);
+		in.readDoublesInto(offsets);
+		for(int ii=0; ii<ptrs.length; ++ii) {
+			advance(ii);
+		}
+		lastSpkTime.readState(in);
+		spks.readState(in);
+		noSpks = 0;
+		for(int ii=0; ii<spks.length; ++ii) {
+			if (spks.get(ii)) {
+				spkInds[noSpks++] = ii;
+			}
+		}
+		rescan = true;
+		for (double[] xyz : xyzCoors) {
+			in.readDoubles(xyz, 0, 3);
+		}
+		in.readIntsInto(outDegree);
+	}
+
 }
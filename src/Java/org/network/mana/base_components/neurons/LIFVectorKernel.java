@@ -0,0 +1,252 @@
+package Java.org.network.mana.base_components.neurons;
+
+import Java.org.network.mana.globals.Default_Parameters;
+import Java.org.network.mana.io.StateInput;
+import Java.org.network.mana.io.StateOutput;
+import Java.org.network.mana.utils.BoolArray;
+import Java.org.network.mana.utils.DataWrapper;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A fused, SIMD version of {@link LeakyIFwAdapt#update(double, double, BoolArray)} built on the (incubating)
+ * Vector API. Membrane potential, synaptic current decay, adaptation and the threshold test are all done in a single
+ * pass over the neurons instead of ten separate passes. Every arithmetic operation is performed in the same order as
+ * the scalar version (no FMAs), so given the same noise the two produce identical results. Gaussian noise comes from
+ * a vectorized xorshift64* generator transformed by Box-Muller rather than from ThreadLocalRandom and so its values
+ * (but not its distribution) differ from the scalar path.
+ *
+ * Each instance holds the generator state for one group of neurons and is not thread safe.
+ */
+public class LIFVectorKernel {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Long> L_SPECIES = LongVector.SPECIES_PREFERRED;
+
+    /** Generator state, one independent stream per lane. */
+    private LongVector seeds;
+    /** Box-Muller produces normals in pairs, the second of each pair is kept here. */
+    private DoubleVector spare;
+    private boolean hasSpare = false;
+
+    public LIFVectorKernel() {
+        this(ThreadLocalRandom.current().nextLong());
+    }
+
+    public LIFVectorKernel(long seed) {
+        long [] s = new long[L_SPECIES.length()];
+        for (int ii = 0; ii < s.length; ++ii) {
+            seed += 0x9E3779B97F4A7C15L; // splitmix64 to seed the lanes
+            long z = seed;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            s[ii] = (z ^ (z >>> 31)) | 1;
+        }
+        seeds = LongVector.fromArray(L_SPECIES, s, 0);
+    }
+
+    /**
+     * @return a vector of uniform random numbers in (0, 1]
+     */
+    private DoubleVector nextUniform() {
+        LongVector x = seeds;
+        x = x.lanewise(VectorOperators.XOR, x.lanewise(VectorOperators.LSHR, 12));
+        x = x.lanewise(VectorOperators.XOR, x.lanewise(VectorOperators.LSHL, 25));
+        x = x.lanewise(VectorOperators.XOR, x.lanewise(VectorOperators.LSHR, 27));
+        seeds = x;
+        LongVector r = x.mul(0x2545F4914F6CDD1DL).lanewise(VectorOperators.LSHR, 11).add(1);
+        return ((DoubleVector) r.convert(VectorOperators.L2D, 0)).mul(0x1.0p-53);
+    }
+
+    /**
+     * @return a vector of independent standard normal random numbers.
+     */
+    public DoubleVector nextGaussian() {
+        if (hasSpare) {
+            hasSpare = false;
+            return spare;
+        }
+        DoubleVector u1 = nextUniform();
+        DoubleVector u2 = nextUniform();
+        DoubleVector r = u1.lanewise(VectorOperators.LOG).mul(-2.0).lanewise(VectorOperators.SQRT);
+        DoubleVector theta = u2.mul(2 * Math.PI);
+        spare = r.mul(theta.lanewise(VectorOperators.SIN));
+        hasSpare = true;
+        return r.mul(theta.lanewise(VectorOperators.COS));
+    }
+
+    /**
+     * Writes the generator state so that a restored kernel continues the same streams of random numbers.
+     */
+    public void writeState(StateOutput out) throws IOException {
+        out.writeLongs(seeds.toArray());
+        out.writeBoolean(hasSpare);
+        out.writeDoubles(hasSpare ? spare.toArray() : null);
+    }
+
+    /**
+     * Restores generator state written by {@link #writeState(StateOutput)}. If it was written on a machine with a
+     * different vector length the streams can't be continued and the kernel keeps its own seeds.
+     */
+    public void readState(StateInput in) throws IOException {
+        long [] s = in.readLongs();
+        boolean spr = in.readBoolean();
+        double [] sp = in.readDoubles();
+        if (s.length != L_SPECIES.length() || (spr && sp.length != SPECIES.length())) {
+            return;
+        }
+        seeds = LongVector.fromArray(L_SPECIES, s, 0);
+        hasSpare = spr;
+        spare = spr ? DoubleVector.fromArray(SPECIES, sp, 0) : null;
+    }
+
+    private static DoubleVector load(DataWrapper dw, int ii, VectorMask<Double> m) {
+        if (dw.isCompressed()) {
+            return DoubleVector.broadcast(SPECIES, dw.get(0));
+        }
+        return DoubleVector.fromArray(SPECIES, dw.data(), ii, m);
+    }
+
+    /**
+     * Same contract as {@link LeakyIFwAdapt#updateRange(double, double, BoolArray, int, int)}.
+     */
+    public void update(LeakyIFwAdapt neu, double dt, double time, BoolArray spkBuffer, int start, int end) {
+        final double [] lastSpk = neu.lastSpkTime.getData();
+        final double [] v_m = neu.v_m;
+        final double [] dv_m = neu.dv_m;
+        final double [] i_e = neu.i_e;
+        final double [] i_i = neu.i_i;
+        final double [] adapt = neu.adapt;
+        final double [] thresh = neu.thresh;
+        final double [] r_m_e = neu.r_m_e;
+        final double [] r_m_i = neu.r_m_i;
+        final double ref_p = neu.ref_p;
+        final DoubleVector zero = DoubleVector.zero(SPECIES);
+        final DoubleVector one = DoubleVector.broadcast(SPECIES, 1.0);
+
+        for (int ii = start; ii < end; ii += SPECIES.length()) {
+            VectorMask<Double> m = SPECIES.indexInRange(ii, end);
+            DoubleVector ls = DoubleVector.fromArray(SPECIES, lastSpk, ii, m);
+            DoubleVector ie = DoubleVector.fromArray(SPECIES, i_e, ii, m);
+            DoubleVector ii_ = DoubleVector.fromArray(SPECIES, i_i, ii, m);
+            DoubleVector ad = DoubleVector.fromArray(SPECIES, adapt, ii, m);
+            DoubleVector v = DoubleVector.fromArray(SPECIES, v_m, ii, m);
+
+            // sgn is 1 when not refractory, the sign bit of (lastSpk + ref_p) - time
+            DoubleVector refEnd = ls.add(ref_p);
+            VectorMask<Double> notRef = refEnd.sub(time).viewAsIntegralLanes()
+                    .compare(VectorOperators.LT, 0).cast(SPECIES);
+            DoubleVector sgn = zero.blend(one, notRef);
+
+            DoubleVector dv = DoubleVector.fromArray(SPECIES, dv_m, ii, m);
+            dv = dv.add(DoubleVector.fromArray(SPECIES, r_m_e, ii, m).mul(ie)
+                    .add(load(neu.i_bg, ii, m).mul(sgn))
+                    .add(nextGaussian().mul(neu.noiseStd)));
+            dv = dv.sub(DoubleVector.fromArray(SPECIES, r_m_i, ii, m).mul(ii_).mul(sgn));
+            dv = dv.sub(ad);
+            ie = ie.sub(ie.mul(dt).div(Default_Parameters.ExcTau));
+            ii_ = ii_.sub(ii_.mul(dt).div(Default_Parameters.InhTau));
+            dv = dv.add(load(neu.v_l, ii, m).sub(v));
+            dv = dv.mul(DoubleVector.broadcast(SPECIES, dt).div(load(neu.tau_m, ii, m)));
+            // As in the scalar version, once a NaN appears no more potentials are updated this step
+            if (!neu.nanV) {
+                DoubleVector nv = v.add(dv);
+                VectorMask<Double> isNaN = nv.test(VectorOperators.IS_NAN).and(m);
+                if (isNaN.anyTrue()) {
+                    nv = v.blend(nv, SPECIES.indexInRange(0, isNaN.firstTrue() + 1));
+                    System.out.println(" NaN v");
+                    neu.nanV = true;
+                }
+                v = nv;
+            }
+            ad = ad.sub(ad.mul(dt).div(load(neu.tau_w, ii, m)));
+
+            VectorMask<Double> spk = v.compare(VectorOperators.GE, DoubleVector.fromArray(SPECIES, thresh, ii, m))
+                    .and(refEnd.compare(VectorOperators.LT, time)).and(m);
+            v = v.blend(load(neu.v_reset, ii, m), spk);
+            ad = ad.blend(ad.add(neu.adaptJump), spk);
+
+            dv.intoArray(dv_m, ii, m);
+            ie.intoArray(i_e, ii, m);
+            ii_.intoArray(i_i, ii, m);
+            v.intoArray(v_m, ii, m);
+            ad.intoArray(adapt, ii, m);
+
+            // Lanes in ascending order, so the spikes are appended to the buffer's indices in order
+            for (long bits = spk.toLong(); bits != 0; bits &= bits - 1) {
+                int jj = ii + Long.numberOfTrailingZeros(bits);
+                spkBuffer.setTrue(jj);
+                neu.lastSpkTime.setBuffer(jj, time);
+                if (neu.lastSpkTime.getBuffered(jj) - neu.lastSpkTime.getData(jj) < ref_p) {
+                    throw new IllegalStateException("Refractory periods not being respected.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the kernel against the scalar reference: two identical groups of neurons (with noise turned off) are
+     * driven by the same random input currents through both paths and their states compared bit for bit.
+     */
+    public static void main(String [] args) {
+        int N = args.length > 0 ? Integer.parseInt(args[0]) : 1003;
+        int steps = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        double dt = Default_Parameters.dt;
+        double [] coor = new double[N];
+        LeakyIFwAdapt ref = new LeakyIFwAdapt(N, true, coor, coor, coor);
+        LeakyIFwAdapt vec = new LeakyIFwAdapt(N, true, coor, coor, coor);
+        vec.tau_m = new DataWrapper(ref.tau_m.data().clone());
+        ref.noiseStd = 0;
+        vec.noiseStd = 0;
+        BoolArray refSpks = new BoolArray(N, true);
+        BoolArray vecSpks = new BoolArray(N, true);
+        int noSpks = 0;
+        long refNanos = 0, vecNanos = 0;
+        for (int tt = 0; tt < steps; ++tt) {
+            double time = tt * dt;
+            for (int ii = 0; ii < N; ++ii) {
+                double ie = ThreadLocalRandom.current().nextDouble() * 4;
+                double ii_ = ThreadLocalRandom.current().nextDouble() * 2;
+                ref.i_e[ii] += ie;
+                vec.i_e[ii] += ie;
+                ref.i_i[ii] += ii_;
+                vec.i_i[ii] += ii_;
+            }
+            refSpks.clear();
+            vecSpks.clear();
+            LeakyIFwAdapt.useVectorKernel = false;
+            long t0 = System.nanoTime();
+            ref.update(dt, time, refSpks);
+            LeakyIFwAdapt.useVectorKernel = true;
+            long t1 = System.nanoTime();
+            vec.update(dt, time, vecSpks);
+            long t2 = System.nanoTime();
+            refNanos += t1 - t0;
+            vecNanos += t2 - t1;
+            for (int ii = 0; ii < N; ++ii) {
+                if (refSpks.get(ii) != vecSpks.get(ii)
+                        || Double.doubleToLongBits(ref.v_m[ii]) != Double.doubleToLongBits(vec.v_m[ii])
+                        || Double.doubleToLongBits(ref.dv_m[ii]) != Double.doubleToLongBits(vec.dv_m[ii])
+                        || Double.doubleToLongBits(ref.adapt[ii]) != Double.doubleToLongBits(vec.adapt[ii])
+                        || Double.doubleToLongBits(ref.i_e[ii]) != Double.doubleToLongBits(vec.i_e[ii])
+                        || Double.doubleToLongBits(ref.i_i[ii]) != Double.doubleToLongBits(vec.i_i[ii])) {
+                    System.out.println("Mismatch at step " + tt + " neuron " + ii);
+                    System.exit(1);
+                }
+                noSpks += refSpks.get(ii) ? 1 : 0;
+            }
+            ref.lastSpkTime.pushBufferDeep();
+            vec.lastSpkTime.pushBufferDeep();
+        }
+        LeakyIFwAdapt.useVectorKernel = false;
+        System.out.println("Identical over " + steps + " steps (" + noSpks + " spikes), lanes: " + SPECIES.length()
+                + " scalar: " + refNanos / 1E6 + " ms, vector: " + vecNanos / 1E6 + " ms");
+    }
+
+}
@@ -1,14 +1,18 @@
 package Java.org.network.mana.base_components.neurons;
 
 import Java.org.network.mana.globals.Default_Parameters;
+import Java.org.network.mana.io.StateInput;
+import Java.org.network.mana.io.StateOutput;
 import Java.org.network.mana.utils.BoolArray;
 import Java.org.network.mana.utils.BufferedDoubleArray;
 import Java.org.network.mana.utils.DataWrapper;
 import Java.org.network.mana.utils.Utils;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.random.RandomGenerator;
 
 public class LeakyIFwAdapt implements  Neuron{
 
@@ -36,10 +40,28 @@ public class LeakyIFwAdapt implements  Neuron{
     public double [] adapt;
     public double adaptJump;
 
+    /** Standard deviation of membrane noise. */
+    public double noiseStd = Default_Parameters.default_v_noise;
+
     public double [][] xyzCoors;
 
     public final int N;
 
+    /**
+     * If true neurons are updated with the fused SIMD kernel ({@link LIFVectorKernel}) instead of the
+     * scalar reference implementation (RunMANA -vectorLIF). Requires the jdk.incubator.vector module.
+     */
+    public static boolean useVectorKernel = false;
+
+    /** Created on first use so that the vector module is only needed when the kernel is selected. */
+    private LIFVectorKernel vecKernel;
+
+    /** Membrane noise for the current time step. */
+    private final double [] noise;
+
+    /** Whether a NaN potential has been encountered on the current time step (also set by the vector kernel). */
+    boolean nanV = false;
+
     public final boolean exc;
 
     public final int id;
@@ -58,11 +80,12 @@ public class LeakyIFwAdapt implements  Neuron{
 
         v_m = new double[N];
         dv_m = new double[N];
+        noise = new double[N];
         thresh = new double[N];
         outDegree = new int[N];
 
         lastSpkTime = new BufferedDoubleArray(N);
-        spks = new BoolArray(N);
+        spks = new BoolArray(N, true);
 
         i_e = new double[N];
         i_i = new double[N];
@@ -110,19 +133,59 @@ public class LeakyIFwAdapt implements  Neuron{
      */
     @Override
     public void update(double dt, double time, BoolArray spkBuffer) {
+        update(dt, time, spkBuffer, ThreadLocalRandom.current());
+    }
+
+    /**
+     * Same as {@link #update(double, double, BoolArray)} but with membrane noise drawn from the given generator.
+     */
+    public void update(double dt, double time, BoolArray spkBuffer, RandomGenerator rng) {
+        prepareUpdate(rng);
+        updateRange(dt, time, spkBuffer, 0, N);
+    }
+
+    /**
+     * Must be called once per time step before any calls to
+     * {@link #updateRange(double, double, BoolArray, int, int)}. Draws the membrane noise for every neuron (in order)
+     * so that the neurons can then be updated in any number of blocks with the same result.
+     * @param rng
+     */
+    public void prepareUpdate(RandomGenerator rng) {
+        nanV = false;
+        if (useVectorKernel) {
+            return; // The kernel makes its own noise
+        }
         for(int ii=0; ii<N; ++ii) {
+            noise[ii] = rng.nextGaussian() * noiseStd;
+        }
+    }
+
+    /**
+     * Updates neurons [start, end) see {@link #update(double, double, BoolArray)}. The spike buffer must be indexed
+     * and clear on [start, end); spiking neurons are appended to its true indices, so a step's blocks must be updated
+     * in ascending order.
+     */
+    public void updateRange(double dt, double time, BoolArray spkBuffer, int start, int end) {
+        if (useVectorKernel) {
+            if (vecKernel == null) {
+                vecKernel = new LIFVectorKernel();
+            }
+            vecKernel.update(this, dt, time, spkBuffer, start, end);
+            return;
+        }
+        for(int ii=start; ii<end; ++ii) {
             int sgn = Utils.checkSign((lastSpkTime.getData(ii)+ref_p)-time);
-            dv_m[ii] += r_m_e[ii] * i_e[ii] + i_bg.get(ii) * sgn + ThreadLocalRandom.current().nextGaussian() * 0.05;
+            dv_m[ii] += r_m_e[ii] * i_e[ii] + i_bg.get(ii) * sgn + noise[ii];
             dv_m[ii] -= r_m_i[ii] * i_i[ii] * sgn;
         }
-        for(int ii=0; ii<N; ++ii) {
+        for(int ii=start; ii<end; ++ii) {
             dv_m[ii] -= adapt[ii];
         }
-        for(int ii=0; ii<N; ++ii) {
+        for(int ii=start; ii<end; ++ii) {
             i_e[ii] -= dt * i_e[ii]/ Default_Parameters.ExcTau;
 
         }
-        for(int ii=0; ii<N; ++ii) {
+        for(int ii=start; ii<end; ++ii) {
             i_i[ii] -= dt * i_i[ii]/ Default_Parameters.InhTau;
         }
 //        if(!(r_m.isCompressed() && r_m.get(0)==1)){
@@ -130,29 +193,32 @@ public class LeakyIFwAdapt implements  Neuron{
 //                dv_m[ii] *= r_m.get(ii);
 //            }
 //        }
-        for(int ii=0; ii<N; ++ii) {
+        for(int ii=start; ii<end; ++ii) {
             dv_m[ii] += (v_l.get(ii)-v_m[ii]);
         }
-        for(int ii=0; ii<N; ++ii) {
+        for(int ii=start; ii<end; ++ii) {
             dv_m[ii] *= dt/tau_m.get(ii);
         }
 
-        for (int ii = 0; ii < N; ++ii) {
+        // Once a NaN appears no more potentials are updated this step
+        for (int ii = start; ii < end && !nanV; ++ii) {
             v_m[ii] += dv_m[ii];
             if (Double.isNaN(v_m[ii])) {
                 System.out.println(" NaN v");
-                break;
+                nanV = true;
             }
         }
-        for(int ii=0; ii<N; ++ii) {
+        for(int ii=start; ii<end; ++ii) {
             adapt[ii] -= dt*adapt[ii]/tau_w.get(ii);
         }
 
-        for(int ii=0; ii<N; ++ii) {
-            spkBuffer.set(ii, v_m[ii] >= thresh[ii] && (time > lastSpkTime.getData(ii)+ref_p));
+        for(int ii=start; ii<end; ++ii) {
+            if (v_m[ii] >= thresh[ii] && (time > lastSpkTime.getData(ii)+ref_p)) {
+                spkBuffer.setTrue(ii);
+            }
         }
 
-        for(int ii=0; ii<N; ++ii) {
+        for(int ii=start; ii<end; ++ii) {
             if(spkBuffer.get(ii)) {
                 lastSpkTime.setBuffer(ii, time);
                 if(lastSpkTime.getBuffered(ii) - lastSpkTime.getData(ii) < ref_p) {
@@ -168,6 +234,16 @@ public class LeakyIFwAdapt implements  Neuron{
         return spks;
     }
 
+    @Override
+    public int[] getSpikeIndices() {
+        return spks.getTrueIndices();
+    }
+
+    @Override
+    public int getSpikeCount() {
+        return spks.getNoTrue();
+    }
+
     public int getSize() {
         return  N;
     }
@@ -198,4 +274,75 @@ public class LeakyIFwAdapt implements  Neuron{
         return outDegree;
     }
 
+    /**
+     * Writes the state and parameters of every neuron, their locations and the state of the vector kernel's
+     * generator if it is in use.
+     */
+    public void writeState(StateOutput out) throws IOException {
+        out.writeInt(N);
+        out.writeDoubles(v_m);
+        out.writeDoubles(dv_m);
+        out.writeDoubles(thresh);
+        out.writeDoubles(i_e);
+        out.writeDoubles(i_i);
+        out.writeDoubles(adapt);
+        out.writeDoubles(r_m_e);
+        out.writeDoubles(r_m_i);
+        lastSpkTime.writeState(out);
+        spks.writeState(out);
+        tau_m.writeState(out);
+        v_l.writeState(out);
+        i_bg.writeState(out);
+        v_reset.writeState(out);
+        tau_w.writeState(out);
+        out.writeDouble(ref_p);
+        out.writeDouble(adaptJump);
+        out.writeDouble(noiseStd);
+        for (double[] xyz : xyzCoors) {
+            out.writeDoubles(xyz, 0, 3);
+        }
+        out.writeInts(outDegree);
+        out.writeBoolean(vecKernel != null);
+        if (vecKernel != null) {
+            vecKernel.writeState(out);
+        }
+    }
+
+    /**
+     * Restores what was written by {@link #writeState(StateOutput)} for the same number of neurons.
+     */
+    public void readState(StateInput in) throws IOException {
+        if (in.readInt() != N) {
+            throw new IllegalStateException("Checkpointed neuron group has a different size.");
+        }
+        in.readDoublesInto(v_m);
+        in.readDoublesInto(dv_m);
+        in.readDoublesInto(thresh);
+        in.readDoublesInto(i_e);
+        in.readDoublesInto(i_i);
+        in.readDoublesInto(adapt);
+        in.readDoublesInto(r_m_e);
+        in.readDoublesInto(r_m_i);
+        lastSpkTime.readState(in);
+        spks.readState(in);
+        tau_m.readState(in);
+        v_l.readState(in);
+        i_bg.readState(in);
+        v_reset.readState(in);
+        tau_w.readState(in);
+        ref_p = in.readDouble();
+        adaptJump = in.readDouble();
+        noiseStd = in.readDouble();
+        for (double[] xyz : xyzCoors) {
+            in.readDoubles(xyz, 0, 3);
+        }
+        in.readIntsInto(outDegree);
+        if (in.readBoolean()) {
+            if (vecKernel == null) {
+                vecKernel = new LIFVectorKernel();
+            }
+            vecKernel.readState(in);
+        }
+    }
+
 }
@@ -7,6 +7,17 @@ public interface Neuron {
 	int [] getOutDegree();
 
 	BoolArray getSpikes();
+
+	/**
+	 * @return the indices of the neurons which spiked on the last step (those true in {@link #getSpikes()}) in
+	 * ascending order, only the first {@link #getSpikeCount()} are valid.
+	 */
+	int [] getSpikeIndices();
+
+	/**
+	 * @return the number of neurons which spiked on the last step.
+	 */
+	int getSpikeCount();
 	
 	void update(double dt, double time, BoolArray spkBuffer);
 	
@@ -1,5 +1,11 @@
 package Java.org.network.mana.base_components.sparse;
 
+import Java.org.network.mana.io.StateInput;
+import Java.org.network.mana.io.StateOutput;
+
+import java.io.IOException;
+import java.util.Arrays;
+
 /**
  * A class that represents a sparse set of values but uses the coordinates of a true InterleavedSparseMatrix, allows
  * for some values to be not interleaved with the other in an InterleavedSparseMatrix without having to increase
@@ -19,7 +25,7 @@ public class InterleavedSparseAddOn {
     public InterleavedSparseAddOn(final InterleavedSparseMatrix coordMat, final int nilFac) {
         this.coordMat = coordMat;
         this.nilFac = nilFac;
-        values = new double[coordMat.getNnz() * nilFac];
+        values = new double[coordMat.getCapacity() * nilFac];
     }
 
     /**
@@ -34,11 +40,32 @@ public class InterleavedSparseAddOn {
     public void rearrange(int[] newCoos) {
         double [] newVals = new double[newCoos.length * nilFac];
         for(int ii=0, n=newCoos.length; ii<n; ++ii) {
-            if (newVals[ii] == -1) continue;
+            if (newCoos[ii] == -1) continue;
             for(int jj=0; jj<nilFac; ++jj) {
                 newVals[ii*nilFac + jj] = values[newCoos[ii]*nilFac + jj];
             }
         }
+        values = newVals;
+    }
+
+    /**
+     * Rearranges the values belonging to one major after it has been rebuilt by
+     * {@link InterleavedSparseMatrix#rebuildMajor}.
+     * @param start position of the major's first entry
+     * @param oldLen number of entries the major had before it was rebuilt
+     * @param origin the origins reported by rebuildMajor, entries with a negative origin are new
+     * @param newLen number of entries the major has now
+     * @param newVal the value new entries are given
+     */
+    public void rearrangeMajor(int start, int oldLen, int[] origin, int newLen, double newVal) {
+        double [] old = Arrays.copyOfRange(values, start * nilFac, (start + oldLen) * nilFac);
+        for(int ii=0; ii<newLen; ++ii) {
+            for(int jj=0; jj<nilFac; ++jj) {
+                values[(start + ii)*nilFac + jj] = origin[ii] < 0 ? newVal
+                        : old[(origin[ii] - start)*nilFac + jj];
+            }
+        }
+        Arrays.fill(values, (start + newLen) * nilFac, (start + Math.max(oldLen, newLen)) * nilFac, 0);
     }
 
     /**
@@ -98,4 +125,20 @@ public class InterleavedSparseAddOn {
 //    public int getOffsetMinor() {
 //        return coordMat.offsetMinor;
 //    }
+
+    public void writeState(StateOutput out) throws IOException {
+        out.writeDoubles(values);
+    }
+
+    /**
+     * Restores values written by {@link #writeState(StateOutput)}, after the coordinate matrix has been restored.
+     */
+    public void readState(StateInput in) throws IOException {
+        double [] vals = in.readDoubles();
+        if (vals == null || vals.length != coordMat.getCapacity() * nilFac) {
+            throw new IllegalStateException("Checkpointed values do not fit the restored matrix.");
+        }
+        values = vals;
+    }
+
 }
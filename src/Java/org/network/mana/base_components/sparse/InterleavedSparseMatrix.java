@@ -1,9 +1,15 @@
 package Java.org.network.mana.base_components.sparse;
 
 import Java.org.network.mana.enums.Ordering;
+import Java.org.network.mana.enums.Precision;
+import Java.org.network.mana.io.StateInput;
+import Java.org.network.mana.io.StateOutput;
 import Java.org.network.mana.utils.Utils;
 
+import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -12,19 +18,50 @@ import java.util.List;
  * which send/receive signals over them. Values can be interleaved in target-major ordering, but also allows for the
  * storage of different values in source major fashion, since optimal data continuity for different synapse operations is
  * different.
+ *
+ * Each major's values occupy [ptrs[i], ends[i]) and are followed by free slack up to ptrs[i+1], so that entries can be
+ * added to (or removed from) a major in place, see {@link #rebuildMajor}. Slack values are always 0. When a major
+ * runs out of room the whole matrix is laid out again with {@link #relayout(int[])}.
+ *
+ * Values can be stored in single precision (see {@link #toPrecision(Precision)}), in which case they are only
+ * accessible through {@link #getRawFloatData()} and methods which read, copy or lay out values; the arithmetic
+ * methods (sums, scaling, adding dw to w...) and {@link #getRawData()} require double precision. The same goes for
+ * values stored off the Java heap (see {@link #toOffHeap(Precision, Path)}), which are only accessible through
+ * {@link #valueAt(int)}, {@link #setValueAt(int, double)} and {@link #getOffHeapValues()}. Minor indices and
+ * pointers are always on heap.
+ *
+ * Values are indexed by int wherever they are stored, so a matrix can hold at most Integer.MAX_VALUE values (slack
+ * included), i.e. about 306 million synapses when 7 values are interleaved per synapse. Off heap storage lifts the
+ * limits of the heap, not this one; larger networks have to be split over more matrices (nodes).
  * @author Zoë Tosi
  * TODO: Clean up legacy methods...
  */
 public class InterleavedSparseMatrix {
 
+    /** Fraction of a major's degree left free after it when the matrix is laid out. */
+    public static double SLACK_FRACTION = 0.125;
+    /** Minimum number of free entries after each major when the matrix is laid out. */
+    public static int MIN_SLACK = 2;
+
     private final Ordering ordering;
 
     /** Data values, may be interleaved--interleaving facor is nILFac
-     * Arranged in the order of target-major, i.e. the fan-in of each neuron is contiguous. */
+     * Arranged in the order of target-major, i.e. the fan-in of each neuron is contiguous. Null if values are
+     * stored as floats or off heap. */
     private double [] values;
+    /** Data values, laid out like values, if stored on heap in single precision, null otherwise. */
+    private float [] fValues;
+    /** Data values, laid out like values, if stored off heap, null otherwise. */
+    private OffHeapValues oValues;
+    /** Where the file backing off heap values is created, null if they are in native memory. */
+    private Path spillDir;
+
+    public final Precision precision;
     /** The position in values where each target neuron's fan in begins capped at the end with the length of values
      * size is num major + 1*/
     private int [] ptrs;
+    /** One past the position of the last value of each major, ptrs[i+1] - ends[i] is the major's slack. */
+    private int [] ends;
     /** The source neuron indices of each value in values; size is nnz/nilFac .*/
     private int [] ordIndices;
     /** Number of target neurons. */
@@ -42,11 +79,16 @@ public class InterleavedSparseMatrix {
 //
     private int[] reverseDegrees;
 
+    /** Reused by {@link #rebuildMajor}. */
+    private int [] scratchInds = new int[0];
+    private double [] scratchVals = new double[0];
+
     public InterleavedSparseMatrix(List<SrcTarDataPack> tuples, int[] dataRange, int noMinor, int noMajor, //int offsetMajor, int offsetMinor,
                                    final Ordering ordering) {
       //  this.offsetMajor = offsetMajor;
       //  this.offsetMinor = offsetMinor;
         this.ordering = ordering;
+        this.precision = Precision.DOUBLE;
         nnz = tuples.size();
         nILFac = dataRange[1] - dataRange[0];
         this.noMinor = noMinor;
@@ -73,10 +115,363 @@ public class InterleavedSparseMatrix {
             index++;
         }
         ptrs = new int[noMajor+1];
+        ends = new int[noMajor];
         for(int ii=0; ii<noMajor; ++ii) {
             ptrs[ii+1] = majorDegrees[ii] + ptrs[ii];
+            ends[ii] = ptrs[ii+1];
+        }
+
+    }
+
+    /**
+     * Wraps already compressed (and compact) primitive arrays, which the matrix takes ownership of.
+     * @param ptrs where each major's entries begin, capped with nnz, size noMajor+1
+     * @param ordIndices minor index of each entry, in ascending order within each major
+     * @param values nILFac interleaved values per entry
+     * @param nILFac interleaving factor
+     * @param noMinor
+     * @param noMajor
+     * @param ordering
+     */
+    public InterleavedSparseMatrix(int[] ptrs, int[] ordIndices, double[] values, int nILFac, int noMinor,
+                                   int noMajor, final Ordering ordering) {
+        if (ptrs.length != noMajor+1 || ordIndices.length != ptrs[noMajor]
+                || values.length != ordIndices.length * nILFac) {
+            throw new IllegalArgumentException("Pointers, indices and values do not agree in size.");
+        }
+        this.ordering = ordering;
+        this.precision = Precision.DOUBLE;
+        this.nILFac = nILFac;
+        this.noMinor = noMinor;
+        this.noMajor = noMajor;
+        this.ptrs = ptrs;
+        this.ordIndices = ordIndices;
+        this.values = values;
+        nnz = ordIndices.length;
+        ends = Arrays.copyOfRange(ptrs, 1, noMajor+1);
+        reverseDegrees = new int[noMinor];
+        for (int ind : ordIndices) {
+            reverseDegrees[ind]++;
+        }
+    }
+
+    private InterleavedSparseMatrix(InterleavedSparseMatrix toCpy, Precision precision, boolean offHeap,
+                                    Path spillDir) {
+        this.ordering = toCpy.ordering;
+        this.precision = precision;
+        nILFac = toCpy.nILFac;
+        noMajor = toCpy.noMajor;
+        noMinor = toCpy.noMinor;
+        nnz = toCpy.nnz;
+        ptrs = toCpy.ptrs.clone();
+        ends = toCpy.ends.clone();
+        ordIndices = toCpy.ordIndices.clone();
+        reverseDegrees = toCpy.reverseDegrees.clone();
+        this.spillDir = spillDir;
+        int len = checkedLength((long) toCpy.ptrs[noMajor] * nILFac);
+        allocate(len, offHeap);
+        for (int ii = 0; ii < len; ++ii) {
+            setValueAt(ii, toCpy.valueAt(ii));
+        }
+    }
+
+    /**
+     * @return len as an int if a matrix can hold that many values
+     * @throws IllegalStateException if it can't, see the limit in the class description.
+     */
+    private static int checkedLength(long len) {
+        if (len > Integer.MAX_VALUE) {
+            throw new IllegalStateException("A matrix cannot hold " + len + " values, the most it can hold is "
+                    + Integer.MAX_VALUE + ".");
+        }
+        return (int) len;
+    }
+
+    /**
+     * Sets up empty storage for len values at this matrix's precision.
+     */
+    private void allocate(int len, boolean offHeap) {
+        values = null;
+        fValues = null;
+        oValues = null;
+        if (offHeap) {
+            oValues = new OffHeapValues(len, precision, spillDir);
+        } else if (precision == Precision.DOUBLE) {
+            values = new double[len];
+        } else {
+            fValues = new float[len];
+        }
+    }
+
+    /**
+     * @return a copy of this matrix (with the same layout) storing its values at the given precision.
+     */
+    public InterleavedSparseMatrix toPrecision(Precision precision) {
+        return new InterleavedSparseMatrix(this, precision, false, null);
+    }
+
+    /**
+     * @param precision the precision values are stored at
+     * @param spillDir a directory in which to create the file backing the values or null to keep them in native
+     *                 memory
+     * @return a copy of this matrix (with the same layout) storing its values off the Java heap, see
+     * {@link OffHeapValues}.
+     */
+    public InterleavedSparseMatrix toOffHeap(Precision precision, Path spillDir) {
+        return new InterleavedSparseMatrix(this, precision, true, spillDir);
+    }
+
+    public boolean isOffHeap() {
+        return oValues != null;
+    }
+
+    /**
+     * Releases the memory of values stored off heap right away rather than whenever this matrix is garbage
+     * collected. The matrix must not be used afterwards.
+     */
+    public void release() {
+        if (oValues != null) {
+            oValues.close();
+        }
+    }
+
+    /**
+     * Writes the layout and values of the matrix, values are written at the precision they are stored at.
+     */
+    public void writeState(StateOutput out) throws IOException {
+        out.writeInt(ordering.ordinal());
+        out.writeInt(nILFac);
+        out.writeInt(precision.ordinal());
+        out.writeInt(noMajor);
+        out.writeInt(noMinor);
+        out.writeInt(nnz);
+        out.writeInts(ptrs);
+        out.writeInts(ends);
+        out.writeInts(ordIndices);
+        out.writeInts(reverseDegrees);
+        int len = ptrs[noMajor] * nILFac;
+        out.writeInt(len);
+        if (values != null) {
+            out.writeDoubles(values, 0, len);
+        } else if (fValues != null) {
+            out.writeFloats(fValues, 0, len);
+        } else {
+            oValues.writeTo(out);
+        }
+    }
+
+    /**
+     * Replaces the layout and values of this matrix with those written by {@link #writeState(StateOutput)}. The
+     * values are kept where this matrix keeps them (on or off heap), but must have been written at the same
+     * precision. This matrix is restored in place so that anything using it for coordinates (like an
+     * {@link InterleavedSparseAddOn}) stays attached to it.
+     */
+    public void readState(StateInput in) throws IOException {
+        if (in.readInt() != ordering.ordinal() || in.readInt() != nILFac || in.readInt() != precision.ordinal()) {
+            throw new IllegalStateException("Checkpointed matrix has a different ordering, interleaving or precision.");
+        }
+        noMajor = in.readInt();
+        noMinor = in.readInt();
+        nnz = in.readInt();
+        ptrs = in.readInts();
+        ends = in.readInts();
+        ordIndices = in.readInts();
+        reverseDegrees = in.readInts();
+        int len = in.readInt();
+        if (ptrs.length != noMajor+1 || ends.length != noMajor || reverseDegrees.length != noMinor
+                || ordIndices.length != ptrs[noMajor] || len != ptrs[noMajor] * nILFac) {
+            throw new IllegalStateException("Checkpointed matrix is inconsistent.");
+        }
+        OffHeapValues oldOValues = oValues;
+        allocate(len, oldOValues != null);
+        if (oldOValues != null) {
+            oldOValues.close();
+        }
+        if (values != null) {
+            in.readDoubles(values, 0, len);
+        } else if (fValues != null) {
+            in.readFloats(fValues, 0, len);
+        } else {
+            oValues.readFrom(in);
+        }
+    }
+
+    /**
+     * @param ind an index into the (interleaved) values, as for {@link #getRawData()}
+     */
+    public double valueAt(int ind) {
+        if (values != null) {
+            return values[ind];
+        }
+        return fValues != null ? fValues[ind] : oValues.get(ind);
+    }
+
+    public void setValueAt(int ind, double val) {
+        if (values != null) {
+            values[ind] = val;
+        } else if (fValues != null) {
+            fValues[ind] = (float) val;
+        } else {
+            oValues.set(ind, val);
+        }
+    }
+
+    /**
+     * Copies len values (in place of an array copy) from a double array to the values starting at index ind.
+     */
+    private void copyIn(double[] src, int srcPos, int ind, int len) {
+        if (values != null) {
+            System.arraycopy(src, srcPos, values, ind, len);
+        } else {
+            for (int ii = 0; ii < len; ++ii) {
+                setValueAt(ind + ii, src[srcPos + ii]);
+            }
+        }
+    }
+
+    /**
+     * Copies len values starting at index ind to a double array.
+     */
+    public void copyOut(int ind, double[] dest, int destPos, int len) {
+        if (values != null) {
+            System.arraycopy(values, ind, dest, destPos, len);
+        } else {
+            for (int ii = 0; ii < len; ++ii) {
+                dest[destPos + ii] = valueAt(ind + ii);
+            }
+        }
+    }
+
+    private void requireDouble() {
+        if (values == null) {
+            throw new IllegalStateException("Operation requires values to be stored on heap in double precision.");
+        }
+    }
+
+    /**
+     * Lays the matrix out again, leaving every major room for at least minCapacity[i] entries plus slack.
+     * Marked deleted entries are kept.
+     * @param minCapacity minimum number of entries each major must be able to hold, may be null
+     * @return for each position in the new layout the position it was moved from or -1 if it is slack, for the
+     * benefit of anything storing values by position (like {@link InterleavedSparseAddOn#rearrange(int[])}).
+     */
+    public int[] relayout(int[] minCapacity) {
+        int [] newPtrs = new int[noMajor+1];
+        int [] newEnds = new int[noMajor];
+        for(int ii=0; ii<noMajor; ++ii) {
+            int deg = ends[ii] - ptrs[ii];
+            int cap = minCapacity == null ? deg : Math.max(deg, minCapacity[ii]);
+            newPtrs[ii+1] = newPtrs[ii] + cap + Math.max(MIN_SLACK, (int) (cap * SLACK_FRACTION));
+            newEnds[ii] = newPtrs[ii] + deg;
+        }
+        int newCap = newPtrs[noMajor];
+        double [] oldValues = values;
+        float [] oldFValues = fValues;
+        OffHeapValues oldOValues = oValues;
+        allocate(checkedLength((long) newCap * nILFac), oldOValues != null);
+        int [] newOrdIndices = new int[newCap];
+        int [] newToOld = new int[newCap];
+        Arrays.fill(newOrdIndices, -1);
+        Arrays.fill(newToOld, -1);
+        for(int ii=0; ii<noMajor; ++ii) {
+            int deg = ends[ii] - ptrs[ii];
+            if (values != null) {
+                System.arraycopy(oldValues, ptrs[ii] * nILFac, values, newPtrs[ii] * nILFac, deg * nILFac);
+            } else if (fValues != null) {
+                System.arraycopy(oldFValues, ptrs[ii] * nILFac, fValues, newPtrs[ii] * nILFac, deg * nILFac);
+            } else {
+                oValues.copyFrom(oldOValues, ptrs[ii] * nILFac, newPtrs[ii] * nILFac, deg * nILFac);
+            }
+            System.arraycopy(ordIndices, ptrs[ii], newOrdIndices, newPtrs[ii], deg);
+            for(int jj=0; jj<deg; ++jj) {
+                newToOld[newPtrs[ii] + jj] = ptrs[ii] + jj;
+            }
         }
+        if (oldOValues != null) {
+            oldOValues.close();
+        }
+        ordIndices = newOrdIndices;
+        ptrs = newPtrs;
+        ends = newEnds;
+        return newToOld;
+    }
 
+    /**
+     * Marks the entry at pos (an entry index, not an index into values) as deleted. Deleted entries stay where they
+     * are (and are still counted and iterated over) until their major is rebuilt, so this should only be done to a
+     * batch of entries which are then all removed with {@link #rebuildMajor}.
+     */
+    public void markDeleted(int pos) {
+        ordIndices[pos] = -1;
+    }
+
+    public boolean isDeleted(int pos) {
+        return ordIndices[pos] == -1;
+    }
+
+    /**
+     * Rebuilds a major in place, dropping its entries marked deleted and merging in new entries so that it remains
+     * sorted by minor index.
+     * @param major the major to rebuild
+     * @param minors minor indices of the new entries, in [from, to), ascending and not already in the major
+     * @param vals interleaved values of the new entries, nILFac per entry, indexed the same as minors
+     * @param from first new entry
+     * @param to one past the last new entry
+     * @param origin filled with where each entry of the rebuilt major came from: the entry's old position if it was
+     *               already present or -(k+1) for minors[k]
+     * @return the new number of entries in the major or -1 if it doesn't have room for them, in which case nothing
+     * is changed.
+     */
+    public int rebuildMajor(int major, int[] minors, double[] vals, int from, int to, int[] origin) {
+        int start = ptrs[major];
+        int oldEnd = ends[major];
+        int live = 0;
+        for(int ii=start; ii<oldEnd; ++ii) {
+            if (ordIndices[ii] != -1) {
+                live++;
+            }
+        }
+        int newLen = live + to - from;
+        if (newLen > ptrs[major+1] - start) {
+            return -1;
+        }
+        int oldLen = oldEnd - start;
+        if (scratchInds.length < oldLen) {
+            scratchInds = new int[oldLen];
+            scratchVals = new double[oldLen * nILFac];
+        }
+        System.arraycopy(ordIndices, start, scratchInds, 0, oldLen);
+        copyOut(start * nILFac, scratchVals, 0, oldLen * nILFac);
+        int oo = 0, kk = from;
+        for(int pos = start, n = start + newLen; pos < n; ++pos) {
+            while (oo < oldLen && scratchInds[oo] == -1) {
+                oo++;
+            }
+            if (kk < to && (oo == oldLen || minors[kk] < scratchInds[oo])) {
+                ordIndices[pos] = minors[kk];
+                copyIn(vals, kk * nILFac, pos * nILFac, nILFac);
+                origin[pos - start] = -(kk - from + 1);
+                kk++;
+            } else {
+                ordIndices[pos] = scratchInds[oo];
+                copyIn(scratchVals, oo * nILFac, pos * nILFac, nILFac);
+                origin[pos - start] = start + oo;
+                oo++;
+            }
+        }
+        if (newLen < oldLen) {
+            Arrays.fill(ordIndices, start + newLen, oldEnd, -1);
+            if (values != null) {
+                Arrays.fill(values, (start + newLen) * nILFac, oldEnd * nILFac, 0);
+            } else if (fValues != null) {
+                Arrays.fill(fValues, (start + newLen) * nILFac, oldEnd * nILFac, 0);
+            } else {
+                oValues.zero((start + newLen) * nILFac, oldEnd * nILFac);
+            }
+        }
+        ends[major] = start + newLen;
+        nnz += newLen - oldLen;
+        return newLen;
     }
     public double get(int tarInd, int srcInd) {
         return get(tarInd, tarInd, 0, 1);
@@ -84,16 +479,16 @@ public class InterleavedSparseMatrix {
 
     public double get(int tarInd, int srcInd, int start, int inc) {
         checkOffset(inc);
-        if (ptrs[tarInd] == ptrs[tarInd+1])
+        if (ptrs[tarInd] == ends[tarInd])
             return 0;
         if (tarInd > noMajor)
             throw new IllegalArgumentException("Invalid target index.");
         if (srcInd > noMinor)
             throw new IllegalArgumentException("Invalid source index.");
 
-        for(int ii = ptrs[tarInd]; ii < ptrs[tarInd+1]; ++ii) {
+        for(int ii = ptrs[tarInd]; ii < ends[tarInd]; ++ii) {
             if (ordIndices[ii] == srcInd) {
-                return values[ii*inc + start];
+                return valueAt(ii*inc + start);
             } else if (ordIndices[ii] > srcInd) {
                 return 0;
             }
@@ -102,7 +497,7 @@ public class InterleavedSparseMatrix {
     }
     // TODO: Implement binary search for larger numbers of sources/targets
     public int sub2Ind(int tar, int src) {
-        for(int ii = ptrs[tar], n = ptrs[tar]; ii<n; ++ii) {
+        for(int ii = ptrs[tar], n = ends[tar]; ii<n; ++ii) {
             if (ordIndices[ii] == src) {
                 return ii;
             } else if (ordIndices[ii] > src) {
@@ -113,6 +508,7 @@ public class InterleavedSparseMatrix {
     }
 
     public void sumIncoming(double[] localSums, int offset) {
+        requireDouble();
         if (Math.abs(offset) >= nILFac) {
             throw new IllegalArgumentException("Invalid offset");
         }
@@ -121,16 +517,28 @@ public class InterleavedSparseMatrix {
         }
         for(int ii = 0; ii < noMajor; ++ii) {
             localSums[ii] = 0;
-            for(int jj = ptrs[ii], n = ptrs[ii+1]; jj<n; ++jj) {
+            for(int jj = ptrs[ii], n = ends[ii]; jj<n; ++jj) {
+                localSums[ii] += values[jj*nILFac + offset];
+            }
+        }
+    }
+
+    public void sumIncoming(double[] localSums, int offset, int startMajor, int endMajor) {
+        requireDouble();
+        checkOffset(offset);
+        for(int ii = startMajor; ii < endMajor; ++ii) {
+            localSums[ii] = 0;
+            for(int jj = ptrs[ii], n = ends[ii]; jj<n; ++jj) {
                 localSums[ii] += values[jj*nILFac + offset];
             }
         }
     }
 
     public double getMajorSum(int noMajor, int offset) {
+        requireDouble();
         checkOffset(offset);
         double su = 0;
-        for(int ii=ptrs[noMajor]; ii < ptrs[noMajor+1]; ++ii) {
+        for(int ii=ptrs[noMajor]; ii < ends[noMajor]; ++ii) {
             su += values[ii*nILFac+offset];
         }
         return su;
@@ -138,17 +546,32 @@ public class InterleavedSparseMatrix {
 
     /**
      * A convenience method that probably should be somewhere else. Adds the 2i+1-ith element to the 2i-ith and keeps it
-     * there. This is specifically for adding the derivative of the weights to the weights.
+     * there. This is specifically for adding the derivative of the weights to the weights. Slack is swept over along
+     * with everything else, since it is cheaper than skipping it and adding 0 to 0 does nothing.
      */
     public void addDw2W() {
-        for(int ii=0, n=nnz*nILFac; ii<n; ii+=nILFac) {
+        requireDouble();
+        for(int ii=0, n=values.length; ii<n; ii+=nILFac) {
+            values[ii] += values[ii+1];
+        }
+    }
+
+    /**
+     * Adds dws to ws for all values belonging to majors [startMajor, endMajor).
+     */
+    public void addDw2W(int startMajor, int endMajor) {
+        requireDouble();
+        for(int ii=ptrs[startMajor]*nILFac, n=ptrs[endMajor]*nILFac; ii<n; ii+=nILFac) {
             values[ii] += values[ii+1];
         }
     }
 
     public void randomize(Utils.ProbDistType pdist, double[] params, int offset) {
-        for(int ii = 0; ii<nnz; ++ii) {
-            values[ii*nILFac + offset] = pdist.getRandom(params[0], params[1]);
+        requireDouble();
+        for(int ii = 0; ii<noMajor; ++ii) {
+            for(int jj = ptrs[ii]; jj<ends[ii]; ++jj) {
+                values[jj*nILFac + offset] = pdist.getRandom(params[0], params[1]);
+            }
         }
     }
 
@@ -158,10 +581,10 @@ public class InterleavedSparseMatrix {
         try {
             int kk = 0;
             for(int ii=0; ii<noMajor; ++ii) {
-                for(int jj=ptrs[ii]; jj<ptrs[ii+1]; ++jj) {
+                for(int jj=ptrs[ii]; jj<ends[ii]; ++jj) {
                     tar[kk] = ii;
                     src[kk] = ordIndices[jj];
-                    wt[kk++] = values[jj*nILFac+offset];
+                    wt[kk++] = valueAt(jj*nILFac+offset);
                 }
 
             }
@@ -179,56 +602,85 @@ public class InterleavedSparseMatrix {
     //public void
 
     public void scalarMult(double a, int start, int inc) {
+        requireDouble();
         checkOffset(inc);
-        for(int ii = 0; ii< noMajor +1; ++ii) {
-            for(int jj = ptrs[ii]+start, n = nILFac* ptrs[ii+1]; jj<n; jj+=inc) {
+        for(int ii = 0; ii< noMajor; ++ii) {
+            for(int jj = ptrs[ii]*nILFac+start, n = nILFac* ends[ii]; jj<n; jj+=inc) {
                 values[jj] *= a;
             }
         }
     }
 
     public void scaleMajor(int majorInd, double scale, int offset) {
+        requireDouble();
         checkOffset(offset);
-        for(int ii=ptrs[majorInd]; ii<ptrs[majorInd+1]; ++ii) {
+        for(int ii=ptrs[majorInd], n=ends[majorInd]; ii<n; ++ii) {
             values[ii*nILFac+offset] *= scale;
 
         }
     }
 
+    /**
+     * Equivalent to calling {@link #addDw2W(int, int)} noTimes times on the given major. Each w still has its dw
+     * added noTimes times over (so the result is identical), but in one pass and stopping early where adding dw no
+     * longer changes w.
+     */
+    public void addDw2WRepeated(int majorInd, int noTimes) {
+        requireDouble();
+        for(int ii=ptrs[majorInd]*nILFac, n=ends[majorInd]*nILFac; ii<n; ii+=nILFac) {
+            double dw = values[ii+1];
+            if (dw == 0) {
+                continue;
+            }
+            double w = values[ii];
+            for(int kk=0; kk<noTimes; ++kk) {
+                double nw = w + dw;
+                if (nw == w) {
+                    break;
+                }
+                w = nw;
+            }
+            values[ii] = w;
+        }
+    }
+
     public final void divFromArray(double[] arr, int offset) {
+        requireDouble();
         if(arr.length != noMajor) {
             throw new IllegalArgumentException("Dimension mismatch");
         }
         for(int ii=0; ii<noMajor; ++ii) {
-            for(int jj=ptrs[ii], m = ptrs[ii+1]; jj<m; ++jj) {
+            for(int jj=ptrs[ii], m = ends[ii]; jj<m; ++jj) {
                 values[jj*nILFac + offset] /= arr[ii];
             }
         }
     }
 
     public final void mulFromArray(double[] arr, int offset) {
+        requireDouble();
         if(arr.length != noMajor) {
             throw new IllegalArgumentException("Dimension mismatch");
         }
         for(int ii=0; ii<noMajor; ++ii) {
-            for(int jj=ptrs[ii], m = ptrs[ii+1]; jj<m; ++jj) {
+            for(int jj=ptrs[ii], m = ends[ii]; jj<m; ++jj) {
                 values[jj*nILFac + offset] *= arr[ii];
             }
         }
     }
 
     public final int find(int major, int minor) {
-        if(ptrs[major+1]-ptrs[major] == 0) {
+        if(ends[major]-ptrs[major] == 0) {
             return  -1;
         }
 
-        return Utils.findInSegment(minor, ordIndices, ptrs[major], ptrs[major+1]-1);
+        return Utils.findInSegment(minor, ordIndices, ptrs[major], ends[major]-1);
 
     }
 
     public void divMultFanIn(double [] divVal, double [] mulVal, int inc) {
+        requireDouble();
         for(int ii = 0; ii< noMajor; ++ii) {
-            for(int jj = ptrs[ii]; jj< ptrs[jj+1]; ++jj) {
+            for(int jj = ptrs[ii]; jj< ends[ii]; ++jj) {
                 values[jj*nILFac + inc] = values[jj*nILFac + inc] * mulVal[ii] / divVal[ii];
             }
         }
@@ -236,8 +688,9 @@ public class InterleavedSparseMatrix {
     }
 
     public void sumNeighValsI(int a, int inc) {
-        for(int ii=0; ii<nnz; ++ii) {
-            values[ii*nILFac] += a * values[ii*nILFac+inc];
+        requireDouble();
+        for(int ii=0, n=values.length; ii<n; ii+=nILFac) {
+            values[ii] += a * values[ii+inc];
         }
     }
 
@@ -259,9 +712,10 @@ public class InterleavedSparseMatrix {
      * @param inc
      */
     public void scalarAdd(double a, int start, int inc) {
+        requireDouble();
         checkOffset(inc);
         for(int ii = 0; ii< noMajor; ++ii) {
-            for(int jj = ptrs[ii]+start, n = nILFac* ptrs[ii+1]; jj<n; jj+=inc) {
+            for(int jj = ptrs[ii]*nILFac+start, n = nILFac* ends[ii]; jj<n; jj+=inc) {
                 values[jj] += a;
             }
         }
@@ -269,9 +723,11 @@ public class InterleavedSparseMatrix {
 
     public double getMax(int offset) {
         double max = Double.MIN_VALUE;
-        for(int ii=offset; ii<values.length; ii+=nILFac) {
-            if(values[ii] > max) {
-                max = values[ii];
+        for(int ii=0; ii<noMajor; ++ii) {
+            for(int jj = ptrs[ii]*nILFac + offset, n = ends[ii]*nILFac; jj<n; jj+=nILFac) {
+                if(valueAt(jj) > max) {
+                    max = valueAt(jj);
+                }
             }
         }
         return max;
@@ -279,8 +735,8 @@ public class InterleavedSparseMatrix {
 
     public void getMaxMajors(int offset, double [] mxs) {
         for(int ii=0; ii<noMajor; ++ii) {
-            for(int jj = ptrs[ii]; jj < ptrs[ii+1]; ++jj) {
-                double val = values[jj*nILFac + offset];
+            for(int jj = ptrs[ii]; jj < ends[ii]; ++jj) {
+                double val = valueAt(jj*nILFac + offset);
                 if(val > mxs[ii]) {
                     mxs[ii] = val;
                 }
@@ -290,9 +746,11 @@ public class InterleavedSparseMatrix {
 
     public double getMin(int offset) {
         double min = Double.MAX_VALUE;
-        for(int ii=offset; ii<values.length; ii+=nILFac) {
-            if(values[ii] < min) {
-                min = values[ii];
+        for(int ii=0; ii<noMajor; ++ii) {
+            for(int jj = ptrs[ii]*nILFac + offset, n = ends[ii]*nILFac; jj<n; jj+=nILFac) {
+                if(valueAt(jj) < min) {
+                    min = valueAt(jj);
+                }
             }
         }
         return min;
@@ -304,9 +762,32 @@ public class InterleavedSparseMatrix {
      * @return
      */
     public double[] getRawData() {
+        requireDouble();
         return values;
     }
 
+    /**
+     * Same as {@link #getRawData()} for matrices storing their values as floats.
+     * @return
+     */
+    public float[] getRawFloatData() {
+        if (fValues == null) {
+            throw new IllegalStateException("Values are not stored on heap in single precision.");
+        }
+        return fValues;
+    }
+
+    /**
+     * Same as {@link #getRawData()} for matrices storing their values off the Java heap.
+     * @return
+     */
+    public OffHeapValues getOffHeapValues() {
+        if (oValues == null) {
+            throw new IllegalStateException("Values are not stored off heap.");
+        }
+        return oValues;
+    }
+
     /**
      * This returns the array of pointers to the major ordered coordinates, size will be
      * same as either how many source neurons or how many target neurons for this synapse
@@ -328,21 +809,32 @@ public class InterleavedSparseMatrix {
     }
 
     /**
-     * Returns a copy of the values stored in this synapse matrix
+     * This returns the array of the ends of each major's entries (ptrs[i+1] minus slack)
+     * --edits to the returned array will alter values in the synapse matrix accordingly
+     * @return
+     */
+    public int[] getRawEnds() {
+        return ends;
+    }
+
+    /**
+     * Returns a copy of the values stored in this synapse matrix, without slack
      * @return
      */
     public double[] getValues() {
-        double [] cpy = new double[values.length];
-        System.arraycopy(values, 0,cpy, 0, values.length);
+        double [] cpy = new double[nnz*nILFac];
+        int kk = 0;
+        for(int ii=0; ii<noMajor; ++ii) {
+            int len = (ends[ii]-ptrs[ii])*nILFac;
+            copyOut(ptrs[ii]*nILFac, cpy, kk, len);
+            kk += len;
+        }
         return cpy;
     }
 
     public double [] getValues(int offset) {
-        checkOffset(offset);
         double[] cpy = new double[nnz];
-        for(int ii=0; ii<nnz; ++ii) {
-            cpy[ii] = values[ii*nILFac + offset];
-        }
+        getValues(cpy, 0, offset);
         return cpy;
     }
 
@@ -354,15 +846,18 @@ public class InterleavedSparseMatrix {
      */
     public void getValues(double[] vals, int absShift, int offset) {
         checkOffset(offset);
-        for(int ii=0; ii<nnz; ++ii) {
-            vals[ii+absShift] = values[ii*nILFac + offset];
+        int kk = absShift;
+        for(int ii=0; ii<noMajor; ++ii) {
+            for(int jj=ptrs[ii]; jj<ends[ii]; ++jj) {
+                vals[kk++] = valueAt(jj*nILFac + offset);
+            }
         }
     }
 
     public int[] getMajorDegrees() {
         int[] degs = new int[noMajor];
         for(int ii=0; ii<noMajor; ++ii) {
-            degs[ii] = ptrs[ii+1]-ptrs[ii];
+            degs[ii] = ends[ii]-ptrs[ii];
         }
         return degs;
     }
@@ -384,40 +879,43 @@ public class InterleavedSparseMatrix {
     }
 
     public void getPtrsAsIndices(int [] inds, int absShift, int relativeShift) {
+        int kk = absShift;
         for(int ii=0; ii<noMajor; ++ii) {
-            for(int jj=ptrs[ii]; jj<ptrs[ii+1]; ++jj) {
-                inds[jj+absShift] = ii + relativeShift;
+            for(int jj=ptrs[ii]; jj<ends[ii]; ++jj) {
+                inds[kk++] = ii + relativeShift;
             }
         }
     }
 
     /**
-     * Returns a copy of the minor order coordinates
+     * Returns a copy of the minor order coordinates, without slack
      * @return
      */
     public int[] getOrdIndices() {
-        int [] cpy = new int[ordIndices.length];
-        System.arraycopy(ordIndices, 0, cpy, 0, ordIndices.length);
+        int [] cpy = new int[nnz];
+        getIndices(cpy, 0, 0);
         return cpy;
     }
 
     public void getIndices(int [] inds, int absShift, int relativeShift) {
-        System.arraycopy(ordIndices, 0, inds, absShift, nnz);
-        for(int ii=absShift, n=absShift+nnz; ii<n; ++ii) {
-            inds[ii] += relativeShift;
+        int kk = absShift;
+        for(int ii=0; ii<noMajor; ++ii) {
+            for(int jj=ptrs[ii]; jj<ends[ii]; ++jj) {
+                inds[kk++] = ordIndices[jj] + relativeShift;
+            }
         }
     }
 
     public int getDataForMajorInd(int majorInd, int offset, double [] ret, int start) {
         int jj = 0;
         try {
-            for (int ii = ptrs[majorInd], n = ptrs[majorInd + 1]; ii < n; ++ii) {
-                ret[start + jj++] = values[nILFac * ii + offset];
+            for (int ii = ptrs[majorInd], n = ends[majorInd]; ii < n; ++ii) {
+                ret[start + jj++] = valueAt(nILFac * ii + offset);
             }
         } catch (ArrayIndexOutOfBoundsException e) {
             e.printStackTrace();
         }
-        return ptrs[majorInd+1] - ptrs[majorInd];
+        return ends[majorInd] - ptrs[majorInd];
     }
 
     public int getStartIndex(int neuronNo) {
@@ -425,7 +923,7 @@ public class InterleavedSparseMatrix {
     }
 
     public int getEndIndex(int neuronNo) {
-        return ptrs[neuronNo+1] * nILFac;
+        return ends[neuronNo] * nILFac;
     }
 
     public int getInc() {
@@ -437,13 +935,32 @@ public class InterleavedSparseMatrix {
     }
 
     public int getEndIndex(int neuronNo, int nILFac) {
-        return ptrs[neuronNo+1] * nILFac;
+        return ends[neuronNo] * nILFac;
+    }
+
+    public int getDegree(int major) {
+        return ends[major] - ptrs[major];
     }
 
     public int getNnz() {
         return  nnz;
     }
 
+    /**
+     * @return the number of entries (including slack) the matrix can hold in its current layout.
+     */
+    public int getCapacity() {
+        return ptrs[noMajor];
+    }
+
+    public int getNoMajor() {
+        return noMajor;
+    }
+
+    public int getNoMinor() {
+        return noMinor;
+    }
+
     public void print(PrintStream out) {
         //TODO:...
     }
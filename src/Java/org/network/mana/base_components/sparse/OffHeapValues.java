@@ -0,0 +1,176 @@
+package Java.org.network.mana.base_components.sparse;
+
+import Java.org.network.mana.enums.Precision;
+import Java.org.network.mana.io.StateInput;
+import Java.org.network.mana.io.StateOutput;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A fixed length array of double or float values kept outside the Java heap in direct or memory mapped byte buffers,
+ * so that it neither counts against the heap nor has to be scanned or moved by the garbage collector. The memory is
+ * either native memory (limited by -XX:MaxDirectMemorySize, which defaults to the maximum heap size) or a memory
+ * mapped temporary file, in which case the OS is free to write pages which are not in use out to disk, so that more
+ * synapses can be simulated than fit in RAM. Since a buffer holds at most 2GB, the values are split over buffers of
+ * {@value #CHUNK_VALUES} values each.
+ *
+ * The buffers are dropped by {@link #close()} (which also deletes the backing file, if any) and their memory is
+ * released once they have been garbage collected. Values may be read and written from any thread, but not after
+ * (or while) they are closed.
+ */
+public final class OffHeapValues implements AutoCloseable {
+
+    private static final int CHUNK_SHIFT = 27;
+    /** Number of values held by each buffer. */
+    public static final int CHUNK_VALUES = 1 << CHUNK_SHIFT;
+    private static final long CHUNK_MASK = CHUNK_VALUES - 1;
+
+    public final Precision precision;
+
+    public final long length;
+
+    /** The values, CHUNK_VALUES at a time, in native byte order. */
+    private ByteBuffer [] chunks;
+
+    /** The file backing the values or null if they are in native memory. */
+    private final Path file;
+
+    /**
+     * Creates a new array of zeros.
+     * @param length number of values
+     * @param precision precision the values are stored at
+     * @param spillDir directory to create the backing file in or null to use native memory
+     */
+    public OffHeapValues(long length, Precision precision, Path spillDir) {
+        this.length = length;
+        this.precision = precision;
+        int bytesPer = precision.getBytes();
+        chunks = new ByteBuffer[(int) Math.max(1, (length + CHUNK_MASK) >>> CHUNK_SHIFT)];
+        try {
+            if (spillDir == null) {
+                file = null;
+                for (int ii = 0; ii < chunks.length; ++ii) {
+                    chunks[ii] = ByteBuffer.allocateDirect(chunkLength(ii) * bytesPer);
+                }
+            } else {
+                file = Files.createTempFile(spillDir, "mana-syn", ".bin");
+                file.toFile().deleteOnExit();
+                try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    for (int ii = 0; ii < chunks.length; ++ii) {
+                        chunks[ii] = ch.map(FileChannel.MapMode.READ_WRITE, ((long) ii << CHUNK_SHIFT) * bytesPer,
+                                (long) chunkLength(ii) * bytesPer);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw new UncheckedIOException(e);
+        }
+        for (ByteBuffer chunk : chunks) {
+            chunk.order(ByteOrder.nativeOrder());
+        }
+    }
+
+    private int chunkLength(int chunk) {
+        return (int) Math.min(CHUNK_VALUES, length - ((long) chunk << CHUNK_SHIFT));
+    }
+
+    public double get(long ind) {
+        ByteBuffer chunk = chunks[(int) (ind >>> CHUNK_SHIFT)];
+        int off = (int) (ind & CHUNK_MASK);
+        return precision == Precision.DOUBLE ? chunk.getDouble(off << 3) : chunk.getFloat(off << 2);
+    }
+
+    public void set(long ind, double val) {
+        ByteBuffer chunk = chunks[(int) (ind >>> CHUNK_SHIFT)];
+        int off = (int) (ind & CHUNK_MASK);
+        if (precision == Precision.DOUBLE) {
+            chunk.putDouble(off << 3, val);
+        } else {
+            chunk.putFloat(off << 2, (float) val);
+        }
+    }
+
+    /**
+     * Copies len values from another array of the same precision.
+     */
+    public void copyFrom(OffHeapValues src, long srcPos, long pos, long len) {
+        if (src.precision != precision) {
+            throw new IllegalArgumentException("Precision mismatch.");
+        }
+        int b = precision.getBytes();
+        while (len > 0) {
+            int srcOff = (int) (srcPos & CHUNK_MASK);
+            int off = (int) (pos & CHUNK_MASK);
+            int n = (int) Math.min(len, CHUNK_VALUES - Math.max(srcOff, off));
+            chunks[(int) (pos >>> CHUNK_SHIFT)].put(off * b, src.chunks[(int) (srcPos >>> CHUNK_SHIFT)],
+                    srcOff * b, n * b);
+            srcPos += n;
+            pos += n;
+            len -= n;
+        }
+    }
+
+    private static final byte [] ZEROS = new byte[1 << 16];
+
+    /**
+     * Sets the values [from, to) to 0.
+     */
+    public void zero(long from, long to) {
+        int b = precision.getBytes();
+        while (from < to) {
+            int off = (int) (from & CHUNK_MASK);
+            int n = (int) Math.min(to - from, Math.min(CHUNK_VALUES - off, ZEROS.length / b));
+            chunks[(int) (from >>> CHUNK_SHIFT)].put(off * b, ZEROS, 0, n * b);
+            from += n;
+        }
+    }
+
+    /**
+     * Writes the values to a checkpoint as raw bytes.
+     */
+    public void writeTo(StateOutput out) throws IOException {
+        for (ByteBuffer chunk : chunks) {
+            out.writeRaw(chunk.duplicate().clear());
+        }
+    }
+
+    /**
+     * Fills the values with raw bytes written by {@link #writeTo(StateOutput)} from values of the same length and
+     * precision.
+     */
+    public void readFrom(StateInput in) throws IOException {
+        for (ByteBuffer chunk : chunks) {
+            in.readRaw(chunk.duplicate().clear());
+        }
+    }
+
+    /**
+     * @return true if the values are backed by a file.
+     */
+    public boolean isMapped() {
+        return file != null;
+    }
+
+    /**
+     * Drops the buffers and deletes the backing file, if any.
+     */
+    @Override
+    public void close() {
+        chunks = null;
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,232 @@
+package Java.org.network.mana.base_components.synapses;
+
+import Java.org.network.mana.io.StateInput;
+import Java.org.network.mana.io.StateOutput;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A growable struct-of-arrays pool of synaptic events. Each event is spread across primitive
+ * columns: {arrival step, target ordered index, udfMultiplier, abs tar ind, src ind, hash}. Pools are
+ * cleared rather than reallocated, so once they have grown to the steady-state number of events
+ * scheduling and processing events allocates nothing.
+ *
+ * A hash of -1 indicates that the target ordered index of an event is no longer valid and must be
+ * looked up using the source and target indices.
+ */
+public final class EventPool implements EventSink {
+
+    private static final int DEF_CAP = 64;
+
+    /** Arrival time of each event in time steps. */
+    public int [] arrStep;
+    /** Absolute index of the synapse's weight in the target ordered weight matrix. */
+    public int [] tOrdInd;
+    /** Post synaptic response multiplier from UDF short term plasticity. */
+    public float [] udf;
+    /** Target neuron index. */
+    public int [] tar;
+    /** Source neuron index. */
+    public int [] src;
+    /** Hash of the (src, tar) pair or -1 if the event was invalidated. */
+    public int [] hash;
+
+    private int size = 0;
+
+    private static final int RADIX_BITS = 11;
+    private static final int RADIX_MASK = (1 << RADIX_BITS) - 1;
+
+    /** Scratch space for {@link #sortFrom(EventPool)}, only allocated for pools which are sorted into. */
+    private int [] perm;
+    private int [] permTmp;
+    private int [] counts;
+
+    public EventPool() {
+        this(DEF_CAP);
+    }
+
+    public EventPool(int capacity) {
+        arrStep = new int[capacity];
+        tOrdInd = new int[capacity];
+        udf = new float[capacity];
+        tar = new int[capacity];
+        src = new int[capacity];
+        hash = new int[capacity];
+    }
+
+    @Override
+    public void add(int arr, int tOrd, float udfMult, int tarInd, int srcInd, int hashCode) {
+        if (size == arrStep.length) {
+            ensureCapacity(Math.max(DEF_CAP, 2 * size));
+        }
+        arrStep[size] = arr;
+        tOrdInd[size] = tOrd;
+        udf[size] = udfMult;
+        tar[size] = tarInd;
+        src[size] = srcInd;
+        hash[size] = hashCode;
+        size++;
+    }
+
+    /**
+     * Appends the events [start, end) of another pool to this one.
+     */
+    public void addAll(EventPool other, int start, int end) {
+        int n = end - start;
+        if (size + n > arrStep.length) {
+            ensureCapacity(Math.max(2 * arrStep.length, size + n));
+        }
+        System.arraycopy(other.arrStep, start, arrStep, size, n);
+        System.arraycopy(other.tOrdInd, start, tOrdInd, size, n);
+        System.arraycopy(other.udf, start, udf, size, n);
+        System.arraycopy(other.tar, start, tar, size, n);
+        System.arraycopy(other.src, start, src, size, n);
+        System.arraycopy(other.hash, start, hash, size, n);
+        size += n;
+    }
+
+    /**
+     * Replaces the contents of this pool with the events of another, sorted by target ordered index. Events with the
+     * same index keep their order. This is an LSD radix sort (indices are treated as unsigned), so it takes time
+     * linear in the number of events, and once the scratch space has grown it allocates nothing.
+     */
+    public void sortFrom(EventPool other) {
+        int n = other.size;
+        size = 0;
+        ensureCapacity(n);
+        if (perm == null || perm.length < n) {
+            perm = new int[Math.max(DEF_CAP, n)];
+            permTmp = new int[perm.length];
+            counts = new int[1 << RADIX_BITS];
+        }
+        int [] keys = other.tOrdInd;
+        int allBits = 0;
+        for (int jj = 0; jj < n; ++jj) {
+            perm[jj] = jj;
+            allBits |= keys[jj];
+        }
+        int [] from = perm;
+        int [] to = permTmp;
+        // Only as many passes as there are digits in the largest index
+        for (int shift = 0; shift < 32 - Integer.numberOfLeadingZeros(allBits); shift += RADIX_BITS) {
+            Arrays.fill(counts, 0);
+            for (int jj = 0; jj < n; ++jj) {
+                counts[(keys[from[jj]] >>> shift) & RADIX_MASK]++;
+            }
+            for (int dd = 0, sum = 0; dd <= RADIX_MASK; ++dd) {
+                int c = counts[dd];
+                counts[dd] = sum;
+                sum += c;
+            }
+            for (int jj = 0; jj < n; ++jj) {
+                to[counts[(keys[from[jj]] >>> shift) & RADIX_MASK]++] = from[jj];
+            }
+            int [] tmp = from;
+            from = to;
+            to = tmp;
+        }
+        for (int jj = 0; jj < n; ++jj) {
+            int ev = from[jj];
+            arrStep[jj] = other.arrStep[ev];
+            tOrdInd[jj] = other.tOrdInd[ev];
+            udf[jj] = other.udf[ev];
+            tar[jj] = other.tar[ev];
+            src[jj] = other.src[ev];
+            hash[jj] = other.hash[ev];
+        }
+        size = n;
+    }
+
+    /**
+     * Copies event from into position to (both must be valid).
+     */
+    public void move(int from, int to) {
+        arrStep[to] = arrStep[from];
+        tOrdInd[to] = tOrdInd[from];
+        udf[to] = udf[from];
+        tar[to] = tar[from];
+        src[to] = src[from];
+        hash[to] = hash[from];
+    }
+
+    /**
+     * Removes every event with the given hash, preserving the order of the others.
+     * @return the number of events removed
+     */
+    public int remove(int hashCode) {
+        int kk = 0;
+        for (int jj = 0; jj < size; ++jj) {
+            if (hash[jj] == hashCode) {
+                continue;
+            }
+            if (kk != jj) {
+                move(jj, kk);
+            }
+            kk++;
+        }
+        int removed = size - kk;
+        size = kk;
+        return removed;
+    }
+
+    public void invalidate() {
+        for (int jj = 0; jj < size; ++jj) {
+            hash[jj] = -1;
+        }
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity <= arrStep.length) {
+            return;
+        }
+        arrStep = Arrays.copyOf(arrStep, capacity);
+        tOrdInd = Arrays.copyOf(tOrdInd, capacity);
+        udf = Arrays.copyOf(udf, capacity);
+        tar = Arrays.copyOf(tar, capacity);
+        src = Arrays.copyOf(src, capacity);
+        hash = Arrays.copyOf(hash, capacity);
+    }
+
+    /**
+     * Writes the pending events (but not the spare capacity).
+     */
+    public void writeState(StateOutput out) throws IOException {
+        out.writeInt(size);
+        out.writeInts(arrStep, 0, size);
+        out.writeInts(tOrdInd, 0, size);
+        out.writeFloats(udf, 0, size);
+        out.writeInts(tar, 0, size);
+        out.writeInts(src, 0, size);
+        out.writeInts(hash, 0, size);
+    }
+
+    /**
+     * Replaces the contents of this pool with events written by {@link #writeState(StateOutput)}.
+     */
+    public void readState(StateInput in) throws IOException {
+        size = 0;
+        int n = in.readInt();
+        ensureCapacity(n);
+        in.readInts(arrStep, 0, n);
+        in.readInts(tOrdInd, 0, n);
+        in.readFloats(udf, 0, n);
+        in.readInts(tar, 0, n);
+        in.readInts(src, 0, n);
+        in.readInts(hash, 0, n);
+        size = n;
+    }
+
+}
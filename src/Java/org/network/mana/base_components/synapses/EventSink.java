@@ -0,0 +1,14 @@
+package Java.org.network.mana.base_components.synapses;
+
+/**
+ * Somewhere synaptic events can be scheduled, either directly in a node's {@link EventWheel} or in an
+ * {@link EventPool} from which they are later added to the wheel in bulk.
+ */
+public interface EventSink {
+
+    /**
+     * Adds an event: {arrival step, target ordered index, udfMultiplier, abs tar ind, src ind, hash}.
+     */
+    void add(int arrStep, int tOrdInd, float udf, int tarInd, int srcInd, int hash);
+
+}
@@ -0,0 +1,214 @@
+package Java.org.network.mana.base_components.synapses;
+
+import Java.org.network.mana.io.StateInput;
+import Java.org.network.mana.io.StateOutput;
+
+import java.io.IOException;
+
+/**
+ * A node-local calendar queue for synaptic events. Since synaptic delays are bounded (by
+ * {@link Java.org.network.mana.globals.Default_Parameters#MAX_DELAY}) and arrival times are quantized
+ * to the integration time step, events can be binned by arrival step into a ring of slots instead of
+ * being kept in a heap. Adding an event and draining it are both O(1). Each slot is an {@link EventPool},
+ * a struct-of-arrays of primitive columns which is cleared and reused once its events have been processed.
+ *
+ * The wheel is NOT thread safe; it is meant to be owned by the single thread updating a MANA_Node.
+ */
+public class EventWheel implements EventSink {
+
+    /** Events arriving on step s are in slot s % noSlots. */
+    private EventPool [] slots;
+
+    private int noSlots;
+
+    /** The lowest arrival step that has not yet been drained. */
+    private int base = 0;
+
+    private int size = 0;
+
+    /**
+     * Creates a wheel with enough slots to hold every event that can be scheduled with a delay of
+     * at most maxDelay.
+     * @param maxDelay the maximum synaptic delay (ms)
+     * @param dt integration time step
+     */
+    public EventWheel(double maxDelay, double dt) {
+        this((int) Math.ceil(maxDelay/dt) + 2);
+    }
+
+    public EventWheel(int noSlots) {
+        this.noSlots = noSlots;
+        slots = new EventPool[noSlots];
+        for (int ii = 0; ii < noSlots; ++ii) {
+            slots[ii] = new EventPool();
+        }
+    }
+
+    /**
+     * Schedules an event. Events whose arrival step has already been drained are placed in the
+     * earliest pending slot so that they are processed on the next drain (as they would be by a
+     * priority queue). If the arrival step lies beyond the current horizon the wheel is grown.
+     */
+    @Override
+    public void add(int arrStep, int tOrdInd, float udf, int tarInd, int srcInd, int hash) {
+        int binStep = arrStep < base ? base : arrStep;
+        if (binStep - base >= noSlots) {
+            grow(binStep - base + 1);
+        }
+        slots[binStep % noSlots].add(arrStep, tOrdInd, udf, tarInd, srcInd, hash);
+        size++;
+    }
+
+    /**
+     * Schedules every event in a pool, in pool order.
+     */
+    public void addAll(EventPool evts) {
+        for (int ii = 0, n = evts.size(); ii < n; ++ii) {
+            add(evts.arrStep[ii], evts.tOrdInd[ii], evts.udf[ii], evts.tar[ii], evts.src[ii], evts.hash[ii]);
+        }
+    }
+
+    /**
+     * @return the lowest arrival step which has not been drained.
+     */
+    public int getBase() {
+        return base;
+    }
+
+    /**
+     * @param step an arrival step in [base, base + noSlots)
+     * @return the events arriving on step.
+     */
+    public EventPool getSlot(int step) {
+        return slots[step % noSlots];
+    }
+
+    /**
+     * @return the first step that must be visited when draining everything up to and including step.
+     */
+    public int getDrainStart(int step) {
+        return Math.max(base, step - noSlots + 1);
+    }
+
+    /**
+     * Marks all events arriving on or before step as consumed. Callers are expected to have processed
+     * every slot from {@link #getDrainStart(int)} to step before calling this.
+     * @param step last arrival step that was processed
+     */
+    public void drainedThrough(int step) {
+        if (step < base) {
+            return;
+        }
+        for (int s = getDrainStart(step); s <= step; ++s) {
+            EventPool slot = slots[s % noSlots];
+            size -= slot.size();
+            slot.clear();
+        }
+        base = step + 1;
+    }
+
+    /**
+     * @return true if there are no pending events arriving on or before step.
+     */
+    public boolean isEmptyThrough(int step) {
+        if (size == 0 || step < base) {
+            return true;
+        }
+        for (int s = getDrainStart(step); s <= step; ++s) {
+            if (!slots[s % noSlots].isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes all events with the given hash code wherever they are in the wheel.
+     * @param hash
+     */
+    public void remove(int hash) {
+        for (EventPool slot : slots) {
+            size -= slot.remove(hash);
+        }
+    }
+
+    /**
+     * Sets the hash of every pending event to -1 indicating that its target ordered index is no longer
+     * valid and must be looked up.
+     */
+    public void invalidate() {
+        for (EventPool slot : slots) {
+            slot.invalidate();
+        }
+    }
+
+    public void clear() {
+        for (EventPool slot : slots) {
+            slot.clear();
+        }
+        size = 0;
+    }
+
+    /**
+     * @return the number of pending events.
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Writes every pending event, slot by slot starting from the base.
+     */
+    public void writeState(StateOutput out) throws IOException {
+        out.writeInt(noSlots);
+        out.writeInt(base);
+        out.writeInt(size);
+        for (int s = base, n = base + noSlots; s < n; ++s) {
+            slots[s % noSlots].writeState(out);
+        }
+    }
+
+    /**
+     * Replaces everything in the wheel with the events written by {@link #writeState(StateOutput)}, which are put
+     * back in the same slots.
+     */
+    public void readState(StateInput in) throws IOException {
+        int n = in.readInt();
+        base = in.readInt();
+        size = in.readInt();
+        if (n != noSlots) {
+            noSlots = n;
+            slots = new EventPool[noSlots];
+            for (int ii = 0; ii < noSlots; ++ii) {
+                slots[ii] = new EventPool();
+            }
+        }
+        for (int s = base, m = base + noSlots; s < m; ++s) {
+            slots[s % noSlots].readState(in);
+        }
+    }
+
+    /**
+     * Re-bins all pending events into a ring with at least minSlots slots.
+     * @param minSlots
+     */
+    private void grow(int minSlots) {
+        int newNoSlots = Math.max(minSlots, 2 * noSlots);
+        EventPool [] newSlots = new EventPool[newNoSlots];
+        for (int s = base, n = base + noSlots; s < n; ++s) {
+            newSlots[s % newNoSlots] = slots[s % noSlots];
+        }
+        for (int ii = 0; ii < newNoSlots; ++ii) {
+            if (newSlots[ii] == null) {
+                newSlots[ii] = new EventPool();
+            }
+        }
+        slots = newSlots;
+        noSlots = newNoSlots;
+    }
+
+}
@@ -2,6 +2,7 @@ package Java.org.network.mana.base_components.synapses;
 
 import Java.org.network.mana.base_components.sparse.InterleavedSparseAddOn;
 import Java.org.network.mana.base_components.sparse.InterleavedSparseMatrix;
+import Java.org.network.mana.functions.FastMath;
 import Java.org.network.mana.utils.BufferedDoubleArray;
 
 import java.util.concurrent.ThreadLocalRandom;
@@ -20,6 +21,10 @@ public final class HebSTDP implements STDP {
 
     public static final double twentRt = Math.pow(20, 1.0/4.0);
 
+    /** Tabulated kernels, used if exp tables are on (see {@link FastMath}) and rebuilt if tau or dt change. */
+    private volatile FastMath.DecayTable plusTable;
+    private volatile FastMath.DecayTable minusTable;
+
     public HebSTDP() {
     }
 
@@ -51,7 +56,7 @@ public final class HebSTDP implements STDP {
             if((lastArrs.values[laLoc]-time) > 0) {
                 System.out.println("Bad time");
             }
-            wts.getRawData()[ii+1] *= Math.exp((lastArrs.values[laLoc]-time)/tauPlus);
+            wts.getRawData()[ii+1] *= plusKernel(lastArrs.values[laLoc], time, dt);
 
                   //  * ( 0.1 * ThreadLocalRandom.current().nextGaussian() + 1);
             laLoc += lastArrs.getInc();
@@ -59,27 +64,49 @@ public final class HebSTDP implements STDP {
 
     }
 
-    // data pack is {arrTime, rel tar ind, udfMultiplier, abs tar ind}
+    @Override
+    public void postTriggeredAndAdd(InterleavedSparseMatrix wts, InterleavedSparseAddOn lastArrs, int neuNo,
+                                    double time, double dt) {
+        final double [] vals = wts.getRawData();
+        final double [] la = lastArrs.values;
+        final int inc = wts.getInc();
+        final int laInc = lastArrs.getInc();
+        final double dwMax = dt*lRate * wPlus;
+        final FastMath.DecayTable table = FastMath.isTablesOn() ? getPlusTable(dt) : null;
+        int laLoc = wts.getStartIndex(neuNo, laInc);
+        for(int ii = wts.getStartIndex(neuNo), end = wts.getEndIndex(neuNo); ii<end; ii+=inc) {
+            assert la[laLoc] <= time : "Bad time";
+            double dw = dwMax * (table != null ? table.decay(time - la[laLoc])
+                    : Math.exp((la[laLoc]-time)/tauPlus));
+            vals[ii+1] = dw;
+            vals[ii] = Math.min(vals[ii], 20) + dw;
+            laLoc += laInc;
+        }
+    }
+
+    // the event is column evt of evts: {arrStep, tOrdInd, udf, tar, src, hash}
 
     @Override
-    public void preTriggered(InterleavedSparseMatrix wts, int[] dataPack, BufferedDoubleArray lastSpkTimes, double dt) {
+    public void preTriggered(InterleavedSparseMatrix wts, EventPool evts, int evt, BufferedDoubleArray lastSpkTimes, double dt) {
         int ind;
-        if(dataPack[dataPack.length-1] == -1) {
-            ind = wts.find(dataPack[3], dataPack[4]);
+        int tar = evts.tar[evt];
+        double arrTime = (double)evts.arrStep[evt]*dt;
+        if(evts.hash[evt] == -1) {
+            ind = wts.find(tar, evts.src[evt]);
         } else {
-            ind=dataPack[1];
+            ind=evts.tOrdInd[evt];
         }
-        if((lastSpkTimes.getData(dataPack[3])-(double)dataPack[0]*dt == 0)){
+        if((lastSpkTimes.getData(tar)-arrTime == 0)){
             wts.getRawData()[ind + 1] = lRate * wPlus * dt;
         } else {
             wts.getRawData()[ind + 1] = -lRate * wMinus * dt
-                    * Math.exp((lastSpkTimes.getData(dataPack[3]) - (double) dataPack[0] * dt) / tauMinus);
+                    * minusKernel(lastSpkTimes.getData(tar), arrTime, dt);
         }
-        if((lastSpkTimes.getData(dataPack[3])-(double)dataPack[0]*dt) > 0) {
+        if((lastSpkTimes.getData(tar)-arrTime) > 0) {
             System.out.println("Bad time 2");
         }
        //         * ( 0.1 * ThreadLocalRandom.current().nextGaussian() + 1);
-//        if(wts.getRawData()[dataPack[1]]+1 < (-lRate * wMinus)) {
+//        if(wts.getRawData()[ind]+1 < (-lRate * wMinus)) {
 //            System.out.println("problem");
 //        }
             if(wts.getRawData()[ind] < 0) {
@@ -87,5 +114,61 @@ public final class HebSTDP implements STDP {
             }
     }
 
+    @Override
+    public void preTriggeredBatch(InterleavedSparseMatrix wts, EventPool evts, double[] incCur,
+                                  BufferedDoubleArray lastSpkTimes, double dt) {
+        final double [] w = wts.getRawData();
+        final FastMath.DecayTable table = FastMath.isTablesOn() ? getMinusTable(dt) : null;
+        final double ltp = lRate * wPlus * dt;
+        final double ltd = -lRate * wMinus * dt;
+        for (int jj = 0, n = evts.size(); jj < n; ++jj) {
+            int ind = evts.tOrdInd[jj];
+            int tar = evts.tar[jj];
+            incCur[tar] += w[ind] * evts.udf[jj];
+            double arrTime = (double)evts.arrStep[jj]*dt;
+            double lastSpk = lastSpkTimes.getData(tar);
+            if (lastSpk - arrTime == 0) {
+                w[ind + 1] = ltp;
+            } else {
+                w[ind + 1] = ltd * (table != null ? table.decay(arrTime - lastSpk)
+                        : Math.exp((lastSpk - arrTime) / tauMinus));
+            }
+            assert lastSpk <= arrTime : "Bad time 2";
+            if (w[ind] < 0) { // as in preTriggered, whose w + 1 check is commented out
+                w[ind] = 0;
+            }
+        }
+    }
+
+    private double plusKernel(double lastArr, double time, double dt) {
+        if (FastMath.isTablesOn()) {
+            return getPlusTable(dt).decay(time - lastArr);
+        }
+        return Math.exp((lastArr-time)/tauPlus);
+    }
+
+    private double minusKernel(double lastSpk, double arrTime, double dt) {
+        if (FastMath.isTablesOn()) {
+            return getMinusTable(dt).decay(arrTime - lastSpk);
+        }
+        return Math.exp((lastSpk - arrTime) / tauMinus);
+    }
+
+    private FastMath.DecayTable getPlusTable(double dt) {
+        FastMath.DecayTable table = plusTable;
+        if (table == null || !table.matches(tauPlus, dt)) {
+            plusTable = table = new FastMath.DecayTable(tauPlus, dt);
+        }
+        return table;
+    }
+
+    private FastMath.DecayTable getMinusTable(double dt) {
+        FastMath.DecayTable table = minusTable;
+        if (table == null || !table.matches(tauMinus, dt)) {
+            minusTable = table = new FastMath.DecayTable(tauMinus, dt);
+        }
+        return table;
+    }
+
 
 }
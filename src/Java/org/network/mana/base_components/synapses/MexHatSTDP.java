@@ -2,6 +2,7 @@ package Java.org.network.mana.base_components.synapses;
 
 import Java.org.network.mana.base_components.sparse.InterleavedSparseAddOn;
 import Java.org.network.mana.base_components.sparse.InterleavedSparseMatrix;
+import Java.org.network.mana.functions.FastMath;
 import Java.org.network.mana.utils.BufferedDoubleArray;
 
 import java.util.concurrent.ThreadLocalRandom;
@@ -24,6 +25,9 @@ public final class MexHatSTDP implements  STDP {
 
     public static final double twentRt = Math.pow(20, 1.0/4.0);
 
+    /** Tabulated gaussian, used if exp tables are on (see {@link FastMath}) and rebuilt if sigma or dt change. */
+    private volatile FastMath.GaussTable gaussTable;
+
     public MexHatSTDP() {
         setSigma(sig);
     }
@@ -49,32 +53,92 @@ public final class MexHatSTDP implements  STDP {
         for (int ii = start; ii < end; ii += wts.getInc()) {
             wts.getRawData()[ii + 1] = dt * mexicanHatWindow(sigSq, nrmTerm,
                     wPlus, wMinus,
-                    time - lastArrs.values[laLoc], lRate, wts.getRawData()[ii]);
+                    time - lastArrs.values[laLoc], lRate, wts.getRawData()[ii], getGaussTable(dt));
                    // * ( 0.1 * ThreadLocalRandom.current().nextGaussian() + 1);
             laLoc += lastArrs.getInc();
         }
     }
 
-    // data pack is {arrTime, rel tar ind, udfMultiplier}
+    @Override
+    public void postTriggeredAndAdd(InterleavedSparseMatrix wts, InterleavedSparseAddOn lastArrs, int neuNo,
+                                    double time, double dt) {
+        final double [] vals = wts.getRawData();
+        final double [] la = lastArrs.values;
+        final int inc = wts.getInc();
+        final int laInc = lastArrs.getInc();
+        final FastMath.GaussTable table = getGaussTable(dt);
+        int laLoc = wts.getStartIndex(neuNo, laInc);
+        for(int ii = wts.getStartIndex(neuNo), end = wts.getEndIndex(neuNo); ii<end; ii+=inc) {
+            double w = Math.min(vals[ii], 20);
+            double dw = dt * mexicanHatWindow(sigSq, nrmTerm, wPlus, wMinus, time - la[laLoc], lRate, w, table);
+            vals[ii+1] = dw;
+            vals[ii] = w + dw;
+            laLoc += laInc;
+        }
+    }
 
-    public void preTriggered(InterleavedSparseMatrix wts, int[] dataPack, BufferedDoubleArray lastSpkTimes, double dt) {
+    // the event is column evt of evts: {arrStep, tOrdInd, udf, tar, src, hash}
+
+    public void preTriggered(InterleavedSparseMatrix wts, EventPool evts, int evt, BufferedDoubleArray lastSpkTimes, double dt) {
 
         int ind;
-        if(dataPack[dataPack.length-1] == -1) {
-            ind = wts.find(dataPack[3], dataPack[4]);
+        if(evts.hash[evt] == -1) {
+            ind = wts.find(evts.tar[evt], evts.src[evt]);
         } else {
-            ind=dataPack[1];
+            ind=evts.tOrdInd[evt];
         }
         if(wts.getRawData()[ind] > 20) {
             wts.getRawData()[ind] = 20;
         }
         wts.getRawData()[ind + 1] = dt * mexicanHatWindow(sigSq, nrmTerm,
-                wPlus, wMinus, (dataPack[0] * dt) - lastSpkTimes.getData(dataPack[3]), lRate, wts.getRawData()[ind]);
+                wPlus, wMinus, (evts.arrStep[evt] * dt) - lastSpkTimes.getData(evts.tar[evt]), lRate, wts.getRawData()[ind],
+                getGaussTable(dt));
+    }
+
+    @Override
+    public void preTriggeredBatch(InterleavedSparseMatrix wts, EventPool evts, double[] incCur,
+                                  BufferedDoubleArray lastSpkTimes, double dt) {
+        final double [] w = wts.getRawData();
+        final FastMath.GaussTable table = getGaussTable(dt);
+        for (int jj = 0, n = evts.size(); jj < n; ++jj) {
+            int ind = evts.tOrdInd[jj];
+            int tar = evts.tar[jj];
+            incCur[tar] += w[ind] * evts.udf[jj];
+            if (w[ind] > 20) {
+                w[ind] = 20;
+            }
+            w[ind + 1] = dt * mexicanHatWindow(sigSq, nrmTerm, wPlus, wMinus,
+                    (evts.arrStep[jj] * dt) - lastSpkTimes.getData(tar), lRate, w[ind], table);
+        }
+    }
+
+    /**
+     * @return the tabulated gaussian for dt if exp tables are on, null otherwise.
+     */
+    private FastMath.GaussTable getGaussTable(double dt) {
+        if (!FastMath.isTablesOn()) {
+            return null;
+        }
+        FastMath.GaussTable table = gaussTable;
+        if (table == null || !table.matches(sig, dt)) {
+            gaussTable = table = new FastMath.GaussTable(sig, dt);
+        }
+        return table;
     }
 
     public static double mexicanHatWindow(double sigmaSq, double normTerm, double wplus,
                                           double wminus, double delta_t, double lrate, double wt) {
-        double dw = a * mexicanHatFunction(delta_t, sigmaSq, normTerm);
+        return mexicanHatWindow(sigmaSq, normTerm, wplus, wminus, delta_t, lrate, wt, null);
+    }
+
+    /**
+     * Same as {@link #mexicanHatWindow(double, double, double, double, double, double, double)} with the gaussian
+     * looked up in a table (with the same sigma) unless it is null.
+     */
+    public static double mexicanHatWindow(double sigmaSq, double normTerm, double wplus, double wminus,
+                                          double delta_t, double lrate, double wt, FastMath.GaussTable gauss) {
+        double dw = a * (gauss == null ? mexicanHatFunction(delta_t, sigmaSq, normTerm)
+                : mexicanHatFunction(delta_t, sigmaSq, normTerm, gauss));
         if (dw < 0) {
             dw *= -wminus;
         } else {
@@ -88,6 +152,11 @@ public final class MexHatSTDP implements  STDP {
         return normTerm * (1 - x_nrm_sq) * Math.exp(-0.5 * x_nrm_sq);
     }
 
+    public static double mexicanHatFunction(double x, double sigmaSq, double normTerm, FastMath.GaussTable gauss) {
+        double x_nrm_sq = (x * x) / sigmaSq;
+        return normTerm * (1 - x_nrm_sq) * gauss.gauss(x);
+    }
+
     public void setSigma(double sig) {
         this.sig = sig;
         sigSq = sig * sig;
@@ -25,7 +25,50 @@ public interface STDP {
 
     void postTriggered(InterleavedSparseMatrix wts, InterleavedSparseAddOn lastArrs, int neuNo, double time, double dt);
 
-    // data pack is {arrTime, rel tar ind, udfMultiplier}
+    /**
+     * Post-triggered STDP on the afferents of neuNo followed by adding their dws to their ws, i.e. the same as
+     * postTriggered(...) and then wts.addDw2W(neuNo, neuNo+1). Rules should override this to do both in a single pass
+     * over the afferents.
+     */
+    default void postTriggeredAndAdd(InterleavedSparseMatrix wts, InterleavedSparseAddOn lastArrs, int neuNo,
+                                     double time, double dt) {
+        postTriggered(wts, lastArrs, neuNo, time, dt);
+        wts.addDw2W(neuNo, neuNo+1);
+    }
+
+    /**
+     * Post-triggered STDP on the afferents of every target in [start, end) which spiked, and adding dws to ws for all
+     * synapses onto targets in [start, end). The targets which spiked are spkInds[from, to), in ascending order.
+     * Equivalent to {@link #postTriggeredAndAdd} for each of them and wts.addDw2W(...) over the runs of targets
+     * between them.
+     */
+    default void postTriggeredBatch(InterleavedSparseMatrix wts, InterleavedSparseAddOn lastArrs, int[] spkInds,
+                                    int from, int to, int start, int end, double time, double dt) {
+        int prev = start;
+        for (int kk = from; kk < to; ++kk) {
+            wts.addDw2W(prev, spkInds[kk]);
+            postTriggeredAndAdd(wts, lastArrs, spkInds[kk], time, dt);
+            prev = spkInds[kk] + 1;
+        }
+        wts.addDw2W(prev, end);
+    }
 
-    void preTriggered(InterleavedSparseMatrix wts, int[] dataPack, BufferedDoubleArray lastSpkTimes, double dt);
+    // the event is column evt of evts: {arrStep, tOrdInd, udf, tar, src, hash}
+
+    void preTriggered(InterleavedSparseMatrix wts, EventPool evts, int evt, BufferedDoubleArray lastSpkTimes, double dt);
+
+    /**
+     * Deposits the current of every event in a pool of arriving events on its target and applies pre-triggered STDP
+     * to its synapse, one event at a time in order: an event's current is weighted by its synapse's weight before
+     * that synapse's STDP. Every event's tOrdInd has been resolved, including those of invalidated events. Rules
+     * should override this to process the whole pool without a call per event.
+     */
+    default void preTriggeredBatch(InterleavedSparseMatrix wts, EventPool evts, double[] incCur,
+                                   BufferedDoubleArray lastSpkTimes, double dt) {
+        double [] w = wts.getRawData();
+        for (int jj = 0, n = evts.size(); jj < n; ++jj) {
+            incCur[evts.tar[jj]] += w[evts.tOrdInd[jj]] * evts.udf[jj];
+            preTriggered(wts, evts, jj, lastSpkTimes, dt);
+        }
+    }
 }
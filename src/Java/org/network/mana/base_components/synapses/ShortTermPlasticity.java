@@ -1,5 +1,6 @@
 package Java.org.network.mana.base_components.synapses;
 
+import Java.org.network.mana.base_components.sparse.OffHeapValues;
 import Java.org.network.mana.enums.SynapseType;
 
 import java.util.concurrent.ThreadLocalRandom;
@@ -19,6 +20,38 @@ public class ShortTermPlasticity {
 
     }
 
+    /**
+     * Same as {@link #getPSR_UDF(int, double, double[])} for values stored in single precision. The calculation
+     * itself is carried out in double precision.
+     */
+    public static void getPSR_UDF(int index, double time, float [] data) {
+        double isi = -((time + data[index]) - data[index+1]); // time + delay - lastArrival
+        if(isi > 0) {
+            throw new IllegalStateException("Anomalous ISI");
+        }
+        double u = data[index+2] + (data[index+5] * (1-(double)data[index+2])
+                * Math.exp(isi/data[index+4]));
+        data[index+5] = (float) u;
+        data[index+6] = (float) (1 + ((data[index+6] - (u * data[index+6]) - 1)
+                * Math.exp(isi/data[index+3])));
+    }
+
+    /**
+     * Same as {@link #getPSR_UDF(int, double, double[])} for values stored off the Java heap, at either precision.
+     * The calculation itself is carried out in double precision.
+     */
+    public static void getPSR_UDF(long index, double time, OffHeapValues data) {
+        double isi = -((time + data.get(index)) - data.get(index+1)); // time + delay - lastArrival
+        if(isi > 0) {
+            throw new IllegalStateException("Anomalous ISI");
+        }
+        double U = data.get(index+2);
+        double u = U + (data.get(index+5) * (1-U) * Math.exp(isi/data.get(index+4)));
+        double R = data.get(index+6);
+        data.set(index+5, u);
+        data.set(index+6, 1 + ((R - (u * R) - 1) * Math.exp(isi/data.get(index+3))));
+    }
+
     // Outbound values... delay, lastArr, U, D, F, u, R
     public static void setSourceDefaults(final double [] sData, int start, SynapseType type) {
         ThreadLocalRandom localRand = ThreadLocalRandom.current();
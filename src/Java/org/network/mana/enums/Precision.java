@@ -0,0 +1,24 @@
+package Java.org.network.mana.enums;
+
+/**
+ * The precision values in a sparse synapse matrix are stored at. Arithmetic is always carried out in double
+ * precision, FLOAT only affects how values are kept in memory (and so how many synapses fit in RAM and cache).
+ */
+public enum Precision {
+    DOUBLE {
+        @Override
+        public int getBytes() {
+            return Double.BYTES;
+        }
+    }, FLOAT {
+        @Override
+        public int getBytes() {
+            return Float.BYTES;
+        }
+    };
+
+    /**
+     * @return the number of bytes used to store a single value.
+     */
+    public abstract int getBytes();
+}
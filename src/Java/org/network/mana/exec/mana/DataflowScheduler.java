@@ -0,0 +1,216 @@
+package Java.org.network.mana.exec.mana;
+
+import Java.org.network.mana.base_components.neurons.InputNeurons;
+import Java.org.network.mana.base_components.neurons.Neuron;
+import Java.org.network.mana.mana_components.MANA_Node;
+import Java.org.network.mana.mana_components.MANA_Sector;
+import Java.org.network.mana.mana_components.MANA_Unit;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs MANA time steps without global barriers. Instead every node update and every sector/input
+ * synchronization is a task with a count of outstanding dependencies, and a task is submitted to the pool the
+ * moment its count reaches zero. For a node with source X and target sector S:
+ *
+ * <ul>
+ *     <li>node(t+1) waits for sync(X, t) and sync(S, t) (the spikes it reads and the currents it writes
+ *     are those of the previous step).</li>
+ *     <li>sync(S, t) waits for every child node of S at step t (the last of which also updates S) and every
+ *     node in another sector which reads S's spikes at step t, since synchronizing overwrites them.</li>
+ *     <li>sync(I, t) for external input I waits for every node reading I at step t.</li>
+ * </ul>
+ *
+ * Spikes and the other synchronized values are single-buffered, so no component can get more than one step
+ * ahead of a component it exchanges spikes with, but sectors whose neighbours are done are free to start
+ * their next step while slower, unrelated parts of the network are still finishing the current one.
+ *
+ * Since no task for step t+1 can receive a dependency notification until the task has itself completed
+ * step t, a single counter per task suffices; it is reset at the start of each run of the task.
+ *
+ * Structural plasticity is not handled here; callers must only run stretches of steps between plasticity
+ * events.
+ */
+public class DataflowScheduler {
+
+    private final ExecutorService pool;
+
+    private final List<NodeTask> nodeTasks = new ArrayList<>();
+    private final List<SyncTask> syncTasks = new ArrayList<>();
+
+    private double [] times;
+    private double dt;
+    private int noSteps;
+    private CountDownLatch done;
+
+    public DataflowScheduler(ExecutorService pool, List<MANA_Unit> units) {
+        this.pool = pool;
+        Map<Neuron, SyncTask> syncs = new IdentityHashMap<>();
+        for (MANA_Unit unit : units) {
+            SyncTask inp = new SyncTask(null, unit.externalInp);
+            syncs.put(unit.externalInp, inp);
+            syncTasks.add(inp);
+            for (MANA_Sector s : unit.sectors.values()) {
+                if (s.childNodes.isEmpty()) {
+                    throw new IllegalStateException("Sectors without nodes cannot be scheduled.");
+                }
+                SyncTask st = new SyncTask(s, null);
+                syncs.put(s.target, st);
+                syncTasks.add(st);
+            }
+        }
+        for (MANA_Unit unit : units) {
+            for (MANA_Node n : unit.nodes) {
+                NodeTask nt = new NodeTask(n);
+                SyncTask tarSync = syncs.get(n.parent_sector.target);
+                SyncTask srcSync = syncs.get(n.srcData);
+                if (srcSync == null) {
+                    throw new IllegalStateException("Node source belongs to no scheduled sector or input.");
+                }
+                nt.notify.add(tarSync);
+                nt.notify.add(srcSync);
+                tarSync.notify.add(nt);
+                srcSync.notify.add(nt);
+                nodeTasks.add(nt);
+            }
+        }
+        for (NodeTask nt : nodeTasks) {
+            nt.finish();
+        }
+        for (SyncTask st : syncTasks) {
+            st.finish();
+            if (st.noDeps == 0) { // only possible for inputs, sectors always have their child nodes
+                throw new IllegalStateException("Inputs which no node reads cannot be scheduled.");
+            }
+        }
+    }
+
+    /**
+     * Runs noSteps time steps and returns once all components have completed (and been synchronized for)
+     * the last of them.
+     * @param time the time of the first step
+     * @param dt integration time step
+     * @param noSteps number of steps to run
+     * @return the simulation time after the last step
+     */
+    public double run(double time, double dt, int noSteps) throws InterruptedException {
+        if (noSteps <= 0) {
+            return time;
+        }
+        this.dt = dt;
+        this.noSteps = noSteps;
+        if (times == null || times.length < noSteps) {
+            times = new double[noSteps];
+        }
+        for (int ii = 0; ii < noSteps; ++ii) {
+            times[ii] = time;
+            time += dt;
+        }
+        done = new CountDownLatch(syncTasks.size());
+        for (SyncTask st : syncTasks) {
+            st.step = 0;
+            st.pending.set(st.noDeps);
+        }
+        for (NodeTask nt : nodeTasks) {
+            nt.step = 0;
+            nt.pending.set(nt.noDeps);
+        }
+        for (NodeTask nt : nodeTasks) {
+            pool.execute(nt);
+        }
+        done.await();
+        return time;
+    }
+
+    private final class NodeTask implements Runnable {
+
+        final MANA_Node node;
+        /** The syncs which must wait for this node and which it waits for, at most 2. */
+        final Set<SyncTask> notify = new LinkedHashSet<>();
+        final AtomicInteger pending = new AtomicInteger();
+        int noDeps;
+        int step;
+
+        NodeTask(MANA_Node node) {
+            this.node = node;
+        }
+
+        void finish() {
+            noDeps = notify.size();
+        }
+
+        @Override
+        public void run() {
+            int s = step;
+            pending.set(noDeps);
+            try {
+                node.update(times[s], dt);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            step = s + 1;
+            for (SyncTask st : notify) {
+                if (st.pending.decrementAndGet() == 0) {
+                    pool.execute(st);
+                }
+            }
+        }
+    }
+
+    private final class SyncTask implements Runnable {
+
+        final MANA_Sector sector;
+        final InputNeurons inp;
+        /** The nodes which read from or write to this sector/input. */
+        final Set<NodeTask> notify = new LinkedHashSet<>();
+        final AtomicInteger pending = new AtomicInteger();
+        int noDeps;
+        int step;
+
+        SyncTask(MANA_Sector sector, InputNeurons inp) {
+            this.sector = sector;
+            this.inp = inp;
+        }
+
+        void finish() {
+            noDeps = notify.size();
+        }
+
+        @Override
+        public void run() {
+            int s = step;
+            pending.set(noDeps);
+            try {
+                if (sector != null) {
+                    sector.synchronize();
+                    for (MANA_Node n : sector.childNodes.values()) {
+                        n.updated.set(false);
+                    }
+                } else {
+                    inp.update(dt, times[s], inp.spks);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            step = s + 1;
+            if (step == noSteps) {
+                done.countDown();
+                return;
+            }
+            for (NodeTask nt : notify) {
+                if (nt.pending.decrementAndGet() == 0) {
+                    pool.execute(nt);
+                }
+            }
+        }
+    }
+
+}
@@ -1,6 +1,7 @@
 package Java.org.network.mana.exec.mana;
 
 import Java.org.network.mana.base_components.neurons.InputNeurons;
+import Java.org.network.mana.base_components.synapses.EventPool;
 import Java.org.network.mana.exec.Syncable;
 import Java.org.network.mana.globals.Default_Parameters;
 import Java.org.network.mana.mana_components.MANA_Node;
@@ -8,19 +9,61 @@ import Java.org.network.mana.mana_components.MANA_Sector;
 import Java.org.network.mana.mana_components.MANA_Unit;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Parses out a MANA_Unit into discrete tasks which wrap around MANA_Nodes, MANA_Sectors, and Structural_Plasticity.
  * These tasks are then submitted to a fixed thread pool with synchronization points between each stage.
  *
+ * Alternatively in {@link ExecutionMode#PERSISTENT_WORKERS} mode each of a fixed set of long-lived worker threads
+ * owns a fixed set of nodes and sectors and all workers (the calling thread being worker 0) advance through the
+ * update and synchronize phases of each time step together using a {@link SpinParkBarrier}. This avoids
+ * creating futures and waking pooled threads twice per time step.
+ *
+ * In {@link ExecutionMode#DATAFLOW} mode there are no global barriers at all, see {@link DataflowScheduler}.
+ * Batches of steps should then be run with {@link #invoke(int)} so components can run ahead of one another.
+ *
+ * In {@link ExecutionMode#FORK_JOIN} mode nodes are submitted most expensive first to a ForkJoinPool and nodes
+ * whose spiking sources or synapses are numerous enough have their source loop and per-target loops split
+ * into subtasks, so that one very large node does not hold up the whole time step.
+ *
  */
 public class MANA_Executor {
 
+	public enum ExecutionMode {
+		/** Tasks are submitted to a fixed thread pool via invokeAll at each stage. */
+		THREAD_POOL,
+		/** Long-lived workers own fixed sets of nodes and sectors and meet at spin-then-park barriers. */
+		PERSISTENT_WORKERS,
+		/** No global barriers, nodes and syncs run as soon as the components they depend on are ready. */
+		DATAFLOW,
+		/** Like THREAD_POOL, but expensive nodes are split into subtasks on a work-stealing ForkJoinPool. */
+		FORK_JOIN
+	}
+
+	/**
+	 * Approximate amount of work (synapses touched) below which a stage of a node's update is not
+	 * split further in fork/join mode.
+	 */
+	public static int FJ_GRAIN = 1 << 13;
+	/** Maximum number of subtasks any one stage of a node's update is split into. */
+	public static int FJ_MAX_SPLIT = 64;
+
+	// Barrier phases
+	private static final int PH_START = 0;
+	private static final int PH_SP = 1;
+	private static final int PH_SP_RELEASE = 2;
+	private static final int PH_UPDATE = 3;
+	private static final int PH_SYNC = 4;
+	private static final String [] PHASE_NAMES = {"start", "sp", "sp_release", "update", "sync"};
+
 	/** Amount of simulated time that has elapsed. */
 	private double time = 0;
 	/** Integration time step .*/
@@ -40,13 +83,45 @@ public class MANA_Executor {
 
     private AtomicBoolean invocationComplete = new AtomicBoolean(false);
 
+    public final ExecutionMode mode;
+
+    // Persistent worker state, workers only read these after passing a barrier.
+	private final int noWorkers;
+	private SpinParkBarrier barrier;
+	private Thread [] workers;
+	/** Indices into updateTasks/pruneTasks owned by each worker. */
+	private int [][] nodeAssignments;
+	private Callable<?> [][] syncAssignments;
+	private volatile boolean running = false;
+	private boolean spStep = false;
+	private int spNNZ = 0;
+
+	private DataflowScheduler dataflow;
+
 	/**
 	 * Mana_Units must be added in order for this to have something to update.
 	 * @param pruneInterval
 	 */
 	public MANA_Executor(final double pruneInterval) {
-		pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		this(pruneInterval, ExecutionMode.THREAD_POOL);
+	}
+
+	/**
+	 * Mana_Units must be added in order for this to have something to update.
+	 * @param pruneInterval
+	 * @param mode how updates are to be distributed across threads
+	 */
+	public MANA_Executor(final double pruneInterval, final ExecutionMode mode) {
+		this.mode = mode;
 		this.spInterval = pruneInterval;
+		this.noWorkers = Runtime.getRuntime().availableProcessors();
+		if (mode == ExecutionMode.FORK_JOIN) {
+			pool = new ForkJoinPool(noWorkers);
+		} else if (mode != ExecutionMode.PERSISTENT_WORKERS) {
+			pool = Executors.newFixedThreadPool(noWorkers);
+		} else {
+			pool = null;
+		}
 	}
 
 	/**
@@ -58,6 +133,15 @@ public class MANA_Executor {
 		this.dt = _dt;
 	}
 
+	/**
+	 * Mana_Units must be added in order for this to have something to update.
+	 * @param pruneInterval
+	 */
+	public MANA_Executor(final double pruneInterval, final double _dt, final ExecutionMode mode) {
+		this(pruneInterval, mode);
+		this.dt = _dt;
+	}
+
 	/**
 	 * Adds a MANA_Unit to this executor, the unit's updatable components are all stored and wrapped in callable
 	 * tasks for execution.
@@ -77,6 +161,127 @@ public class MANA_Executor {
 			pruneTasks.add(new StructuralPlasticityTask(n, maxID, maxOD, lambda, maxDist));
 		}
 		units.add(unit);
+		if (mode == ExecutionMode.PERSISTENT_WORKERS) {
+			assignWork();
+		}
+		dataflow = null; // Rebuild the dependency graph with the new unit on the next invocation
+	}
+
+	/**
+	 * Distributes nodes across persistent workers such that each has roughly the same number of
+	 * synapses to update (greedy, largest first) and deals out the synchronization tasks round robin.
+	 * Must only be called by worker 0 while all other workers are waiting at a barrier (or not yet started).
+	 */
+	private void assignWork() {
+		int noW = Math.max(1, Math.min(noWorkers, updateTasks.size()));
+		List<Integer> order = new ArrayList<>();
+		for(int ii = 0, n = updateTasks.size(); ii < n; ++ii) {
+			order.add(ii);
+		}
+		order.sort(Comparator.comparingLong((Integer ii) -> nodeCost(updateTasks.get(ii).node)).reversed());
+		List<List<Integer>> nAssign = new ArrayList<>();
+		List<List<Callable<?>>> sAssign = new ArrayList<>();
+		long [] loads = new long[noW];
+		for(int ii = 0; ii < noW; ++ii) {
+			nAssign.add(new ArrayList<>());
+			sAssign.add(new ArrayList<>());
+		}
+		for(int ind : order) {
+			int min = 0;
+			for(int ii = 1; ii < noW; ++ii) {
+				if (loads[ii] < loads[min]) {
+					min = ii;
+				}
+			}
+			nAssign.get(min).add(ind);
+			loads[min] += nodeCost(updateTasks.get(ind).node);
+		}
+		for(int ii = 0, n = syncTasks.size(); ii < n; ++ii) {
+			sAssign.get(ii % noW).add(syncTasks.get(ii));
+		}
+		if (workers != null && noW != workers.length) {
+			throw new IllegalStateException("Number of persistent workers cannot change once they have started.");
+		}
+		int [][] nA = new int[noW][];
+		Callable<?> [][] sA = new Callable<?>[noW][];
+		for(int ii = 0; ii < noW; ++ii) {
+			nA[ii] = nAssign.get(ii).stream().mapToInt(Integer::intValue).toArray();
+			sA[ii] = sAssign.get(ii).toArray(new Callable<?>[0]);
+		}
+		nodeAssignments = nA;
+		syncAssignments = sA;
+	}
+
+	/**
+	 * Rough cost of updating a node: one unit per synapse and per target neuron.
+	 */
+	private static long nodeCost(MANA_Node node) {
+		return node.getNNZ() + node.width;
+	}
+
+	/**
+	 * Starts the persistent workers, the calling thread always acts as worker 0.
+	 */
+	private void startWorkers() {
+		int noW = nodeAssignments.length;
+		barrier = new SpinParkBarrier(noW, PHASE_NAMES.length);
+		workers = new Thread[noW];
+		workers[0] = Thread.currentThread();
+		running = true;
+		for(int ii = 1; ii < noW; ++ii) {
+			final int id = ii;
+			workers[ii] = new Thread(() -> {
+				while (true) {
+					barrier.await(id, PH_START);
+					if (!running) {
+						return;
+					}
+					step(id);
+				}
+			}, "MANA-worker-" + ii);
+			workers[ii].setDaemon(true);
+			workers[ii].start();
+		}
+	}
+
+	/**
+	 * Everything a single persistent worker does in one time step after having passed the start barrier.
+	 * @param id the worker's id
+	 */
+	private void step(int id) {
+		if (spStep) {
+			for(int ind : nodeAssignments[id]) {
+				try {
+					pruneTasks.get(ind).call();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+			barrier.await(id, PH_SP);
+			if (id == 0) {
+				finishSP();
+			}
+			barrier.await(id, PH_SP_RELEASE);
+		}
+		for(int ind : nodeAssignments[id]) {
+			try {
+				updateTasks.get(ind).node.update(time, dt);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		barrier.await(id, PH_UPDATE);
+		for(Callable<?> c : syncAssignments[id]) {
+			try {
+				c.call();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		for(int ind : nodeAssignments[id]) {
+			updateTasks.get(ind).node.updated.set(false);
+		}
+		barrier.await(id, PH_SYNC);
 	}
 
 	/**
@@ -88,24 +293,74 @@ public class MANA_Executor {
 	 * @throws InterruptedException
 	 */
 	public void invoke() throws InterruptedException {
+		if (mode == ExecutionMode.DATAFLOW) {
+			invoke(1);
+			return;
+		}
+		invocationComplete.set(false);
+		boolean doSP = isSPStep();
+		if (mode == ExecutionMode.PERSISTENT_WORKERS) {
+			invokePersistent(doSP);
+		} else {
+			invokePool(doSP);
+		}
+		time += dt;
+		invocationComplete.set(true);
+//		ct.set(0);
+	}
+
+	/**
+	 * Advances the simulation by noSteps time steps, equivalent to calling {@link #invoke()} that many times.
+	 * In dataflow mode the steps between structural plasticity events are run as one batch without any
+	 * global barriers.
+	 * @param noSteps
+	 * @throws InterruptedException
+	 */
+	public void invoke(int noSteps) throws InterruptedException {
+		if (mode != ExecutionMode.DATAFLOW) {
+			for (int ii = 0; ii < noSteps; ++ii) {
+				invoke();
+			}
+			return;
+		}
 		invocationComplete.set(false);
-	    if(time > 0 && (int)(time/dt) %  (int)(spInterval /dt) == 0 && spOn) {
-	    	int nnz = 0;
-			for(MANA_Unit unit : units) {
-				nnz += unit.getTotalNNZ();
+		if (dataflow == null) {
+			dataflow = new DataflowScheduler(pool, units);
+		}
+		while (noSteps > 0) {
+			if (isSPStep()) {
+				startSP();
+				pool.invokeAll(pruneTasks);
+				finishSP();
 			}
-	    	System.out.println("========== " + nnz + " ==========");
-	        pool.invokeAll(pruneTasks);
-	        int nnz2 = 0;
-	        for(MANA_Unit unit : units) {
-	        	unit.revalidateDegrees();
-				nnz2 += unit.getTotalNNZ();
+			int batch = noSteps;
+			if (spOn) {
+				int spSteps = (int)(spInterval / dt);
+				int step = (int)(time / dt);
+				batch = Math.min(batch, (step / spSteps + 1) * spSteps - step);
 			}
-			System.out.println("======== " + nnz2 + " =========");
-			System.out.println("NET: ===== " + (nnz2-nnz) + " =========");
+			time = dataflow.run(time, dt, batch);
+			noSteps -= batch;
+		}
+		invocationComplete.set(true);
+	}
+
+	private boolean isSPStep() {
+		return time > 0 && (int)(time/dt) %  (int)(spInterval /dt) == 0 && spOn;
+	}
+
+	private void invokePool(boolean doSP) throws InterruptedException {
+	    if(doSP) {
+	    	startSP();
+	        pool.invokeAll(pruneTasks);
+	        finishSP();
         }
 		try {
-			pool.invokeAll(updateTasks);
+			if (mode == ExecutionMode.FORK_JOIN) {
+				((ForkJoinPool) pool).invoke(new UpdateAllAction());
+			} else {
+				pool.invokeAll(updateTasks);
+			}
 
 			pool.invokeAll(syncTasks);
 		} catch (Exception e) {
@@ -114,9 +369,89 @@ public class MANA_Executor {
 		for(UpdateTask t : updateTasks) {
 			t.node.updated.set(false);
 		}
-		time += dt;
-		invocationComplete.set(true);
-//		ct.set(0);
+	}
+
+	/**
+	 * The calling thread acts as worker 0 and passes through all the same barriers as the others.
+	 */
+	private void invokePersistent(boolean doSP) {
+		if (workers == null) {
+			startWorkers();
+		}
+		if (doSP) {
+			startSP();
+		}
+		spStep = doSP;
+		barrier.await(0, PH_START);
+		step(0);
+	}
+
+	private void startSP() {
+		spNNZ = 0;
+		for(MANA_Unit unit : units) {
+			unit.flushDeferredWeights(); // SP tasks look at the weights of other nodes
+			spNNZ += unit.getTotalNNZ();
+		}
+		System.out.println("========== " + spNNZ + " ==========");
+	}
+
+	/**
+	 * Called by a single thread once all structural plasticity tasks are complete.
+	 */
+	private void finishSP() {
+		int nnz2 = 0;
+		for(MANA_Unit unit : units) {
+			unit.revalidateDegrees();
+			nnz2 += unit.getTotalNNZ();
+		}
+		System.out.println("======== " + nnz2 + " =========");
+		System.out.println("NET: ===== " + (nnz2-spNNZ) + " =========");
+		if (mode == ExecutionMode.PERSISTENT_WORKERS) {
+			assignWork(); // synapse counts have changed; rebalance while the other workers wait
+		}
+	}
+
+	/**
+	 * Stops any threads owned by this executor. Must be called from the thread that calls invoke.
+	 */
+	public void shutdown() {
+		if (pool != null) {
+			pool.shutdown();
+		}
+		if (workers != null && running) {
+			running = false;
+			barrier.await(0, PH_START);
+		}
+	}
+
+	/**
+	 * @return a summary of how long (ms) each persistent worker has spent waiting at each barrier phase,
+	 * or an empty string if persistent workers are not in use.
+	 */
+	public String getPhaseWaitReport() {
+		if (barrier == null) {
+			return "";
+		}
+		long [][] waits = barrier.getWaitNanos();
+		StringBuilder sb = new StringBuilder("worker");
+		for(String ph : PHASE_NAMES) {
+			sb.append('\t').append(ph);
+		}
+		sb.append('\n');
+		for(int ii = 0; ii < waits.length; ++ii) {
+			sb.append(ii);
+			for(long w : waits[ii]) {
+				sb.append('\t').append(String.format("%.3f", w / 1E6));
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	public void resetPhaseWaitTimes() {
+		if (barrier != null) {
+			barrier.resetWaitTimes();
+		}
 	}
 
 	public class SectorSyncTask implements Callable<Syncable>{
@@ -173,6 +508,103 @@ public class MANA_Executor {
         }
 	}
 	
+	/**
+	 * Updates all nodes in fork/join mode, starting with the ones expected to take longest.
+	 */
+	private class UpdateAllAction extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void compute() {
+			List<NodeForkTask> tasks = new ArrayList<>(updateTasks.size());
+			for (UpdateTask t : updateTasks) {
+				tasks.add(new NodeForkTask(t.node));
+			}
+			tasks.sort(Comparator.comparingDouble((NodeForkTask t) -> t.cost).reversed());
+			invokeAll(tasks);
+		}
+	}
+
+	/**
+	 * Updates a single node, splitting the stages of the update into subtasks if the node is large.
+	 * The source loop is split across ranges of source neurons each of which stages its events in its own pool,
+	 * the pools are then merged into the event wheel in source order so that events are processed exactly as they
+	 * would be by a single thread.
+	 */
+	private class NodeForkTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		final MANA_Node node;
+		final double cost;
+
+		NodeForkTask(MANA_Node node) {
+			this.node = node;
+			this.cost = node.estimateCost();
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				int nnz = node.getNNZ();
+				int noSpks = node.countSourceSpikes();
+				int srcSplit = splits((long) noSpks * nnz / Math.max(1, node.height), node.height);
+				int tarSplit = splits(nnz + node.width, node.width);
+				if (srcSplit == 1 && tarSplit == 1) {
+					node.update(time, dt);
+					return;
+				}
+				node.startUpdate();
+				List<RecursiveAction> stage = new ArrayList<>();
+				EventPool [] staging = node.getStagingPools(srcSplit);
+				if (noSpks > 0) {
+					for (int ii = 0; ii < srcSplit; ++ii) {
+						final int start = ii * node.height / srcSplit;
+						final int end = (ii + 1) * node.height / srcSplit;
+						final EventPool pool = staging[ii];
+						stage.add(action(() -> node.scheduleSpikes(start, end, time, dt, pool)));
+					}
+				}
+				for (int ii = 0; ii < tarSplit; ++ii) {
+					final int start = ii * node.width / tarSplit;
+					final int end = (ii + 1) * node.width / tarSplit;
+					stage.add(action(() -> node.normalize(start, end)));
+				}
+				invokeAll(stage);
+				if (noSpks > 0) {
+					for (int ii = 0; ii < srcSplit; ++ii) {
+						node.mergeStagedEvents(staging[ii]);
+					}
+				}
+				node.processArrivingEvents(time, dt);
+				stage.clear();
+				for (int ii = 0; ii < tarSplit; ++ii) {
+					final int start = ii * node.width / tarSplit;
+					final int end = (ii + 1) * node.width / tarSplit;
+					stage.add(action(() -> node.updateTargets(start, end, time, dt)));
+				}
+				invokeAll(stage);
+				node.finishUpdate(time, dt);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+
+	}
+
+	private static int splits(long work, int max) {
+		return (int) Math.max(1, Math.min(Math.min(work / FJ_GRAIN, FJ_MAX_SPLIT), max));
+	}
+
+	private static RecursiveAction action(Runnable r) {
+		return new RecursiveAction() {
+			@Override
+			protected void compute() {
+				r.run();
+			}
+		};
+	}
+
 	public class UpdateTask implements Callable<MANA_Node> {
 
 		public final MANA_Node node;
@@ -191,6 +623,14 @@ public class MANA_Executor {
 	public double getTime() {
 		return time;
 	}
+
+	/**
+	 * Sets the simulation time, e.g. to continue from a {@link Java.org.network.mana.io.Checkpoint}. Must not be
+	 * called while a time step is being invoked.
+	 */
+	public void setTime(double time) {
+		this.time = time;
+	}
 	
 	public double getDt() {
 		return dt;
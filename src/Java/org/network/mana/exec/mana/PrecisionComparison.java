@@ -0,0 +1,100 @@
+package Java.org.network.mana.exec.mana;
+
+import Java.org.network.mana.base_components.synapses.EventPool;
+import Java.org.network.mana.enums.Ordering;
+import Java.org.network.mana.enums.Precision;
+import Java.org.network.mana.mana_components.COOManaMat;
+import Java.org.network.mana.mana_components.MANAMatrix;
+import Java.org.network.mana.mana_components.MANA_Node;
+import Java.org.network.mana.mana_components.MANA_Unit;
+
+import java.util.Random;
+
+import static Java.org.network.mana.globals.Default_Parameters.dt;
+
+/**
+ * Compares single against double precision storage of the source ordered synapse values (see
+ * {@link MANAMatrix#srcDataPrecision}) on the standard network built by {@link MANA_Unit#MANABuilder(String, int)}.
+ * Every node's synapse matrix is copied, the copy switched to single precision, and both are driven by the same
+ * Poisson spike trains. The events (arrival step and UDF response) they produce are compared one for one, as are
+ * the final UDF states of every synapse.
+ *
+ * Usage: PrecisionComparison inputFile [noNeurons] [noSteps] [rate (Hz)] [startTime (ms)]. Since last arrival times
+ * are absolute, the start time can be set to see how accuracy degrades late into long simulations.
+ */
+public class PrecisionComparison {
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.out.println("Usage: PrecisionComparison inputFile [noNeurons] [noSteps] [rate (Hz)] [startTime (ms)]");
+            return;
+        }
+        int numNeu = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int noSteps = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+        double rate = args.length > 3 ? Double.parseDouble(args[3]) : 10;
+        double startTime = args.length > 4 ? Double.parseDouble(args[4]) : 0;
+        MANA_Unit unit = MANA_Unit.MANABuilder(args[0], numNeu);
+        double pSpk = rate * dt / 1000;
+        Random rand = new Random(42);
+
+        long noEvts = 0, stepMismatches = 0, noSyn = 0;
+        double maxUDFErr = 0, sumUDFErr = 0, maxStateErr = 0;
+        EventPool dblEvts = new EventPool();
+        EventPool fltEvts = new EventPool();
+        for (MANA_Node node : unit.nodes) {
+            MANAMatrix dbl = node.getSynMatrix();
+            MANAMatrix flt = new MANAMatrix(new COOManaMat(dbl, Ordering.TARGET), dbl.src, dbl.tar);
+            flt.setSrcDataPrecision(Precision.FLOAT);
+            for (int tt = 0; tt < noSteps; ++tt) {
+                double time = startTime + tt * dt;
+                for (int ii = 0; ii < dbl.noSrc; ++ii) {
+                    if (rand.nextDouble() >= pSpk) {
+                        continue;
+                    }
+                    dbl.calcSpikeResponses(ii, time);
+                    flt.calcSpikeResponses(ii, time);
+                    dbl.addEvents(ii, time, dt, dblEvts);
+                    flt.addEvents(ii, time, dt, fltEvts);
+                }
+                if (dblEvts.size() != fltEvts.size()) {
+                    throw new IllegalStateException("Single and double precision produced different numbers of events.");
+                }
+                for (int kk = 0; kk < dblEvts.size(); ++kk) {
+                    if (dblEvts.arrStep[kk] != fltEvts.arrStep[kk]) {
+                        stepMismatches++;
+                    }
+                    double err = Math.abs(fltEvts.udf[kk] - dblEvts.udf[kk]) / Math.abs(dblEvts.udf[kk]);
+                    maxUDFErr = Math.max(maxUDFErr, err);
+                    sumUDFErr += err;
+                }
+                noEvts += dblEvts.size();
+                dblEvts.clear();
+                fltEvts.clear();
+            }
+            // Compare u and R of every synapse, the remaining values are only ever copied
+            for (int ii = 0; ii < dbl.noSrc; ++ii) {
+                int start = dbl.getOutDataSOrd().getStartIndex(ii);
+                int end = dbl.getOutDataSOrd().getEndIndex(ii);
+                for (int jj = start; jj < end; jj += dbl.getOutDataSOrd().getInc()) {
+                    for (int kk = 5; kk < 7; ++kk) {
+                        double d = dbl.getOutDataSOrd().valueAt(jj + kk);
+                        double f = flt.getOutDataSOrd().valueAt(jj + kk);
+                        maxStateErr = Math.max(maxStateErr, Math.abs(f - d) / Math.abs(d));
+                    }
+                    noSyn++;
+                }
+            }
+        }
+
+        int idxBytes = 4 * Integer.BYTES; // ordered indices in both orderings and both lookups
+        int tOrdBytes = 3 * Double.BYTES; // w, dw, last arrival
+        System.out.println("Synapses: " + noSyn + ", events: " + noEvts);
+        System.out.println("Bytes per synapse (excluding slack): double " + (idxBytes + tOrdBytes
+                + 7 * Precision.DOUBLE.getBytes()) + ", float " + (idxBytes + tOrdBytes + 7 * Precision.FLOAT.getBytes()));
+        System.out.println("Arrival step mismatches: " + stepMismatches);
+        System.out.println("UDF response relative error, max: " + maxUDFErr + " mean: "
+                + (noEvts == 0 ? 0 : sumUDFErr / noEvts));
+        System.out.println("Final u/R relative error, max: " + maxStateErr);
+    }
+
+}
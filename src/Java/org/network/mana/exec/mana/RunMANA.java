@@ -1,11 +1,20 @@
 package Java.org.network.mana.exec.mana;
 
+import Java.org.network.mana.base_components.neurons.LeakyIFwAdapt;
+import Java.org.network.mana.enums.Precision;
+import Java.org.network.mana.functions.FastMath;
 import Java.org.network.mana.functions.StructuralPlasticity;
 import Java.org.network.mana.globals.Default_Parameters;
+import Java.org.network.mana.io.AsyncMANAWriter;
+import Java.org.network.mana.io.Checkpoint;
 import Java.org.network.mana.io.MANAWriter;
+import Java.org.network.mana.mana_components.MANAMatrix;
+import Java.org.network.mana.mana_components.MANANeurons;
 import Java.org.network.mana.mana_components.MANA_Unit;
 
 import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 import static Java.org.network.mana.globals.Default_Parameters.dt;
 
@@ -14,6 +23,8 @@ public class RunMANA {
 	public static final String DEF_ODIR = "."+File.separator+"Outputs" + File.separator;
 	public static final String DEF_PREFIX = "MANA";
 	public static final double DEF_PRINT_INTERVAL = 6E5;
+	/** Default amount of simulated time between checkpoints, a multiple of the 1 s between progress reports. */
+	public static final double DEF_CHECKPOINT_INTERVAL = 6E5;
 
 	public static void main(String[] args) { // TODO: enable more complicated command line args...
 		System.out.println(System.getProperty("user.dir"));
@@ -25,6 +36,12 @@ public class RunMANA {
 		String odir = DEF_ODIR;
 		String prefix = DEF_PREFIX;
         double printInterval = 1000;
+		MANA_Executor.ExecutionMode execMode = MANA_Executor.ExecutionMode.THREAD_POOL;
+		boolean idleSkip = false;
+		boolean fastExp = false;
+		Path checkpointFile = null;
+		Path restoreFile = null;
+		double checkpointInterval = DEF_CHECKPOINT_INTERVAL;
         for (int ii = 0; ii < args.length; ++ii) {
             switch (args[ii]) {
                 case "-n":
@@ -61,6 +78,61 @@ public class RunMANA {
 						throw new IllegalArgumentException("Unknown input.");
 					}
 					break;
+				case "-exec":
+					String ex = args[++ii];
+					if (ex.equalsIgnoreCase("pool")) {
+						execMode = MANA_Executor.ExecutionMode.THREAD_POOL;
+					} else if (ex.equalsIgnoreCase("persistent")) {
+						execMode = MANA_Executor.ExecutionMode.PERSISTENT_WORKERS;
+					} else if (ex.equalsIgnoreCase("dataflow")) {
+						execMode = MANA_Executor.ExecutionMode.DATAFLOW;
+					} else if (ex.equalsIgnoreCase("forkjoin")) {
+						execMode = MANA_Executor.ExecutionMode.FORK_JOIN;
+					} else {
+						throw new IllegalArgumentException("Unknown input.");
+					}
+					break;
+				case "-idleSkip": // defers the weight updates of idle targets, see MANA_Node.setIdleSkipOn
+					idleSkip = true;
+					break;
+				case "-precision":
+					MANAMatrix.srcDataPrecision = Precision.valueOf(args[++ii].toUpperCase());
+					break;
+				case "-offHeap": // frees the heap, but each node is still limited to ~306M synapses (see README)
+					MANAMatrix.srcDataOffHeap = true;
+					break;
+				case "-spillDir":
+					MANAMatrix.srcDataOffHeap = true;
+					MANAMatrix.srcDataSpillDir = Paths.get(args[++ii]);
+					break;
+				case "-checkpoint":
+					checkpointFile = Paths.get(args[++ii]);
+					break;
+				case "-checkpointInterval":
+					checkpointInterval = Double.parseDouble(args[++ii]);
+					break;
+				case "-restore":
+					restoreFile = Paths.get(args[++ii]);
+					break;
+				case "-sortEvents":
+					MANAMatrix.sortEvents = true;
+					break;
+				case "-fastExp":
+					fastExp = true;
+					break;
+				case "-vectorLIF": // fused SIMD neuron update, see LIFVectorKernel
+					LeakyIFwAdapt.useVectorKernel = true;
+					break;
+				case "-fusedNeurons": // neuron update stages applied a block of neurons at a time
+					MANANeurons.fusedUpdateOn = true;
+					break;
+				case "-verifyFused": // check every fused neuron update against the unfused one (slow)
+					MANANeurons.fusedUpdateOn = true;
+					MANANeurons.verifyFusedUpdate = true;
+					break;
+				case "-fastExpTol":
+					FastMath.TOLERANCE = Double.parseDouble(args[++ii]);
+					break;
 				case "-pthresh":
 					Default_Parameters.DEF_Thresh = Double.parseDouble(args[++ii]);
 					break;
@@ -68,6 +140,9 @@ public class RunMANA {
                     throw new IllegalArgumentException("Unknown input.");
             }
         }
+		if (fastExp) {
+			FastMath.setTablesOn(true);
+		}
 		final double time_f = time_f0;
 		final double p_shutOff_f = plastShutOff0;
 		if(filename == null) {
@@ -75,7 +150,7 @@ public class RunMANA {
 					+ "spikes was specified--exiting...");
 		}
 		MANA_Unit unit = MANA_Unit.MANABuilder(filename, numNeu);
-		MANA_Executor exec = new MANA_Executor(spInterval); // initialize threads
+		MANA_Executor exec = new MANA_Executor(spInterval, execMode); // initialize threads
 		for(int ii=0, n=unit.nodes.size(); ii<n; ++ii) {
 			if (ii % (int) Math.ceil(unit.nodes.size()/Math.sqrt(unit.nodes.size()))  == 0) {
 				System.out.println();
@@ -89,6 +164,7 @@ public class RunMANA {
         boolean tripped = false;
 		exec.addUnit(unit, unit.getFullSize(), unit.getSize(), lambda, maxDist); // tell them what unit they'll be working on
 		unit.initialize(); // Set the various initial values that can only be set once weights/connectivity is known
+		unit.setIdleSkipOn(idleSkip);
 		File mainOut = new File(odir);
 		if (!mainOut.exists()) {
 			if (!mainOut.mkdir()) {
@@ -99,6 +175,31 @@ public class RunMANA {
 		}
 		long iters = 0;
 		boolean first = true;
+		if (restoreFile != null) {
+			try {
+				long t0 = System.nanoTime();
+				time = Checkpoint.restore(unit, restoreFile);
+				exec.setTime(time);
+				iters = Math.round(time/dt);
+				first = false;
+				System.out.println("Restored " + restoreFile + " at " + time + " ms in "
+						+ (System.nanoTime() - t0) / 1E6 + " ms");
+			} catch (Exception e) {
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
+		try {
+			// Spikes go straight to disk rather than accumulating for the whole run
+			unit.streamSpikesTo(mainOut.toPath(), prefix);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		long stepsPerCheckpoint = Math.max(1, Math.round(checkpointInterval/dt));
+		double lastCheckpoint = time;
+		// Snapshots are written in the background while the simulation carries on
+		AsyncMANAWriter writer = new AsyncMANAWriter(mainOut.toString(), prefix);
 		try {
 			while(time < time_f) {
 				if(time >= p_shutOff_f && !tripped) {
@@ -109,6 +210,28 @@ public class RunMANA {
 					unit.setSynPlasticOn(false);
 				}
 
+				if(checkpointFile != null && time != lastCheckpoint && iters%stepsPerCheckpoint == 0) {
+					Checkpoint.save(unit, time, checkpointFile);
+					lastCheckpoint = time;
+				}
+
+				int stepsPerPrint = (int)(1000/dt);
+				if(iters%stepsPerPrint != 0) {
+					// Nothing to print until the next print step, run up to it (or the next checkpoint) as one batch
+					int batch = (int) (stepsPerPrint - iters%stepsPerPrint);
+					if(checkpointFile != null) {
+						batch = (int) Math.min(batch, stepsPerCheckpoint - iters%stepsPerCheckpoint);
+					}
+					batch = Math.min(batch, (int) Math.ceil((time_f - time)/dt));
+					if(!tripped) {
+						batch = Math.min(batch, Math.max(1, (int) Math.ceil((p_shutOff_f - time)/dt)));
+					}
+					exec.invoke(batch);
+					time = exec.getTime();
+					iters += batch;
+					continue;
+				}
+
 				if(iters%((int)(1000/dt)) == 0) {
                     System.out.println((int)(iters*dt));
                 }
@@ -118,17 +241,38 @@ public class RunMANA {
 				if((iters)%(1000/ dt) == 0 && time != 0) {
 					System.out.println("------------- " + time + "------------- " );
 					if ((iters)%(50000/ dt) == 0 || first || iters == (int)(10000/dt) || iters == (int)(9000/dt)) {
-						MANAWriter.printData2Matlab(unit, mainOut.toString(), prefix, time, dt);
+						writer.submit(unit, time, dt);
 						first = false;
 					}
 				}
 				time = exec.getTime(); // get time from the executor
 				iters++;
 			}
+			if(checkpointFile != null) {
+				Checkpoint.save(unit, time, checkpointFile);
+			}
 		} catch (Exception ie) {
 			ie.printStackTrace();
 		} finally {
-			MANAWriter.printData2Matlab(unit, mainOut.toString(), prefix, time, dt);
+			try {
+				writer.submit(unit, time, dt);
+				writer.close();
+			} catch (Exception e) {
+				e.printStackTrace();
+				// Fall back on writing the final state from this thread
+				MANAWriter.printData2Matlab(unit, mainOut.toString(), prefix, time, dt);
+			} finally {
+				// Flushes the last partial chunk of each raster whatever happened to the writer
+				try {
+					unit.closeSpikeStreams();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+			System.out.println("Snapshot writing: " + writer.getWriteTime() + " ms, simulation stalled: "
+					+ writer.getStallTime() + " ms");
+			System.out.print(exec.getPhaseWaitReport());
+			exec.shutdown();
 		}
 
 	}
@@ -0,0 +1,98 @@
+package Java.org.network.mana.exec.mana;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A reusable barrier for a fixed set of long-lived parties. Parties which arrive early spin for a
+ * short while (phases in a MANA step are often only a few microseconds apart) and only then park,
+ * which avoids the cost of waking sleeping threads on every time step for small networks.
+ * The last party to arrive advances the generation and unparks anyone who went to sleep.
+ *
+ * Each party is identified by a fixed index in [0, parties) and must always call {@link #await(int, int)}
+ * with the same index. The time each party spends waiting is accumulated per phase so that load
+ * imbalance between parties can be diagnosed.
+ */
+public class SpinParkBarrier {
+
+    /** Number of times to spin before parking. */
+    public static int SPIN_LIMIT = 1 << 14;
+
+    private final int parties;
+    private final AtomicInteger arrived = new AtomicInteger(0);
+    private volatile int generation = 0;
+    private final Thread [] threads;
+    private final AtomicIntegerArray parked;
+    /** waitNanos[party][phase] */
+    private final long [][] waitNanos;
+
+    /**
+     * @param parties number of threads which must arrive before any are released
+     * @param noPhases number of distinct phases wait times are recorded for
+     */
+    public SpinParkBarrier(int parties, int noPhases) {
+        this.parties = parties;
+        threads = new Thread[parties];
+        parked = new AtomicIntegerArray(parties);
+        waitNanos = new long[parties][noPhases];
+    }
+
+    /**
+     * Blocks until all parties have called await.
+     * @param party the index of the calling party
+     * @param phase the phase the caller is waiting at (for bookkeeping only)
+     */
+    public void await(int party, int phase) {
+        long start = System.nanoTime();
+        int gen = generation;
+        if (arrived.incrementAndGet() == parties) {
+            arrived.set(0);
+            generation = gen + 1;
+            for (int ii = 0; ii < parties; ++ii) {
+                if (parked.get(ii) == 1) {
+                    LockSupport.unpark(threads[ii]);
+                }
+            }
+        } else {
+            int spins = 0;
+            while (generation == gen && spins < SPIN_LIMIT) {
+                Thread.onSpinWait();
+                spins++;
+            }
+            if (generation == gen) {
+                threads[party] = Thread.currentThread();
+                parked.set(party, 1);
+                while (generation == gen) {
+                    LockSupport.park(this);
+                }
+                parked.set(party, 0);
+            }
+        }
+        waitNanos[party][phase] += System.nanoTime() - start;
+    }
+
+    /**
+     * @return the total time in nanoseconds each party has spent waiting at each phase, indexed [party][phase].
+     * Only meaningful when read by a party between barriers.
+     */
+    public long[][] getWaitNanos() {
+        long [][] cpy = new long[parties][];
+        for (int ii = 0; ii < parties; ++ii) {
+            cpy[ii] = waitNanos[ii].clone();
+        }
+        return cpy;
+    }
+
+    public void resetWaitTimes() {
+        for (long [] w : waitNanos) {
+            Arrays.fill(w, 0);
+        }
+    }
+
+    public int getParties() {
+        return parties;
+    }
+
+}
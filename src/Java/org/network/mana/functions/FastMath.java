@@ -0,0 +1,140 @@
+package Java.org.network.mana.functions;
+
+/**
+ * Tabulated exponentials for the STDP kernels, which call exp for every synapse touched by a spike.
+ * {@link DecayTable} and {@link GaussTable} hold exp(-t/tau) and exp(-t^2/(2 sigma^2)) for one time constant at
+ * every multiple of dt. The STDP rules' time constants are fixed and their arguments (differences between spike and
+ * arrival times) are multiples of dt to within rounding, so nearly every call is a look up. STP and MHP, whose time
+ * constants vary from synapse to synapse or whose arguments are not times, stay on Math.exp, which is an intrinsic
+ * and as fast as any general table.
+ *
+ * Tables are off by default, in which case everything goes through Math.exp exactly as before. With them on
+ * (see {@link #setTablesOn(boolean)}) a look up is only used if its argument is close enough to the dt grid for the
+ * result to be within {@link #TOLERANCE} (relative) of Math.exp; any other argument goes to Math.exp.
+ */
+public final class FastMath {
+
+    /** The largest relative error with respect to Math.exp the tables are allowed. */
+    public static double TOLERANCE = 1E-12;
+
+    private static boolean tablesOn = false;
+
+    private FastMath() {
+    }
+
+    public static boolean isTablesOn() {
+        return tablesOn;
+    }
+
+    /**
+     * Switches the STDP kernels between looking exps up in tables and calling Math.exp.
+     * @param on
+     */
+    public static void setTablesOn(boolean on) {
+        tablesOn = on;
+    }
+
+    /**
+     * exp(-t/tau) for a fixed tau, tabulated at t = 0, dt, 2dt... for as long as it is not 0. Values are computed
+     * by Math.exp, so looking up a t which is exactly a multiple of dt gives exactly what Math.exp would. Any other
+     * t (more than rounding away from a multiple of dt, negative or beyond the table) is computed with Math.exp.
+     * Immutable, and so can be shared between threads.
+     */
+    public static final class DecayTable {
+
+        /** Tables are never longer than this, so that long time constants don't make for huge tables. */
+        public static int MAX_SIZE = 1 << 16;
+
+        public final double tau;
+
+        public final double dt;
+
+        private final double invDt;
+
+        private final double[] vals;
+
+        /** How far t can be from a multiple of dt and still be looked up. */
+        private final double quantTol;
+
+        public DecayTable(double tau, double dt) {
+            this.tau = tau;
+            this.dt = dt;
+            invDt = 1 / dt;
+            int size = (int) Math.min(MAX_SIZE, Math.ceil(746 * tau / dt));
+            vals = new double[size];
+            for (int ii = 0; ii < size; ++ii) {
+                vals[ii] = Math.exp(-(ii * dt) / tau);
+            }
+            // The error of rounding t to a multiple of dt is relative to tau
+            quantTol = Math.min(TOLERANCE * tau, 0.01 * dt);
+        }
+
+        /**
+         * @return exp(-t/tau)
+         */
+        public double decay(double t) {
+            int k = (int) (t * invDt + 0.5); // saturates for huge t, so never wraps around into the table
+            if (k < vals.length && Math.abs(t - k * dt) <= quantTol) {
+                return vals[k];
+            }
+            return Math.exp(-t / tau);
+        }
+
+        public boolean matches(double tau, double dt) {
+            return this.tau == tau && this.dt == dt;
+        }
+
+    }
+
+    /**
+     * exp(-0.5 * t^2/sigma^2) for a fixed sigma, tabulated at t = 0, dt, 2dt... for as long as it is not 0, in the
+     * same way as {@link DecayTable}.
+     */
+    public static final class GaussTable {
+
+        public final double sigma;
+
+        public final double dt;
+
+        private final double invDt;
+
+        private final double sigSq;
+
+        private final double[] vals;
+
+        private final double quantTol;
+
+        public GaussTable(double sigma, double dt) {
+            this.sigma = sigma;
+            this.dt = dt;
+            invDt = 1 / dt;
+            sigSq = sigma * sigma;
+            int size = (int) Math.min(DecayTable.MAX_SIZE, Math.ceil(Math.sqrt(2 * 746) * sigma / dt));
+            vals = new double[size];
+            for (int ii = 0; ii < size; ++ii) {
+                double t = ii * dt;
+                vals[ii] = Math.exp(-0.5 * ((t * t) / sigSq));
+            }
+            // Rounding t to a multiple of dt by d is off by about d*t/sigma^2 (relative), and t < 39 sigma here
+            quantTol = Math.min(TOLERANCE * sigma / 40, 0.01 * dt);
+        }
+
+        /**
+         * @return exp(-0.5 * t^2/sigma^2)
+         */
+        public double gauss(double t) {
+            double at = Math.abs(t);
+            int k = (int) (at * invDt + 0.5);
+            if (k < vals.length && Math.abs(at - k * dt) <= quantTol) {
+                return vals[k];
+            }
+            return Math.exp(-0.5 * ((t * t) / sigSq));
+        }
+
+        public boolean matches(double sigma, double dt) {
+            return this.sigma == sigma && this.dt == dt;
+        }
+
+    }
+
+}
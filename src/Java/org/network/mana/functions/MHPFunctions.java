@@ -39,12 +39,17 @@ public class MHPFunctions {
 
 	public static void calcfTerm(final double[] pfrs, final long[] fVals,
 								 double alpha, double beta, double lowFR) {
+		calcfTerm(pfrs, fVals, alpha, beta, lowFR, 0, pfrs.length);
+	}
+
+	public static void calcfTerm(final double[] pfrs, final long[] fVals,
+								 double alpha, double beta, double lowFR, int start, int end) {
 		double blowf = beta * lowFR;
-		for(int ii=0, n=pfrs.length; ii<n; ++ii) {
+		for(int ii=start; ii<end; ++ii) {
 			fVals[ii] = Float.floatToIntBits((float)Math.exp(-pfrs[ii]/blowf));
 			fVals[ii] <<= 32;
 		}
-		for(int ii=0, n=pfrs.length; ii<n; ++ii) {
+		for(int ii=start; ii<end; ++ii) {
 			fVals[ii] |= (long) Float.floatToIntBits((float) mhpLTDTerm(pfrs[ii], alpha, lowFR));
 		}
 	}
@@ -1,20 +1,18 @@
 package Java.org.network.mana.functions;
 
 import Java.org.network.mana.base_components.neurons.Neuron;
-import Java.org.network.mana.base_components.sparse.SrcTarDataPack;
-import Java.org.network.mana.base_components.sparse.SrcTarPair;
+import Java.org.network.mana.base_components.sparse.InterleavedSparseMatrix;
 import Java.org.network.mana.base_components.synapses.ShortTermPlasticity;
 import Java.org.network.mana.enums.ConnectRule;
-import Java.org.network.mana.enums.Ordering;
 import Java.org.network.mana.enums.SynapseType;
 import Java.org.network.mana.globals.Default_Parameters;
-import Java.org.network.mana.mana_components.COOManaMat;
 import Java.org.network.mana.mana_components.MANAMatrix;
 import Java.org.network.mana.mana_components.MANANeurons;
 import Java.org.network.mana.mana_components.MANA_Node;
+import Java.org.network.mana.utils.SpatialGrid;
 import Java.org.network.mana.utils.Utils;
 
-import java.util.ListIterator;
+import java.util.Arrays;
 import java.util.concurrent.ThreadLocalRandom;
 
 public class StructuralPlasticity {
@@ -24,86 +22,139 @@ public class StructuralPlasticity {
         GLOBAL_MAX, LOCAL_MAX
     }
     public static SPTechnique pruneTechnique = SPTechnique.GLOBAL_MAX; // TODO: make this better than a static var....
+    /**
+     * Growth probability below which pairs are considered "far" and sampled sparsely rather than checked one by one;
+     * sets the cutoff distance for the spatial search. Only affects speed, not which synapses are grown (on average).
+     */
+    public static double FAR_PROB = 1E-3;
 
+    /**
+     * Prunes and grows the synapses of a node, in place. Every existing synapse is considered for removal and every
+     * unconnected pair of neurons for a new synapse (synapses pruned this round are not regrown in the same round),
+     * though only pairs close enough to have a non-negligible chance of connecting are actually visited one by one.
+     * The changes are then applied to the node's synapse matrix as one batch, so beyond making the decisions the
+     * cost is proportional to the number of synapses added and removed, not to the size of the matrix. Pending
+     * synaptic events refer to positions in the matrix which may no longer be valid and must be discarded.
+     * @return the node's synapse matrix
+     */
     public static MANAMatrix pruneGrow(MANA_Node node, Neuron src, MANANeurons tar,
                                        int noOutP, int noInP, double lambda, double c_x,
                                        double maxDist, double time, double maxWt) {
-        COOManaMat coo = new COOManaMat(node.getSynMatrix(), Ordering.SOURCE);
+        MANAMatrix mat = node.getSynMatrix();
         boolean rec = src == tar;
-        ListIterator<SrcTarDataPack> dataIter = coo.data.listIterator();
         int[] inDegs = tar.getProperInDegrees(src);
-        int [] noAdded = new int[src.getSize()];
+        int[] outDegs = src.getOutDegree();
 
         int noRemoved=0;
-        int addcount = 0;
+        Growth growth = new Growth();
         try {
-  //          double [] threshVals = pruneTechnique == SPTechnique.LOCAL_MAX ?
-   //                 node.parent_sector.getThreshWeight(DEF_Thresh, time, node.srcData.isExcitatory()) : null;
-
-//            List<SrcTarDataPack> toRemove = new ArrayList<>();
-//            List<SrcTarDataPack> toAdd = new ArrayList<>();
+            // Decide which synapses to prune, target by target
+            InterleavedSparseMatrix wts = mat.getWeightsTOrd();
+            double [] wVals = wts.getRawData();
+            int [] srcInds = wts.getRawOrdIndices();
+            int wInc = wts.getInc();
+            double thresh = pruneTechnique == SPTechnique.LOCAL_MAX ? 0//DEF_Thresh*(1-Math.sqrt(datum.values[0]/val))
+                    : maxWt * Default_Parameters.DEF_Thresh;
+            for (int jj = 0; jj < tar.getSize(); ++jj) {
+                for (int kk = wts.getStartIndex(jj) / wInc, n = wts.getEndIndex(jj) / wInc; kk < n; ++kk) {
+                    if (pruneDecision(outDegs[srcInds[kk]], noOutP, inDegs[jj], noInP, wVals[kk * wInc], thresh)) {
+                        mat.markForRemoval(kk);
+                        noRemoved++;
+                    }
+                }
+            }
 
-            // thresh = exc ? thresh : thresh * 2;
-            for (int ii = 0; ii < src.getSize(); ++ii) { // TODO it makes more sense for this to be in the opposite order and iterated that way
-                for (int jj = 0; jj < tar.getSize(); ++jj) {
-                    if (rec && ii == jj) {
+            // Decide where to grow synapses. Pairs within the cutoff distance are found with the unit's spatial
+            // index and each is tried directly. Beyond the cutoff every pair's probability is at most pFar, so
+            // candidates are drawn with probability pFar by skipping geometrically distributed runs of targets and
+            // each candidate is then kept with probability p/pFar, which is the same as trying each pair with p.
+            InterleavedSparseMatrix out = mat.getOutDataSOrd();
+            int [] tarInds = out.getRawOrdIndices();
+            int sInc = out.getInc();
+            double conProb = Default_Parameters.NEW_SYN_CONST //(0.05 * Math.exp(-inDegs[jj] / 5.0))
+                    * ConnectRule.getConProbBase(src.isExcitatory(), tar.isExcitatory()) + Default_Parameters.DEF_CON_CONST;
+            SynapseType type = SynapseType.getSynType(src.isExcitatory(), tar.isExcitatory());
+            double lamSq = lambda * lambda;
+            double cutoff = conProb > FAR_PROB ? lambda * Math.sqrt(Math.log(conProb / FAR_PROB)) : 0;
+            double cutSq = cutoff * cutoff;
+            double pFar = Math.min(conProb, FAR_PROB);
+            double logNoHit = Math.log1p(-pFar);
+            double [][] srcXYZ = src.getCoordinates(false);
+            double [][] tarXYZ = tar.getCoordinates(false);
+            SpatialGrid grid = cutoff > 0 ? node.parent_sector.parent.getSpatialIndex(tar, lambda) : null;
+            int [] near = new int[tar.getSize()];
+            double [] nearDistSq = new double[tar.getSize()];
+            ThreadLocalRandom rand = ThreadLocalRandom.current();
+            for (int ii = 0; ii < src.getSize(); ++ii) {
+                int start = out.getStartIndex(ii) / sInc;
+                int end = out.getEndIndex(ii) / sInc;
+                int noNear = grid == null ? 0 : grid.within(srcXYZ[ii], cutoff, near, nearDistSq);
+                for (int kk = 0; kk < noNear; ++kk) {
+                    int jj = near[kk];
+                    if ((rec && ii == jj) || Arrays.binarySearch(tarInds, start, end, jj) >= 0) {
                         continue;
                     }
-                    if (dataIter.hasNext()) {
-                        SrcTarDataPack datum = coo.data.get(dataIter.nextIndex());
-                        if (datum.coo.src == ii && datum.coo.tar == jj) {
-                            SrcTarDataPack dat = dataIter.next();
-                            //double val = threshVals[jj]/DEF_Thresh;
-                            if (pruneDecision(src.getOutDegree()[ii],
-                                    noOutP, inDegs[jj],
-                                    noInP, datum.values[0], pruneTechnique == SPTechnique.LOCAL_MAX ? 0//DEF_Thresh*(1-Math.sqrt(datum.values[0]/val))
-                                            : maxWt * Default_Parameters.DEF_Thresh)) {
-                                dataIter.remove();
-                            //    node.removeEvent(dat.coo.hashCode());
-                                //toRemove.add(dat);
-                                noRemoved++;
-                            }
-                            continue;
-                        }
+                    double dly = growDecision(nearDistSq[kk], conProb, lamSq, maxDist, 1);
+                    if (dly >= 0) {
+                        growth.add(ii, jj, dly, type);
                     }
-                    // if (noAdded[ii] < maxAdd) { // We have not added the maximum number of allowed synapses from this source
-                    double newDly = growDecision(src.getCoordinates(false)[ii], tar.getCoordinates(false)[jj],
-                            Default_Parameters.NEW_SYN_CONST //(0.05 * Math.exp(-inDegs[jj] / 5.0))
-                                    * ConnectRule.getConProbBase(src.isExcitatory(), tar.isExcitatory()) + Default_Parameters.DEF_CON_CONST,
-                            lambda, maxDist);
-                    if (newDly > 0) {
-                        double[] data = new double[11];
-                        data[0] = Default_Parameters.DEF_NEW_WEIGHT;
-                        data[1] = Default_Parameters.DEF_INIT_WDERIV * Default_Parameters.STDP_TIME_CONST;
-                        ShortTermPlasticity.setSourceDefaults(data, 2, SynapseType.getSynType(src.isExcitatory(),
-                                tar.isExcitatory()));
-                        data[2] = newDly;
-                        data[3] = 0; // as far as UDF is concerned this has never spiked, redundant, but important
-                        data[9] = time; // As far as STDP is concerned we're going to pretend a spike arrived now
-                        noAdded[ii]++;
-                        SrcTarDataPack newDatum = new SrcTarDataPack(new SrcTarPair(ii, jj), data);
-                        dataIter.add(newDatum);
-                        addcount++;
+                }
+                if (pFar <= 0) {
+                    continue;
+                }
+                for (int jj = -1; ; ) {
+                    jj += pFar >= 1 ? 1 : 1 + (int) Math.min(tar.getSize(), Math.log(1 - rand.nextDouble()) / logNoHit);
+                    if (jj >= tar.getSize()) {
+                        break;
+                    }
+                    double distSq = Utils.euclideanSq(srcXYZ[ii], tarXYZ[jj]);
+                    if ((grid != null && distSq <= cutSq) || (rec && ii == jj) || Arrays.binarySearch(tarInds, start, end, jj) >= 0) {
+                        continue;
+                    }
+                    double dly = growDecision(distSq, conProb, lamSq, maxDist, pFar);
+                    if (dly >= 0) {
+                        growth.add(ii, jj, dly, type);
                     }
-                    // }
-
                 }
             }
-            coo.data.sort(Ordering.orderTypeTupleComp(Ordering.TARGET));
-            int tarLinInd = 0;
-            for (SrcTarDataPack tup : coo.data) {
-                tup.values[10] = tarLinInd++;
-            }
+            mat.applyStructuralChanges(growth.src, growth.tar, growth.tarVals, growth.srcVals, growth.size, time);
         } catch (Exception e) {
             e.printStackTrace();
         }
         System.out.println("REMOVED: " + noRemoved);
-        System.out.println("ADDED: " + addcount);
+        System.out.println("ADDED: " + growth.size);
+        return mat;
+    }
 
-        coo.data.sort(Ordering.orderTypeTupleComp(Ordering.SOURCE));
-        //return new MANAMatrix(mat.getOffsetSrc(), mat.getOffsetTar(), coo, src, tar);
-        return new MANAMatrix(coo, src, tar);
+    /**
+     * New synapses in the form {@link MANAMatrix#applyStructuralChanges} takes them.
+     */
+    private static final class Growth {
+        int [] src = new int[16];
+        int [] tar = new int[16];
+        double [] tarVals = new double[32];
+        double [] srcVals = new double[16 * 7];
+        int size = 0;
 
+        void add(int srcInd, int tarInd, double dly, SynapseType type) {
+            if (size == src.length) {
+                src = Arrays.copyOf(src, 2 * size);
+                tar = Arrays.copyOf(tar, 2 * size);
+                tarVals = Arrays.copyOf(tarVals, 2 * tarVals.length);
+                srcVals = Arrays.copyOf(srcVals, 2 * srcVals.length);
+            }
+            src[size] = srcInd;
+            tar[size] = tarInd;
+            // w, dw
+            tarVals[2 * size] = Default_Parameters.DEF_NEW_WEIGHT;
+            tarVals[2 * size + 1] = Default_Parameters.DEF_INIT_WDERIV * Default_Parameters.STDP_TIME_CONST;
+            // delay, lastArr, U, D, F, u, R
+            ShortTermPlasticity.setSourceDefaults(srcVals, 7 * size, type);
+            srcVals[7 * size] = dly;
+            srcVals[7 * size + 1] = 0; // as far as UDF is concerned this has never spiked, redundant, but important
+            srcVals[7 * size + 5] = 0;
+            size++;
+        }
     }
 
     public static boolean pruneDecision(int srcOutDegree,
@@ -119,11 +170,16 @@ public class StructuralPlasticity {
         }
     }
 
-    public static double growDecision(double[] xyz1, double xyz2[], double c_x, double lambda, double maxDist) {
-        double dist = Utils.euclidean(xyz1, xyz2);
-        double prob = c_x * Math.exp(-(dist*dist)/(lambda*lambda));
-        if (ThreadLocalRandom.current().nextDouble() < prob) {
-            return (dist/maxDist)* Default_Parameters.MAX_DELAY;
+    /**
+     * Decides whether to grow a synapse between a pair of neurons distSq apart (squared), which connect with
+     * probability c_x * exp(-distSq/lamSq).
+     * @param pDrawn probability with which the pair was drawn as a candidate in the first place (1 if every pair is
+     *               tried), the pair is kept with the connection probability divided by this
+     * @return the new synapse's delay, or -1 if it isn't grown
+     */
+    public static double growDecision(double distSq, double c_x, double lamSq, double maxDist, double pDrawn) {
+        if (ThreadLocalRandom.current().nextDouble() * pDrawn < c_x * Math.exp(-distSq / lamSq)) {
+            return Math.sqrt(distSq) / maxDist * Default_Parameters.MAX_DELAY;
         }
         return -1;
     }
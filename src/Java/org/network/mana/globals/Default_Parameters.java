@@ -29,6 +29,8 @@ public class Default_Parameters {
     public static final double default_inh_ref_p = 2;
     public static final double default_inh_adatpJ = 10;
     public static final double default_exc_adaptJ = 15;
+    /** Standard deviation of the gaussian noise added to membrane potentials each time step. */
+    public static final double default_v_noise = 0.05;
 
 
     // -------------------------------------META HOMEOSTATIC PLASTICITY
@@ -0,0 +1,29 @@
+package Java.org.network.mana.io;
+
+/**
+ * Spike trains held in memory, one array of spike times per neuron.
+ */
+public class ArraySpikeTrains implements SpikeTrainSource {
+
+    public final double[][] spkTimes;
+
+    public ArraySpikeTrains(final double[][] spkTimes) {
+        this.spkTimes = spkTimes;
+    }
+
+    @Override
+    public int getNoNeurons() {
+        return spkTimes.length;
+    }
+
+    @Override
+    public int getNoSpikes(int neu) {
+        return spkTimes[neu].length;
+    }
+
+    @Override
+    public double getSpikeTime(int neu, int ind) {
+        return spkTimes[neu][ind];
+    }
+
+}
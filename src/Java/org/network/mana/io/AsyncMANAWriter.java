@@ -0,0 +1,137 @@
+package Java.org.network.mana.io;
+
+import Java.org.network.mana.mana_components.MANA_Unit;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the same .mat files as {@link MANAWriter#printData2Matlab} but on a background thread, so that the
+ * simulation only stops long enough to copy the data out of the unit (see {@link MANAWriter#takeSnapshot}); building
+ * the matlab arrays, compressing and writing them happens while the workers carry on.
+ *
+ * Snapshots are double buffered: at most one is being written while one more waits to be written. If the simulation
+ * produces snapshots faster than they can be written {@link #submit} blocks until the oldest has been written rather
+ * than letting snapshots (each the size of the whole weight matrix) pile up. Time spent blocked is reported by
+ * {@link #getStallTime()}.
+ *
+ * Not thread safe; snapshots are meant to be submitted by the single thread driving the simulation.
+ */
+public class AsyncMANAWriter implements AutoCloseable {
+
+    /** Marks the end of the queue. */
+    private static final MANAWriter.Snapshot POISON = new MANAWriter.Snapshot(0, 0, 0, null, null, null);
+
+    public final String outDir;
+
+    public final String outPrefix;
+
+    private final BlockingQueue<MANAWriter.Snapshot> pending = new ArrayBlockingQueue<>(1);
+
+    private final Thread writer;
+
+    private volatile Throwable failure;
+
+    private volatile long writeNanos = 0;
+
+    private long stallNanos = 0;
+
+    private boolean closed = false;
+
+    public AsyncMANAWriter(final String outDir, final String outPrefix) {
+        this.outDir = outDir;
+        this.outPrefix = outPrefix;
+        writer = new Thread(this::run, "mana-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                MANAWriter.Snapshot snap = pending.take();
+                if (snap == POISON) {
+                    return;
+                }
+                long t0 = System.nanoTime();
+                MANAWriter.writeSnapshot(snap, outDir, outPrefix);
+                writeNanos += System.nanoTime() - t0;
+            }
+        } catch (Throwable t) {
+            failure = t;
+        }
+    }
+
+    /**
+     * Takes a snapshot of the unit and queues it to be written, blocking if the previous snapshot is still waiting
+     * to be written. Must be called between time steps.
+     * @param unit
+     * @param time
+     * @param dt
+     * @throws InterruptedException
+     */
+    public void submit(final MANA_Unit unit, final double time, final double dt) throws InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("Writer has been closed.");
+        }
+        checkFailure();
+        MANAWriter.Snapshot snap = MANAWriter.takeSnapshot(unit, time, dt);
+        long t0 = System.nanoTime();
+        enqueue(snap);
+        stallNanos += System.nanoTime() - t0;
+    }
+
+    /**
+     * Waits for room in the queue, but not on a writer which has died.
+     */
+    private void enqueue(MANAWriter.Snapshot snap) throws InterruptedException {
+        while (!pending.offer(snap, 100, TimeUnit.MILLISECONDS)) {
+            checkFailure();
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new IllegalStateException("Background writer failed.", failure);
+        }
+    }
+
+    /**
+     * @return total time (ms) the simulation spent waiting for the writer to catch up.
+     */
+    public double getStallTime() {
+        return stallNanos / 1E6;
+    }
+
+    /**
+     * @return total time (ms) the writer has spent writing snapshots.
+     */
+    public double getWriteTime() {
+        return writeNanos / 1E6;
+    }
+
+    /**
+     * Waits for every submitted snapshot to be written and stops the writer thread.
+     * @throws IllegalStateException if the writer failed or this thread was interrupted while waiting for it (in
+     * which case its interrupt status is set again)
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (failure == null) {
+            try {
+                enqueue(POISON);
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the background writer.", e);
+            }
+        }
+        checkFailure();
+    }
+
+}
@@ -0,0 +1,91 @@
+package Java.org.network.mana.io;
+
+import Java.org.network.mana.mana_components.MANA_Unit;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary snapshots of the complete state of a {@link MANA_Unit} and the simulation time, from which a simulation can
+ * be continued (after a crash, or to run several experiments from the same warmed up network). A checkpoint holds
+ * the input neurons' replay state followed by each sector: its target neurons (membrane state, homeostatic and
+ * meta-homeostatic variables...), its own accumulators and then every node's synapses (both orderings, including
+ * slack) and pending events. Everything is written in bulk through NIO channels so saving and restoring are bounded
+ * by the disk.
+ *
+ * Checkpoints are restored into a unit built the same way as the one that was saved, i.e. with the same number of
+ * neurons reading the same input file. Everything which depends on the particular random network that was built
+ * (locations, synapses, time constants...) is overwritten. The only state which is not saved is that of
+ * ThreadLocalRandom, which can't be captured, so the noise (and synapses added by structural plasticity) after a
+ * restore are statistically, but not exactly, what they would have been. The vector kernel's generators (see
+ * {@link Java.org.network.mana.base_components.neurons.LIFVectorKernel}) are restored.
+ *
+ * A checkpoint is written to a temporary file next to its destination and then moved in place, so a crash while
+ * saving never leaves a partial checkpoint behind in place of the last good one.
+ */
+public class Checkpoint {
+
+    private static final int MAGIC = 0x4D414E41; // "MANA"
+    private static final int VERSION = 3;
+
+    /**
+     * Writes the state of the unit at the given time. Must only be called between time steps.
+     * @param unit
+     * @param time the current simulation time (see {@link Java.org.network.mana.exec.mana.MANA_Executor#getTime()})
+     * @param file
+     * @throws IOException
+     */
+    public static void save(MANA_Unit unit, double time, Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             StateOutput out = new StateOutput(ch)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeDouble(time);
+            unit.writeState(out);
+            out.writeInt(MAGIC);
+            out.flush();
+            ch.force(false);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Restores the state written by {@link #save(MANA_Unit, double, Path)} into a unit built the same way as the one
+     * that was saved.
+     * @param unit
+     * @param file
+     * @return the simulation time at which the checkpoint was taken, which the executor should be set to.
+     * @throws IOException
+     */
+    public static double restore(MANA_Unit unit, Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ);
+             StateInput in = new StateInput(ch)) {
+            int magic = in.readInt();
+            if (magic == Integer.reverseBytes(MAGIC)) {
+                throw new IllegalStateException("Checkpoint was written on a machine with a different byte order than "
+                        + ByteOrder.nativeOrder() + ".");
+            }
+            if (magic != MAGIC) {
+                throw new IllegalStateException(file + " is not a MANA checkpoint.");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IllegalStateException("Unsupported checkpoint version: " + version);
+            }
+            double time = in.readDouble();
+            unit.readState(in);
+            if (in.readInt() != MAGIC) {
+                throw new IllegalStateException("Checkpoint is corrupt.");
+            }
+            return time;
+        }
+    }
+
+}
@@ -10,16 +10,49 @@ import com.jmatio.types.MLDouble;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Scanner;
 
 public class InputReader {
 
     public static void readInputs(InputNeurons inp, String _filename) {
+        try {
+            inp.init(readSpikeTrains(_filename));
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            // TODO Auto-generated catch block
+            e.printStackTrace();
+            System.err.println("Could not fine input file... exiting...");
+            System.exit(0);
+        } catch (IOException e) {
+            // TODO Auto-generated catch block
+            e.printStackTrace();
+            System.err.println("Exiting...");
+            System.exit(0);
+        } catch (ClassCastException e) {
+            e.printStackTrace();
+            System.err.println("asdf was not a cell... asdf format must use cell array. Alternatively, calcSpikeResponses times must be doubles.");
+            System.exit(0);
+        }
+    }
 
+    /**
+     * Reads input spike trains from a binary spike train file (see {@link MappedSpikeTrains}), which is mapped
+     * rather than read, a .mat file holding them in a cell array named "asdf" or a text file (see
+     * {@link SpikeTrainConverter#convertText}), which are read into memory.
+     * @param _filename
+     * @return the spike trains
+     * @throws IOException
+     */
+    public static SpikeTrainSource readSpikeTrains(String _filename) throws IOException {
+        if(_filename.endsWith(MappedSpikeTrains.EXTENSION)) {
+            return new MappedSpikeTrains(Paths.get(_filename));
+        }
         Scanner sc = null;
         try {
             int noNeu;
+            double[][] spkTimes;
             if(_filename.contains(".mat")) {
                 MatFileReader mfr = new MatFileReader(_filename);
                 MLCell asdf = (MLCell) mfr.getContent().get("asdf");
@@ -28,50 +61,37 @@ public class InputReader {
                 }
                 ArrayList<MLArray> mlSpkT = asdf.cells();
                 noNeu = mlSpkT.size()-2;
-                inp.init(noNeu);
+                spkTimes = new double[noNeu][];
                 for(int ii=0; ii<noNeu; ++ii) {
-                    inp.getSpk_times()[ii] = new double[((MLDouble) mlSpkT.get(ii)).getSize()];
+                    spkTimes[ii] = new double[((MLDouble) mlSpkT.get(ii)).getSize()];
                     double[][] temp = ((MLDouble) mlSpkT.get(ii)).getArray();
                     int sz1 = temp.length;
                     int sz2 = temp[0].length;
                     if (sz2>sz1) {
-                        for (int jj = 0; jj < inp.getSpk_times()[ii].length; ++jj) {
-                            inp.getSpk_times()[ii][jj] = temp[0][jj];
+                        for (int jj = 0; jj < spkTimes[ii].length; ++jj) {
+                            spkTimes[ii][jj] = temp[0][jj];
                         }
                     } else {
-                        for (int jj = 0; jj < inp.getSpk_times()[ii].length; ++jj) {
-                            inp.getSpk_times()[ii][jj] = temp[jj][0];
+                        for (int jj = 0; jj < spkTimes[ii].length; ++jj) {
+                            spkTimes[ii][jj] = temp[jj][0];
                         }
                     }
                 }
             } else {
                 sc = new Scanner(new FileReader(_filename));
                 noNeu = sc.nextInt();
-                inp.init(noNeu);
+                spkTimes = new double[noNeu][];
                 for(int ii=0; ii<noNeu; ++ii) {
                     Scanner lineSc = new Scanner(sc.nextLine());
                     ArrayList<Double> times = new ArrayList<Double>();
                     while(lineSc.hasNext()) {
                         times.add(lineSc.nextDouble());
                     }
-                    inp.getSpk_times()[ii] = Utils.getDoubleArr(times);
+                    spkTimes[ii] = Utils.getDoubleArr(times);
                     lineSc.close();
                 }
             }
-        } catch (FileNotFoundException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-            System.err.println("Could not fine input file... exiting...");
-            System.exit(0);
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-            System.err.println("Exiting...");
-            System.exit(0);
-        } catch (ClassCastException e) {
-            e.printStackTrace();
-            System.err.println("asdf was not a cell... asdf format must use cell array. Alternatively, calcSpikeResponses times must be doubles.");
-            System.exit(0);
+            return new ArraySpikeTrains(spkTimes);
         } finally {
             if(sc!=null) {
                 sc.close();
@@ -12,6 +12,7 @@ import com.jmatio.types.MLInt32;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -28,6 +29,21 @@ public class MANAWriter {
      */
     public static void printData2Matlab(final MANA_Unit unit, final String outDir, final String outPrefix,
                                  final double time, final double dt) {
+        writeSnapshot(takeSnapshot(unit, time, dt), outDir, outPrefix);
+    }
+
+    /**
+     * Copies everything {@link #printData2Matlab} writes out of the unit into primitive arrays, so that it can be
+     * written (see {@link #writeSnapshot(Snapshot, String, String)}) on another thread while the simulation carries
+     * on. Must be called between time steps. Only the spikes since the previous snapshot are taken, so that snapshots
+     * don't grow with the length of the run; every spike is in the sectors' spike files (see
+     * {@link MANA_Unit#streamSpikesTo}).
+     * @param unit
+     * @param time
+     * @param dt
+     * @return
+     */
+    public static Snapshot takeSnapshot(final MANA_Unit unit, final double time, final double dt) {
         Map<String, double []> data = new HashMap<>();
         data.put("PrefFRs", new double[unit.getSize()]);
         data.put("EstFRs", new double[unit.getSize()]);
@@ -63,11 +79,29 @@ public class MANAWriter {
             System.arraycopy(s.target.getCoordinates(true)[2], 0, data.get("z"), i_offset, s.getWidth());
             i_offset+=s.getWidth();
         }
+        double [][] spikes = new double[unit.getSize()][];
+        int offset = 0;
+        for(MANA_Sector sec : unit.sectors.values()) {
+            System.arraycopy(sec.spkDat.getNewSpikeTimes(dt), 0, spikes, offset, sec.getWidth());
+            offset += sec.getWidth();
+        }
+        return new Snapshot(time, dt, unit.getSize(), data, unit.getMatrix(), spikes);
+    }
+
+    /**
+     * Converts a snapshot into matlab arrays and writes (and compresses) them to a .mat file. Does not touch the
+     * unit the snapshot was taken from so it can be called from any thread.
+     * @throws UncheckedIOException if the file can't be written
+     * @param snap
+     * @param outDir
+     * @param outPrefix
+     */
+    public static void writeSnapshot(final Snapshot snap, final String outDir, final String outPrefix) {
         List<MLArray> mlData = new ArrayList<MLArray>();
-        for(String key : data.keySet()) {
-            mlData.add(new MLDouble(key, data.get(key), 1));
+        for(String key : snap.data.keySet()) {
+            mlData.add(new MLDouble(key, snap.data.get(key), 1));
         }
-        WeightData wd = unit.getMatrix();
+        WeightData wd = snap.weights;
         Utils.addScalar(wd.srcInds, 1);
         Utils.addScalar(wd.tarInds, 1);
 
@@ -75,38 +109,45 @@ public class MANAWriter {
         mlData.add(new MLInt32("tarInds", wd.tarInds, 1));
         mlData.add(new MLDouble("wtValues", wd.values, 1));
 
-        MLCell asdfCell = new MLCell("asdf", new int[]{unit.getSize()+2, 1});
-        collectSpikes(unit, time, dt);
-        for(int ii=0, n=unit.getSize(); ii<n; ++ii) {
-            asdfCell.set(new MLDouble("", Utils.getDoubleArr(unit.getAllSpikes().get(ii)), 1), ii);
+        MLCell asdfCell = new MLCell("asdf", new int[]{snap.size+2, 1});
+        for(int ii=0, n=snap.size; ii<n; ++ii) {
+            asdfCell.set(new MLDouble("", snap.spikes[ii], 1), ii);
         }
-        asdfCell.set(new MLDouble("", new double[]{dt}, 1), unit.getSize());
-        asdfCell.set(new MLDouble("", new double[] {unit.getSize(), time/dt}, 1), unit.getSize()+1);
+        asdfCell.set(new MLDouble("", new double[]{snap.dt}, 1), snap.size);
+        asdfCell.set(new MLDouble("", new double[] {snap.size, snap.time/snap.dt}, 1), snap.size+1);
 
         mlData.add(asdfCell);
         try {
-            new MatFileWriter(outDir + File.separator + (int)(time+dt)/1000 + "_" + outPrefix + ".mat", mlData);
+            new MatFileWriter(outDir + File.separator + (int)(snap.time+snap.dt)/1000 + "_" + outPrefix + ".mat",
+                    mlData);
         } catch (IOException e) {
-            e.printStackTrace();
+            throw new UncheckedIOException(e);
         }
-
     }
 
     /**
-     * Flushes recorded spike data from each sector into a unit's allspikes field (which empties all the sector spike
-     * data recorders). These are accumulated into allSpikes and previous data is left in tact there.
-     * @param time
-     * @param dt
+     * A copy of the data {@link #printData2Matlab} writes, taken at some time, which shares nothing with the unit.
      */
-    public static void collectSpikes(MANA_Unit unit, double time, double dt) {
-        int offset = 0;
-        for(String id : unit.sectors.keySet()) {
-            MANA_Sector sec = unit.sectors.get(id);
-            List<ArrayList<Double>> spks = sec.spkDat.flushToASDFFormat(time, dt);
-            for(int ii=0; ii<sec.getWidth(); ++ii) {
-                unit.getAllSpikes().get(ii+offset).addAll(spks.get(ii));
-            }
-            offset += sec.getWidth();
+    public static final class Snapshot {
+        public final double time;
+        public final double dt;
+        /** Number of (non-input) neurons. */
+        public final int size;
+        /** Per neuron values, by name. */
+        public final Map<String, double[]> data;
+        public final WeightData weights;
+        /** The time of every spike of every neuron since the previous snapshot. */
+        public final double [][] spikes;
+
+        Snapshot(double time, double dt, int size, Map<String, double[]> data, WeightData weights,
+                 double[][] spikes) {
+            this.time = time;
+            this.dt = dt;
+            this.size = size;
+            this.data = data;
+            this.weights = weights;
+            this.spikes = spikes;
         }
     }
+
 }
@@ -0,0 +1,128 @@
+package Java.org.network.mana.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Spike trains read straight out of a memory mapped binary file, so that long recorded inputs cost neither start up
+ * time nor heap: only the index (one long per neuron) is read when the file is opened and the OS pages spike times in
+ * as the simulation reaches them (and out again once it has moved on).
+ *
+ * The file (written by {@link SpikeTrainConverter}, extension {@value #EXTENSION}) is little endian:
+ * <pre>
+ *     int      magic ("MSPK")
+ *     int      version
+ *     int      number of neurons N
+ *     int      unused (0), so that what follows is 8 byte aligned
+ *     long[N+1] index: neuron i's spikes are the times [index[i], index[i+1])
+ *     double[index[N]] spike times (ms), ordered by neuron and then by time
+ * </pre>
+ *
+ * Since a mapped buffer holds at most 2GB, the file is mapped in {@value #CHUNK_BYTES} byte chunks. Everything after
+ * the first 8 bytes is 8 byte aligned, so no value straddles two of them.
+ *
+ * Can be read from any thread, but not after it is closed.
+ */
+public final class MappedSpikeTrains implements SpikeTrainSource, AutoCloseable {
+
+    public static final String EXTENSION = ".spk";
+
+    static final int MAGIC = 0x4B50534D; // "MSPK"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 4 * Integer.BYTES;
+
+    private static final int CHUNK_SHIFT = 30;
+    static final int CHUNK_BYTES = 1 << CHUNK_SHIFT;
+    private static final long CHUNK_MASK = CHUNK_BYTES - 1;
+
+    /** The file, CHUNK_BYTES at a time. */
+    private MappedByteBuffer [] chunks;
+
+    /** Index of each neuron's first spike time and, last, the total number of spikes. */
+    private final long[] index;
+
+    /** Offset of the spike times in the file. */
+    private final long timesOff;
+
+    public MappedSpikeTrains(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size < HEADER_BYTES) {
+                throw new IOException(file + " is not a spike train file.");
+            }
+            chunks = new MappedByteBuffer[(int) ((size + CHUNK_MASK) >>> CHUNK_SHIFT)];
+            for (int ii = 0; ii < chunks.length; ++ii) {
+                long pos = (long) ii << CHUNK_SHIFT;
+                chunks[ii] = ch.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(CHUNK_BYTES, size - pos));
+                chunks[ii].order(ByteOrder.LITTLE_ENDIAN);
+            }
+            if (getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a spike train file.");
+            }
+            if (getInt(Integer.BYTES) != VERSION) {
+                throw new IOException("Unsupported spike train file version: " + getInt(Integer.BYTES));
+            }
+            int noNeu = getInt(2 * Integer.BYTES);
+            timesOff = HEADER_BYTES + (noNeu + 1L) * Long.BYTES;
+            if (noNeu < 0 || size < timesOff) {
+                throw new IOException(file + " is corrupt.");
+            }
+            index = new long[noNeu + 1];
+            for (int ii = 0; ii <= noNeu; ++ii) {
+                index[ii] = getLong(HEADER_BYTES + (long) ii * Long.BYTES);
+                if (ii > 0 && (index[ii] < index[ii - 1] || index[ii] - index[ii - 1] > Integer.MAX_VALUE)) {
+                    throw new IOException(file + " is corrupt.");
+                }
+            }
+            if (index[0] != 0 || size != timesOff + index[noNeu] * Double.BYTES) {
+                throw new IOException(file + " is corrupt, it is not as long as its index says.");
+            }
+        }
+    }
+
+    private ByteBuffer chunkAt(long off) {
+        return chunks[(int) (off >>> CHUNK_SHIFT)];
+    }
+
+    private int getInt(long off) {
+        return chunkAt(off).getInt((int) (off & CHUNK_MASK));
+    }
+
+    private long getLong(long off) {
+        return chunkAt(off).getLong((int) (off & CHUNK_MASK));
+    }
+
+    @Override
+    public int getNoNeurons() {
+        return index.length - 1;
+    }
+
+    @Override
+    public int getNoSpikes(int neu) {
+        return (int) (index[neu + 1] - index[neu]);
+    }
+
+    @Override
+    public double getSpikeTime(int neu, int ind) {
+        if (ind < 0 || ind >= getNoSpikes(neu)) {
+            throw new IndexOutOfBoundsException("Spike " + ind + " of neuron " + neu + " which has "
+                    + getNoSpikes(neu) + " spikes.");
+        }
+        long off = timesOff + (index[neu] + ind) * Double.BYTES;
+        return chunkAt(off).getDouble((int) (off & CHUNK_MASK));
+    }
+
+    /**
+     * Drops the mapped buffers, the file is unmapped once they have been garbage collected.
+     */
+    @Override
+    public void close() {
+        chunks = null;
+    }
+
+}
@@ -0,0 +1,160 @@
+package Java.org.network.mana.io;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Converts input spike trains in either of the formats {@link InputReader} reads (an "asdf" cell array in a .mat
+ * file or a text file) into the binary format read by {@link MappedSpikeTrains}. Text files are converted a line
+ * (neuron) at a time so that inputs too large to fit in memory can be converted.
+ *
+ * Usage: SpikeTrainConverter &lt;input file&gt; [output file]; the output defaults to the input with its extension
+ * replaced by {@value MappedSpikeTrains#EXTENSION}.
+ */
+public class SpikeTrainConverter {
+
+    private static final int BUFF_SIZE = 1 << 20;
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: SpikeTrainConverter <input file> [output file]");
+            System.exit(1);
+        }
+        String in = args[0];
+        String out = args.length > 1 ? args[1]
+                : (in.contains(".") ? in.substring(0, in.lastIndexOf('.')) : in) + MappedSpikeTrains.EXTENSION;
+        long t0 = System.currentTimeMillis();
+        try {
+            if (in.contains(".mat")) {
+                write(InputReader.readSpikeTrains(in), Paths.get(out));
+            } else {
+                convertText(Paths.get(in), Paths.get(out));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Exiting...");
+            System.exit(1);
+        }
+        try (MappedSpikeTrains trains = new MappedSpikeTrains(Paths.get(out))) {
+            long noSpks = 0;
+            for (int ii = 0; ii < trains.getNoNeurons(); ++ii) {
+                noSpks += trains.getNoSpikes(ii);
+            }
+            System.out.println("Wrote " + trains.getNoNeurons() + " neurons, " + noSpks + " spikes to " + out
+                    + " in " + (System.currentTimeMillis() - t0) + " ms.");
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Writes spike trains to a binary spike train file.
+     * @param trains
+     * @param file
+     * @throws IOException
+     */
+    public static void write(SpikeTrainSource trains, Path file) throws IOException {
+        int noNeu = trains.getNoNeurons();
+        long [] index = new long[noNeu + 1];
+        for (int ii = 0; ii < noNeu; ++ii) {
+            index[ii + 1] = index[ii] + trains.getNoSpikes(ii);
+        }
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buff = newBuffer();
+            writeHeader(ch, buff, index);
+            for (int ii = 0; ii < noNeu; ++ii) {
+                for (int jj = 0, n = trains.getNoSpikes(ii); jj < n; ++jj) {
+                    putDouble(ch, buff, trains.getSpikeTime(ii, jj));
+                }
+            }
+            drain(ch, buff);
+        }
+    }
+
+    /**
+     * Converts a text file of spike trains: the number of neurons followed by the first neuron's spike times on the
+     * first line and then one line of spike times per neuron.
+     * @param in
+     * @param out
+     * @throws IOException
+     */
+    public static void convertText(Path in, Path out) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(in);
+             FileChannel ch = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            String line = reader.readLine();
+            String [] toks = line == null ? new String[0] : line.trim().split("\\s+");
+            if (toks.length == 0 || toks[0].isEmpty()) {
+                throw new IOException(in + " is empty.");
+            }
+            int noNeu = Integer.parseInt(toks[0]);
+            long [] index = new long[noNeu + 1];
+            ByteBuffer buff = newBuffer();
+            // Spike times first, the index is filled in once every line has been read
+            ch.position(MappedSpikeTrains.HEADER_BYTES + (noNeu + 1L) * Long.BYTES);
+            for (int ii = 0; ii < noNeu; ++ii) {
+                if (ii > 0) {
+                    line = reader.readLine();
+                    if (line == null) {
+                        throw new IOException(in + " has fewer than " + noNeu + " spike trains.");
+                    }
+                    toks = line.trim().split("\\s+");
+                }
+                long n = 0;
+                for (int jj = ii == 0 ? 1 : 0; jj < toks.length; ++jj) {
+                    if (!toks[jj].isEmpty()) {
+                        putDouble(ch, buff, Double.parseDouble(toks[jj]));
+                        ++n;
+                    }
+                }
+                index[ii + 1] = index[ii] + n;
+            }
+            drain(ch, buff);
+            ch.position(0);
+            writeHeader(ch, buff, index);
+            drain(ch, buff);
+        }
+    }
+
+    private static ByteBuffer newBuffer() {
+        return ByteBuffer.allocateDirect(BUFF_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void writeHeader(FileChannel ch, ByteBuffer buff, long[] index) throws IOException {
+        buff.putInt(MappedSpikeTrains.MAGIC);
+        buff.putInt(MappedSpikeTrains.VERSION);
+        buff.putInt(index.length - 1);
+        buff.putInt(0);
+        for (long ind : index) {
+            if (buff.remaining() < Long.BYTES) {
+                drain(ch, buff);
+            }
+            buff.putLong(ind);
+        }
+    }
+
+    private static void putDouble(FileChannel ch, ByteBuffer buff, double val) throws IOException {
+        if (buff.remaining() < Double.BYTES) {
+            drain(ch, buff);
+        }
+        buff.putDouble(val);
+    }
+
+    private static void drain(FileChannel ch, ByteBuffer buff) throws IOException {
+        buff.flip();
+        while (buff.hasRemaining()) {
+            ch.write(buff);
+        }
+        buff.clear();
+    }
+
+}
@@ -0,0 +1,22 @@
+package Java.org.network.mana.io;
+
+/**
+ * The spike trains replayed by {@link Java.org.network.mana.base_components.neurons.InputNeurons}: for each input
+ * neuron an ordered sequence of spike times (ms) which is read one spike at a time as the simulation reaches it, so
+ * implementations are free to keep the trains somewhere other than the heap (see {@link MappedSpikeTrains}).
+ */
+public interface SpikeTrainSource {
+
+    int getNoNeurons();
+
+    /**
+     * @return the number of spikes in the given neuron's train.
+     */
+    int getNoSpikes(int neu);
+
+    /**
+     * @return the time of the ind-th spike of the given neuron.
+     */
+    double getSpikeTime(int neu, int ind);
+
+}
@@ -0,0 +1,209 @@
+package Java.org.network.mana.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads what a {@link StateOutput} wrote, through a single direct buffer. Reading an array either allocates a new
+ * one of the recorded length or, when given an existing array, checks that the recorded length matches it and fills
+ * it in place so that objects which hold on to the array see the restored values.
+ */
+public final class StateInput implements AutoCloseable {
+
+    private static final int BUFF_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+
+    private final ByteBuffer buff = ByteBuffer.allocateDirect(BUFF_SIZE).order(ByteOrder.nativeOrder());
+
+    public StateInput(FileChannel channel) {
+        this.channel = channel;
+        buff.flip();
+    }
+
+    /**
+     * Makes sure at least bytes bytes (at most the size of the buffer) can be read from the buffer.
+     */
+    private void require(int bytes) throws IOException {
+        if (buff.remaining() >= bytes) {
+            return;
+        }
+        buff.compact();
+        while (buff.position() < bytes) {
+            if (channel.read(buff) < 0) {
+                throw new EOFException("Checkpoint ended unexpectedly.");
+            }
+        }
+        buff.flip();
+    }
+
+    public int readInt() throws IOException {
+        require(Integer.BYTES);
+        return buff.getInt();
+    }
+
+    public long readLong() throws IOException {
+        require(Long.BYTES);
+        return buff.getLong();
+    }
+
+    public double readDouble() throws IOException {
+        require(Double.BYTES);
+        return buff.getDouble();
+    }
+
+    public boolean readBoolean() throws IOException {
+        require(1);
+        return buff.get() != 0;
+    }
+
+    /**
+     * Reads the length of an array and checks it against the length expected.
+     * @param expected expected length or -2 if any length is fine
+     */
+    private int readLength(int expected) throws IOException {
+        int len = readInt();
+        if (expected != -2 && len != expected) {
+            throw new IllegalStateException("Checkpoint holds an array of length " + len + " where one of length "
+                    + expected + " was expected, it was not written by a network of the same size.");
+        }
+        return len;
+    }
+
+    /**
+     * @return a new array holding the values written by {@link StateOutput#writeInts(int[])} or null if null was
+     * written.
+     */
+    public int[] readInts() throws IOException {
+        int len = readLength(-2);
+        if (len < 0) {
+            return null;
+        }
+        int [] arr = new int[len];
+        readInts(arr, 0, len);
+        return arr;
+    }
+
+    /**
+     * Reads an array written by {@link StateOutput#writeInts(int[])} into an array of the same length.
+     */
+    public void readIntsInto(int[] arr) throws IOException {
+        readInts(arr, 0, readLength(arr.length));
+    }
+
+    public void readInts(int[] arr, int off, int len) throws IOException {
+        while (len > 0) {
+            require(Integer.BYTES);
+            int n = Math.min(len, buff.remaining() / Integer.BYTES);
+            buff.asIntBuffer().get(arr, off, n);
+            buff.position(buff.position() + n * Integer.BYTES);
+            off += n;
+            len -= n;
+        }
+    }
+
+    public long[] readLongs() throws IOException {
+        int len = readLength(-2);
+        if (len < 0) {
+            return null;
+        }
+        long [] arr = new long[len];
+        for (int off = 0; off < len; ) {
+            require(Long.BYTES);
+            int n = Math.min(len - off, buff.remaining() / Long.BYTES);
+            buff.asLongBuffer().get(arr, off, n);
+            buff.position(buff.position() + n * Long.BYTES);
+            off += n;
+        }
+        return arr;
+    }
+
+    public void readLongsInto(long[] arr) throws IOException {
+        long [] vals = readLongs();
+        if (vals == null || vals.length != arr.length) {
+            throw new IllegalStateException("Checkpoint was not written by a network of the same size.");
+        }
+        System.arraycopy(vals, 0, arr, 0, arr.length);
+    }
+
+    public double[] readDoubles() throws IOException {
+        int len = readLength(-2);
+        if (len < 0) {
+            return null;
+        }
+        double [] arr = new double[len];
+        readDoubles(arr, 0, len);
+        return arr;
+    }
+
+    public void readDoublesInto(double[] arr) throws IOException {
+        readDoubles(arr, 0, readLength(arr.length));
+    }
+
+    public void readDoubles(double[] arr, int off, int len) throws IOException {
+        while (len > 0) {
+            require(Double.BYTES);
+            int n = Math.min(len, buff.remaining() / Double.BYTES);
+            buff.asDoubleBuffer().get(arr, off, n);
+            buff.position(buff.position() + n * Double.BYTES);
+            off += n;
+            len -= n;
+        }
+    }
+
+    public float[] readFloats() throws IOException {
+        int len = readLength(-2);
+        if (len < 0) {
+            return null;
+        }
+        float [] arr = new float[len];
+        readFloats(arr, 0, len);
+        return arr;
+    }
+
+    public void readFloatsInto(float[] arr) throws IOException {
+        readFloats(arr, 0, readLength(arr.length));
+    }
+
+    public void readFloats(float[] arr, int off, int len) throws IOException {
+        while (len > 0) {
+            require(Float.BYTES);
+            int n = Math.min(len, buff.remaining() / Float.BYTES);
+            buff.asFloatBuffer().get(arr, off, n);
+            buff.position(buff.position() + n * Float.BYTES);
+            off += n;
+            len -= n;
+        }
+    }
+
+    public void readBooleansInto(boolean[] arr) throws IOException {
+        int len = readLength(arr.length);
+        for (int ii = 0; ii < len; ++ii) {
+            require(1);
+            arr[ii] = buff.get() != 0;
+        }
+    }
+
+    /**
+     * Fills the remaining bytes of dest with the next bytes of the checkpoint as they are.
+     */
+    public void readRaw(ByteBuffer dest) throws IOException {
+        while (dest.hasRemaining() && buff.hasRemaining()) {
+            dest.put(buff.get());
+        }
+        while (dest.hasRemaining()) {
+            if (channel.read(dest) < 0) {
+                throw new EOFException("Checkpoint ended unexpectedly.");
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        // the channel is closed by its owner
+    }
+
+}
@@ -0,0 +1,159 @@
+package Java.org.network.mana.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes primitive values and arrays of them to a file channel through a single direct buffer, for checkpoints (see
+ * {@link Checkpoint}). Arrays are written length first and in bulk so that writing a checkpoint is bounded by the
+ * disk rather than by per-value overhead. Everything is written in the native byte order (checked by
+ * {@link StateInput} against the byte order marker at the start of the file), which lets memory outside the heap be
+ * written to the channel as is.
+ */
+public final class StateOutput implements AutoCloseable {
+
+    private static final int BUFF_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+
+    private final ByteBuffer buff = ByteBuffer.allocateDirect(BUFF_SIZE).order(ByteOrder.nativeOrder());
+
+    public StateOutput(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buff.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    public void writeInt(int val) throws IOException {
+        ensure(Integer.BYTES);
+        buff.putInt(val);
+    }
+
+    public void writeLong(long val) throws IOException {
+        ensure(Long.BYTES);
+        buff.putLong(val);
+    }
+
+    public void writeDouble(double val) throws IOException {
+        ensure(Double.BYTES);
+        buff.putDouble(val);
+    }
+
+    public void writeBoolean(boolean val) throws IOException {
+        ensure(1);
+        buff.put((byte) (val ? 1 : 0));
+    }
+
+    /**
+     * Writes an array (which may be null) preceded by its length (-1 if null).
+     */
+    public void writeInts(int[] arr) throws IOException {
+        writeInt(arr == null ? -1 : arr.length);
+        if (arr != null) {
+            writeInts(arr, 0, arr.length);
+        }
+    }
+
+    /**
+     * Writes len values of an array without their length.
+     */
+    public void writeInts(int[] arr, int off, int len) throws IOException {
+        while (len > 0) {
+            ensure(Integer.BYTES);
+            int n = Math.min(len, buff.remaining() / Integer.BYTES);
+            buff.asIntBuffer().put(arr, off, n);
+            buff.position(buff.position() + n * Integer.BYTES);
+            off += n;
+            len -= n;
+        }
+    }
+
+    public void writeLongs(long[] arr) throws IOException {
+        writeInt(arr == null ? -1 : arr.length);
+        for (int off = 0, len = arr == null ? 0 : arr.length; len > 0; ) {
+            ensure(Long.BYTES);
+            int n = Math.min(len, buff.remaining() / Long.BYTES);
+            buff.asLongBuffer().put(arr, off, n);
+            buff.position(buff.position() + n * Long.BYTES);
+            off += n;
+            len -= n;
+        }
+    }
+
+    public void writeDoubles(double[] arr) throws IOException {
+        writeInt(arr == null ? -1 : arr.length);
+        if (arr != null) {
+            writeDoubles(arr, 0, arr.length);
+        }
+    }
+
+    public void writeDoubles(double[] arr, int off, int len) throws IOException {
+        while (len > 0) {
+            ensure(Double.BYTES);
+            int n = Math.min(len, buff.remaining() / Double.BYTES);
+            buff.asDoubleBuffer().put(arr, off, n);
+            buff.position(buff.position() + n * Double.BYTES);
+            off += n;
+            len -= n;
+        }
+    }
+
+    public void writeFloats(float[] arr) throws IOException {
+        writeInt(arr == null ? -1 : arr.length);
+        if (arr != null) {
+            writeFloats(arr, 0, arr.length);
+        }
+    }
+
+    public void writeFloats(float[] arr, int off, int len) throws IOException {
+        while (len > 0) {
+            ensure(Float.BYTES);
+            int n = Math.min(len, buff.remaining() / Float.BYTES);
+            buff.asFloatBuffer().put(arr, off, n);
+            buff.position(buff.position() + n * Float.BYTES);
+            off += n;
+            len -= n;
+        }
+    }
+
+    public void writeBooleans(boolean[] arr) throws IOException {
+        writeInt(arr == null ? -1 : arr.length);
+        for (int ii = 0, n = arr == null ? 0 : arr.length; ii < n; ++ii) {
+            ensure(1);
+            buff.put((byte) (arr[ii] ? 1 : 0));
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of a buffer (in whatever byte order they are in) straight to the channel.
+     */
+    public void writeRaw(ByteBuffer src) throws IOException {
+        flush();
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+    }
+
+    public void flush() throws IOException {
+        buff.flip();
+        while (buff.hasRemaining()) {
+            channel.write(buff);
+        }
+        buff.clear();
+    }
+
+    /**
+     * Flushes what is left in the buffer, the channel is closed by its owner.
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+}
@@ -25,8 +25,8 @@ public class COOManaMat {
     public COOManaMat(MANAMatrix mat, Ordering orderType) {
         data = new LinkedList<>();
         int [] srcPtrs = mat.outDataSOrd.getRawPtrs();
+        int [] srcEnds = mat.outDataSOrd.getRawEnds();
         double [] tordVals = mat.weightsTOrd.getRawData();
-        double [] sordVals = mat.outDataSOrd.getRawData();
         int [] tOrdInds = mat.outDataSOrd.getRawOrdIndices();
         int [] map = mat.srcToTargLookup;
         srcILF = mat.outDataSOrd.nILFac;
@@ -36,7 +36,7 @@ public class COOManaMat {
         // Traversing in source-major order
         for(int ii=0; ii<mat.noSrc; ++ii) {
             src++;
-            for(int jj = srcPtrs[ii]; jj < srcPtrs[ii+1]; ++jj) { //linear indices
+            for(int jj = srcPtrs[ii]; jj < srcEnds[ii]; ++jj) { //linear indices
                 int tOrderIndex = mat.srcToTargLookup[jj];
                 double [] tmpData = new double[totData];
                 // copy in target ordered values using the lookup table since we're
@@ -44,7 +44,7 @@ public class COOManaMat {
                 System.arraycopy(tordVals, tOrderIndex*tarILF,
                         tmpData, 0, tarILF);
                 // copy in source ordered values for the same synapse
-                System.arraycopy(sordVals, jj*srcILF, tmpData, tarILF, srcILF);
+                mat.outDataSOrd.copyOut(jj*srcILF, tmpData, tarILF, srcILF);
                 tmpData[tmpData.length-2] = mat.tOrdLastArrivals.values[tOrderIndex];
                 // Attach the linear index when target ordered to support target
                 // ordered add on sparse values...
@@ -3,23 +3,27 @@ package Java.org.network.mana.mana_components;
 import Java.org.network.mana.base_components.neurons.Neuron;
 import Java.org.network.mana.base_components.sparse.InterleavedSparseAddOn;
 import Java.org.network.mana.base_components.sparse.InterleavedSparseMatrix;
+import Java.org.network.mana.base_components.sparse.OffHeapValues;
 import Java.org.network.mana.base_components.sparse.SrcTarDataPack;
 import Java.org.network.mana.base_components.sparse.SrcTarPair;
 import Java.org.network.mana.base_components.synapses.ConnectSpecs;
+import Java.org.network.mana.base_components.synapses.EventPool;
+import Java.org.network.mana.base_components.synapses.EventSink;
+import Java.org.network.mana.base_components.synapses.EventWheel;
 import Java.org.network.mana.base_components.synapses.STDP;
 import Java.org.network.mana.base_components.synapses.ShortTermPlasticity;
 import Java.org.network.mana.enums.ConnectRule;
 import Java.org.network.mana.enums.Ordering;
+import Java.org.network.mana.enums.Precision;
 import Java.org.network.mana.enums.SynapseType;
-import Java.org.network.mana.globals.Default_Parameters;
+import Java.org.network.mana.io.StateInput;
+import Java.org.network.mana.io.StateOutput;
 import Java.org.network.mana.utils.BufferedDoubleArray;
 import Java.org.network.mana.utils.Utils;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.concurrent.PriorityBlockingQueue;
-import java.util.concurrent.ThreadLocalRandom;
 
 public class MANAMatrix {
 
@@ -35,6 +39,39 @@ public class MANAMatrix {
      */
     protected InterleavedSparseMatrix outDataSOrd;
 
+    /**
+     * The precision new matrices store {@link #outDataSOrd} at. Weights and their derivatives are accumulated into
+     * every time step and so are always kept in double precision, but the 7 source ordered values per synapse can be
+     * stored as floats, cutting the memory used by each synapse by about a third.
+     */
+    public static Precision srcDataPrecision = Precision.DOUBLE;
+
+    /**
+     * Whether new matrices keep {@link #outDataSOrd} off the Java heap, see
+     * {@link InterleavedSparseMatrix#toOffHeap(Precision, Path)}. This takes the source ordered values off the heap
+     * but does not let a matrix hold more synapses, see the limit described in {@link InterleavedSparseMatrix}.
+     */
+    public static boolean srcDataOffHeap = false;
+
+    /**
+     * If not null (and {@link #srcDataOffHeap} is set) off heap source ordered values are backed by files in this
+     * directory, which lets the OS page synapses which aren't being used out to disk.
+     */
+    public static Path srcDataSpillDir = null;
+
+    /**
+     * If true the events arriving on a step are gathered and sorted by target ordered index before they are
+     * processed, so that the weights, last arrival times and currents are swept through once in order rather than
+     * visited at random. Events on the same synapse keep their order, so the only difference this makes is the order
+     * in which the currents onto each target are summed (without STDP they are summed per target before being
+     * added), which can change currents in their last bits.
+     */
+    public static boolean sortEvents = false;
+
+    /** Scratch pools for sorting arriving events, allocated the first time events are sorted. */
+    private EventPool arrivals;
+    private EventPool sortedArrivals;
+
     /** An addon set of values containing more target ordered data. */
     protected InterleavedSparseAddOn tOrdLastArrivals;
 
@@ -47,6 +84,15 @@ public class MANAMatrix {
      */
     protected int[] srcToTargLookup;
 
+    /**
+     * The inverse of {@link #srcToTargLookup}: the source ordered position of each target ordered synapse.
+     */
+    protected int[] targToSrcLookup;
+
+    /** Synapses (target ordered positions) marked for removal by {@link #markForRemoval(int)}. */
+    private int [] toRemove = new int[16];
+    private int noToRemove = 0;
+
     public final SynapseType type;
 
     private int nnz;
@@ -74,7 +120,7 @@ public class MANAMatrix {
         this.tar = tar;
         type = SynapseType.getSynType(src.isExcitatory(), tar.isExcitatory());
         int [] targRange = {0, cooMat.tarILF};
-        weightsTOrd = new InterleavedSparseMatrix(cooMat.data, targRange, noTar, noSrc,
+        weightsTOrd = new InterleavedSparseMatrix(cooMat.data, targRange, noSrc, noTar,
                 //offsetTar, offsetSrc,
                 Ordering.TARGET);
         tOrdLastArrivals = new InterleavedSparseAddOn(weightsTOrd, 1);
@@ -88,7 +134,7 @@ public class MANAMatrix {
         int [] srcRange = {cooMat.tarILF, cooMat.tarILF+cooMat.srcILF};
         // This will source order sort cooMat.data!
         // So now the target ordered linear indices will be in source order...
-        outDataSOrd = new InterleavedSparseMatrix(cooMat.data, srcRange, noSrc, noTar,
+        outDataSOrd = new InterleavedSparseMatrix(cooMat.data, srcRange, noTar, noSrc,
                 //offsetSrc, offsetTar,
                 Ordering.SOURCE);
         srcToTargLookup = new int[cooMat.data.size()];
@@ -98,13 +144,15 @@ public class MANAMatrix {
             srcToTargLookup[cnt++] = (int) tup.values[tup.values.length-1];
         }
         nnz = weightsTOrd.getNnz();
+        setSrcDataStorage(srcDataPrecision, srcDataOffHeap, srcDataSpillDir);
+        addSlack();
     }
 
     /**
      * Outgoing data in {@link #outDataSOrd} is interleaved in the following way
      * { delay, lastArr, U, D, F, u, R }, while {@link #weightsTOrd} is interleaved as
      * { weight, dw }.
-     * Using a lot of defaults
+     * Using a lot of defaults. Connections are generated in parallel by a {@link MANAMatrixBuilder}.
      * @param src
      * @param tar
      * @param maxDist
@@ -113,92 +161,245 @@ public class MANAMatrix {
     public MANAMatrix(Neuron src, MANANeurons tar,
                       double maxDist, double maxDly,
                       ConnectSpecs cSpecs) {
+        MANAMatrixBuilder builder = new MANAMatrixBuilder(src, tar, maxDist, maxDly, cSpecs).build();
         this.src = src;
         this.tar = tar;
-        List<SrcTarDataPack> targCOOTup = new LinkedList<>();
-        List<SrcTarDataPack> srcCOOTup = new LinkedList<>();
-        type = SynapseType.getSynType(src.isExcitatory(), tar.isExcitatory());
-        this.noSrc = src.getSize();
-        this.noTar = tar.N;
-        System.out.println();
-        for (int ii=0; ii<src.getSize(); ii++) {
-//            boolean skp = true;
-            for(int jj=0; jj<tar.N; jj++) {
-//                System.out.print("  ");
-                if (src == tar && ii==jj) {
-//                    System.out.print(".");
-                    continue;
-                }
-                if (cSpecs.rule == ConnectRule.Random) {
-                    if (ThreadLocalRandom.current().nextDouble() >= cSpecs.parms[0]) { // TODO: This isn't how this is used... do something _NOT_ dumb with prob dists...
-//                        System.out.print(".");
-                        continue;
-                    }
-                } else if (cSpecs.rule == ConnectRule.Distance) {
-                    double dist = Utils.euclidean(src.getCoordinates(false)[ii], tar.getCoordinates(false)[jj]);
-                    double cProb = cSpecs.parms[0] * Math.exp(-((dist*dist)/(cSpecs.parms[1] * cSpecs.parms[1])));
-                    if (ThreadLocalRandom.current().nextDouble() >= cProb) {
-//                        System.out.print(".");
-                        continue;
-                    }
-                } else if (cSpecs.rule == ConnectRule.Distance2) {
-                    double dist = Utils.euclidean(src.getCoordinates(false)[ii], tar.getCoordinates(false)[jj]);
-                    int loc;
-                    if(src.isExcitatory()) {
-                        if(tar.isExcitatory()) {
-                            loc = 0;
-                        } else {
-                            loc = 1;
-                        }
-                    } else {
-                        if(tar.isExcitatory()) {
-                            loc = 2;
-                        } else {
-                            loc = 3;
-                        }
-                    }
-                    if(dist > cSpecs.parms[loc] ||
-                            ThreadLocalRandom.current().nextDouble() > cSpecs.parms[cSpecs.parms.length-1]) {
-                        continue;
-                    }
+        type = builder.type;
+        noSrc = builder.noSrc;
+        noTar = builder.noTar;
+        weightsTOrd = new InterleavedSparseMatrix(builder.tarPtrs, builder.tarOrdSrcs, builder.tarOrdVals, 2,
+                noSrc, noTar, Ordering.TARGET);
+        outDataSOrd = new InterleavedSparseMatrix(builder.srcPtrs, builder.srcOrdTars, builder.srcOrdVals, 7,
+                noTar, noSrc, Ordering.SOURCE);
+        nnz = weightsTOrd.getNnz();
+        tOrdLastArrivals = new InterleavedSparseAddOn(weightsTOrd, 1);
+        srcToTargLookup = builder.srcToTargLookup;
+        setSrcDataStorage(srcDataPrecision, srcDataOffHeap, srcDataSpillDir);
+        addSlack();
+    }
+
+    /**
+     * Changes the precision the source ordered values { delay, lastArr, U, D, F, u, R } are stored at.
+     * @param precision
+     */
+    public void setSrcDataPrecision(Precision precision) {
+        setSrcDataStorage(precision, false, null);
+    }
+
+    /**
+     * Changes how the source ordered values { delay, lastArr, U, D, F, u, R } are stored.
+     * @param precision
+     * @param offHeap whether to store them off the Java heap
+     * @param spillDir if storing them off heap, the directory in which to create the backing file or null to use
+     *                 native memory
+     */
+    public void setSrcDataStorage(Precision precision, boolean offHeap, Path spillDir) {
+        if (outDataSOrd.precision == precision && outDataSOrd.isOffHeap() == offHeap && !offHeap) {
+            return;
+        }
+        InterleavedSparseMatrix old = outDataSOrd;
+        outDataSOrd = offHeap ? old.toOffHeap(precision, spillDir) : old.toPrecision(precision);
+        old.release();
+    }
+
+    public Precision getSrcDataPrecision() {
+        return outDataSOrd.precision;
+    }
+
+    /**
+     * Called once both orderings and the source to target lookup have been built (compactly) so that synapses can
+     * be added in place later.
+     */
+    private void addSlack() {
+        targToSrcLookup = new int[srcToTargLookup.length];
+        for (int ii = 0; ii < srcToTargLookup.length; ++ii) {
+            targToSrcLookup[srcToTargLookup[ii]] = ii;
+        }
+        relayoutTOrd(null);
+        relayoutSOrd(null);
+    }
+
+    /**
+     * Lays out the target ordered values again (see {@link InterleavedSparseMatrix#relayout(int[])}), moving
+     * everything that is stored by target ordered position along with them.
+     */
+    private void relayoutTOrd(int[] minCapacity) {
+        int [] newToOld = weightsTOrd.relayout(minCapacity);
+        tOrdLastArrivals.rearrange(newToOld);
+        int [] newT2S = new int[newToOld.length];
+        for (int ii = 0; ii < newToOld.length; ++ii) {
+            if (newToOld[ii] == -1) {
+                newT2S[ii] = -1;
+            } else {
+                newT2S[ii] = targToSrcLookup[newToOld[ii]];
+                srcToTargLookup[newT2S[ii]] = ii;
+            }
+        }
+        targToSrcLookup = newT2S;
+    }
+
+    /**
+     * Lays out the source ordered values again, see {@link #relayoutTOrd(int[])}.
+     */
+    private void relayoutSOrd(int[] minCapacity) {
+        int [] newToOld = outDataSOrd.relayout(minCapacity);
+        int [] newS2T = new int[newToOld.length];
+        for (int ii = 0; ii < newToOld.length; ++ii) {
+            if (newToOld[ii] == -1) {
+                newS2T[ii] = -1;
+            } else {
+                newS2T[ii] = srcToTargLookup[newToOld[ii]];
+                targToSrcLookup[newS2T[ii]] = ii;
+            }
+        }
+        srcToTargLookup = newS2T;
+    }
+
+    /**
+     * Marks a synapse for removal the next time {@link #applyStructuralChanges} is called. Must not be called
+     * twice for the same synapse before then.
+     * @param tOrdPos the position (not the absolute index) of the synapse in the target ordered weight matrix
+     */
+    public void markForRemoval(int tOrdPos) {
+        if (noToRemove == toRemove.length) {
+            toRemove = Arrays.copyOf(toRemove, 2 * noToRemove);
+        }
+        toRemove[noToRemove++] = tOrdPos;
+    }
+
+    /**
+     * Removes every synapse marked by {@link #markForRemoval(int)} and adds new synapses, in place. Only the
+     * fan-in of targets and fan-out of sources which actually gain or lose synapses are touched, unless one of them
+     * has run out of room, in which case that ordering is laid out again. Any pending synaptic events refer to
+     * positions which may no longer be valid and must be discarded.
+     * @param addSrc source of each new synapse
+     * @param addTar target of each new synapse, (addSrc[k], addTar[k]) must not already be a synapse
+     * @param addTarVals target ordered values of each new synapse { weight, dw }
+     * @param addSrcVals source ordered values of each new synapse { delay, lastArr, U, D, F, u, R }
+     * @param noAdd number of new synapses
+     * @param time the time new synapses are treated as having last had a spike arrive at (for STDP)
+     */
+    public void applyStructuralChanges(int[] addSrc, int[] addTar, double[] addTarVals, double[] addSrcVals,
+                                       int noAdd, double time) {
+        int tarILF = weightsTOrd.getInc();
+        int srcILF = outDataSOrd.getInc();
+        // Mark the removed synapses in both orderings and count them per major
+        int [] remPerTar = new int[noTar];
+        int [] remPerSrc = new int[noSrc];
+        int [] sOrdInds = outDataSOrd.getRawOrdIndices();
+        int [] tOrdInds = weightsTOrd.getRawOrdIndices();
+        for (int ii = 0; ii < noToRemove; ++ii) {
+            int tPos = toRemove[ii];
+            int sPos = targToSrcLookup[tPos];
+            remPerTar[sOrdInds[sPos]]++;
+            remPerSrc[tOrdInds[tPos]]++;
+            weightsTOrd.markDeleted(tPos);
+            outDataSOrd.markDeleted(sPos);
+        }
+        noToRemove = 0;
+
+        // Order new synapses by (src, tar) and by (tar, src)
+        int [] bySrc = Utils.countingSortOrder(addTar, noAdd, noTar, null);
+        bySrc = Utils.countingSortOrder(addSrc, noAdd, noSrc, bySrc);
+        int [] byTar = Utils.countingSortOrder(addTar, noAdd, noTar, bySrc);
+        int [] addPerTar = new int[noTar];
+        int [] addPerSrc = new int[noSrc];
+        for (int ii = 0; ii < noAdd; ++ii) {
+            addPerTar[addTar[ii]]++;
+            addPerSrc[addSrc[ii]]++;
+        }
+
+        // Make sure every major will have room
+        if (needsRelayout(weightsTOrd, remPerTar, addPerTar)) {
+            relayoutTOrd(requiredCapacity(weightsTOrd, remPerTar, addPerTar));
+        }
+        if (needsRelayout(outDataSOrd, remPerSrc, addPerSrc)) {
+            relayoutSOrd(requiredCapacity(outDataSOrd, remPerSrc, addPerSrc));
+        }
+
+        // Rebuild the changed targets, recording where each new synapse ended up
+        int [] newTPos = new int[noAdd];
+        int [] origin = new int[Math.max(noSrc, noTar) + 1];
+        int [] links = new int[origin.length];
+        int [] minors = new int[noAdd];
+        double [] vals = new double[noAdd * Math.max(tarILF, srcILF)];
+        for (int ii = 0; ii < noAdd; ++ii) {
+            int k = byTar[ii];
+            minors[ii] = addSrc[k];
+            System.arraycopy(addTarVals, k * tarILF, vals, ii * tarILF, tarILF);
+        }
+        for (int tt = 0, kk = 0; tt < noTar; kk += addPerTar[tt], ++tt) {
+            if (remPerTar[tt] == 0 && addPerTar[tt] == 0) {
+                continue;
+            }
+            int start = weightsTOrd.getStartIndex(tt) / tarILF;
+            int oldLen = weightsTOrd.getDegree(tt);
+            int newLen = weightsTOrd.rebuildMajor(tt, minors, vals, kk, kk + addPerTar[tt], origin);
+            for (int ii = 0; ii < newLen; ++ii) {
+                links[ii] = origin[ii] < 0 ? -1 : targToSrcLookup[origin[ii]];
+            }
+            for (int ii = 0; ii < newLen; ++ii) {
+                int pos = start + ii;
+                targToSrcLookup[pos] = links[ii];
+                if (origin[ii] < 0) {
+                    newTPos[byTar[kk - origin[ii] - 1]] = pos;
+                } else {
+                    srcToTargLookup[links[ii]] = pos;
                 }
-//                System.out.print("X");
-                SrcTarPair coo = new SrcTarPair(ii, jj);
-
-                // w, dw
-                double[] tarData = {cSpecs.getNewWt(), 0};
-                SrcTarDataPack tarDatPack = new SrcTarDataPack(coo, tarData);
-
-                double[] srcData = new double[7];
-                // Outbound values... delay, lastArr, U, D, F, u, R
-                // Set Short term plasticity/UDF parameters -- occupies indices 2-6
-                ShortTermPlasticity.setSourceDefaults(srcData, 0, type);
-                // Calculate delay from distance
-                srcData[0] = Default_Parameters.dt * (int)(maxDly * Utils.euclidean(src.getCoordinates(false)[ii],
-                         tar.getCoordinates(false)[jj])/(maxDist* Default_Parameters.dt));
-                SrcTarDataPack srcDatPack = new SrcTarDataPack(coo, srcData);
-
-                targCOOTup.add(tarDatPack);
-                srcCOOTup.add(srcDatPack);
             }
-//            System.out.println(" ");
+            Arrays.fill(targToSrcLookup, start + newLen, start + Math.max(oldLen, newLen), -1);
+            tOrdLastArrivals.rearrangeMajor(start, oldLen, origin, newLen, time);
+        }
+
+        // Then the changed sources, linking new synapses to their target ordered positions
+        for (int ii = 0; ii < noAdd; ++ii) {
+            int k = bySrc[ii];
+            minors[ii] = addTar[k];
+            System.arraycopy(addSrcVals, k * srcILF, vals, ii * srcILF, srcILF);
+        }
+        for (int ss = 0, kk = 0; ss < noSrc; kk += addPerSrc[ss], ++ss) {
+            if (remPerSrc[ss] == 0 && addPerSrc[ss] == 0) {
+                continue;
+            }
+            int start = outDataSOrd.getStartIndex(ss) / srcILF;
+            int oldLen = outDataSOrd.getDegree(ss);
+            int newLen = outDataSOrd.rebuildMajor(ss, minors, vals, kk, kk + addPerSrc[ss], origin);
+            for (int ii = 0; ii < newLen; ++ii) {
+                links[ii] = origin[ii] < 0 ? newTPos[bySrc[kk - origin[ii] - 1]] : srcToTargLookup[origin[ii]];
+            }
+            for (int ii = 0; ii < newLen; ++ii) {
+                srcToTargLookup[start + ii] = links[ii];
+                targToSrcLookup[links[ii]] = start + ii;
+            }
+            Arrays.fill(srcToTargLookup, start + newLen, start + Math.max(oldLen, newLen), -1);
         }
-        int[] tRange = {0, 2};
-        int[] sRange = {0, 7};
-        weightsTOrd = new InterleavedSparseMatrix(targCOOTup, tRange, src.getSize(), tar.N,
-                //offsetSrc, offsetTar,
-                Ordering.TARGET);
-        outDataSOrd = new InterleavedSparseMatrix(srcCOOTup, sRange, tar.N, src.getSize(),
-                //offsetTar, offsetSrc,
-                Ordering.SOURCE);
         nnz = weightsTOrd.getNnz();
-        tOrdLastArrivals = new InterleavedSparseAddOn(weightsTOrd, 1);
-        //pfrBuffers = new InterleavedSparseAddOn(weightsTOrd, 1);
-        assert(nnz == outDataSOrd.getNnz());
 
-        srcToTargLookup = Utils.getSortKey(targCOOTup,
-                Ordering.orderTypeTupleComp(Ordering.SOURCE));
+        // Periodically give back space if the network has shrunk a lot
+        if (weightsTOrd.getCapacity() > 2 * (nnz + noTar * InterleavedSparseMatrix.MIN_SLACK)) {
+            relayoutTOrd(null);
+        }
+        if (outDataSOrd.getCapacity() > 2 * (nnz + noSrc * InterleavedSparseMatrix.MIN_SLACK)) {
+            relayoutSOrd(null);
+        }
+    }
 
+    private static boolean needsRelayout(InterleavedSparseMatrix mat, int[] rem, int[] add) {
+        int [] ptrs = mat.getRawPtrs();
+        for (int ii = 0; ii < rem.length; ++ii) {
+            if (mat.getDegree(ii) - rem[ii] + add[ii] > ptrs[ii+1] - ptrs[ii]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int[] requiredCapacity(InterleavedSparseMatrix mat, int[] rem, int[] add) {
+        int [] req = new int[rem.length];
+        for (int ii = 0; ii < rem.length; ++ii) {
+            req[ii] = mat.getDegree(ii) - rem[ii] + add[ii];
+        }
+        return req;
     }
 
     /**
@@ -211,6 +412,22 @@ public class MANAMatrix {
     public void calcSpikeResponses(int noSrc, double time) {
         int start = outDataSOrd.getStartIndex(noSrc);
         int end = outDataSOrd.getEndIndex(noSrc);
+        if (outDataSOrd.isOffHeap()) {
+            OffHeapValues vals = outDataSOrd.getOffHeapValues();
+            for(int ii=start; ii<end; ii+=outDataSOrd.getInc()) {
+                ShortTermPlasticity.getPSR_UDF(ii, time, vals);
+                vals.set(ii+1, vals.get(ii)+time);
+            }
+            return;
+        }
+        if (outDataSOrd.precision == Precision.FLOAT) {
+            float [] vals = outDataSOrd.getRawFloatData();
+            for(int ii=start; ii<end; ii+=outDataSOrd.getInc()) {
+                ShortTermPlasticity.getPSR_UDF(ii, time, vals);
+                vals[ii+1] = (float) (vals[ii]+time);
+            }
+            return;
+        }
         for(int ii=start; ii<end; ii+=outDataSOrd.getInc()) {
             ShortTermPlasticity.getPSR_UDF(ii, time, outDataSOrd.getRawData()); // calculate UDF
             outDataSOrd.getRawData()[ii+1] = outDataSOrd.getRawData()[ii]+time; // Sets the new last arrival time to when this calcSpikeResponses will arrive.
@@ -221,32 +438,30 @@ public class MANAMatrix {
      * Based on their arrival times, adds event data (what is necessary
      * to know when and where a spike will arrive and how much of a contribution it'll make). Performs
      * this for all local outgoing synapses from a given neuron. This function directly populates
-     * the event queue and therefor performs all the necessary event encoding.
-     * Order for events is: {arrTime, rel tar ind, udfMultiplier, abs tar ind} with udfMultiplier being
-     * a float represented as int bits.
+     * the event sink and therefor performs all the necessary event encoding.
+     * Events are stored as: {arrival step, abs weight ind, udfMultiplier, tar ind, src ind, hash}.
      * @param noSrc index of the source neuron
      * @param time simulation clock
      * @param dt integration time step
-     * @param eventQ the node-local synaptic event queue
+     * @param eventQ the node-local synaptic event wheel, or a pool where events are staged until they can be added
+     *               to it in bulk, so that events from different sources can be calculated concurrently
      */
-    public void addEvents(int noSrc, double time, double dt, PriorityBlockingQueue<int []> eventQ) {
+    public void addEvents(int noSrc, double time, double dt, EventSink eventQ) {
         int start = outDataSOrd.getStartIndex(noSrc);
         int end = outDataSOrd.getEndIndex(noSrc);
         int inc = outDataSOrd.getInc();
-        double [] vals = outDataSOrd.getRawData();
+        InterleavedSparseMatrix vals = outDataSOrd;
+        int [] tars = outDataSOrd.getRawOrdIndices();
+        int wInc = weightsTOrd.getInc();
         try {
             for (int ii = start; ii < end; ii += inc) {
-                int[] evt = new int[6];
-                evt[0] = (int) ((time + vals[ii]) / dt);
-                evt[1] = srcToTargLookup[ii/inc] * weightsTOrd.getInc();
-                evt[2] = Float.floatToIntBits((float) (10 * vals[ii + inc - 1] * vals[ii + inc - 2]));
-                if(Float.intBitsToFloat(evt[2]) > 200) {
+                float udf = (float) (10 * vals.valueAt(ii + inc - 1) * vals.valueAt(ii + inc - 2));
+                if(udf > 200) {
                     throw new IllegalStateException("Unusual UDF Response");
                 }
-                evt[3] = outDataSOrd.getRawOrdIndices()[ii / inc];
-                evt[4] = noSrc;
-                evt[5] = SrcTarPair.hashCodeGen(noSrc, evt[3]);
-                eventQ.add(evt);
+                int tar = tars[ii / inc];
+                eventQ.add((int) ((time + vals.valueAt(ii)) / dt), srcToTargLookup[ii/inc] * wInc,
+                        udf, tar, noSrc, SrcTarPair.hashCodeGen(noSrc, tar));
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -257,77 +472,146 @@ public class MANAMatrix {
      * Processes synaptic events that is, queued spikes which have an arrival time, destination,
      * and which contribute a specific current value. Perform STDP and add the PSP to an array
      * meant to contain the local total incoming currents to each target neuron.
-     * @param eventQ the node-local event queue of calcSpikeResponses events to be processed, events are stored as integer arrays
-     *               {arrivalTime/dt, absolute index,
-     *               post synaptic response (float encoded in int bits), target number}
+     * @param eventQ the node-local event wheel of calcSpikeResponses events to be processed, events are stored
+     *               in struct-of-arrays pools {arrivalTime/dt, absolute index,
+     *               post synaptic response, target number, source number, hash}
      * @param incCur the local incoming total currents to each target neuron
      * @param stdpRule the STDP rule used to perform STDP
      * @param lastSpkTimes the last time each post synaptic cell spiked.
      * @param time current time
      * @param dt simulation delta t
+     * @throws IllegalStateException if an event's synapse doesn't exist. Nothing is marked as drained if processing
+     * fails, rather than silently dropping the rest of the events.
      */
-    public void processEventsSTDP(PriorityBlockingQueue<int[]> eventQ, double[] incCur, STDP stdpRule,
+    public void processEventsSTDP(EventWheel eventQ, double[] incCur, STDP stdpRule,
                                   BufferedDoubleArray lastSpkTimes, double time, double dt) {
-        int [] event = null;
-        try {
-            while (!eventQ.isEmpty() && eventQ.peek()[0] * dt <= time) {
-                event = eventQ.poll();
-                int ind;
-                if(event[event.length-1] == -1) { // invalidated
-                    ind = weightsTOrd.find(event[3], event[4]);
-                } else {
-                    ind = event[1];
-                }
-                if(ind==-1) {
-                    System.out.println("Apparently there's no synapse?");
-                }
-                incCur[event[3]] += weightsTOrd.getRawData()[ind]
-                        * Float.intBitsToFloat(event[2]);
-                stdpRule.preTriggered(weightsTOrd, event, lastSpkTimes, dt);
-                // TODO: Fix the event thing to make it not dependent on increment in wts mat, so that callers can apply their own offsets without having to know wts
-                tOrdLastArrivals.setValue(ind/2, time, 0);
+        int step = (int) (time / dt);
+        int start = eventQ.getDrainStart(step);
+        resolveInvalidated(eventQ, start, step);
+        if (sortEvents) {
+            EventPool evts = sortArrivals(eventQ, start, step);
+            stdpRule.preTriggeredBatch(weightsTOrd, evts, incCur, lastSpkTimes, dt);
+            setLastArrivals(evts, time);
+        } else {
+            for (int s = start; s <= step; ++s) {
+                EventPool evts = eventQ.getSlot(s);
+                // Currents and pre-triggered STDP for the whole slot in one call
+                stdpRule.preTriggeredBatch(weightsTOrd, evts, incCur, lastSpkTimes, dt);
+                setLastArrivals(evts, time);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
+        eventQ.drainedThrough(step);
     }
 
     /**
-     * Processes synapse events i.e. looks in the event queue for all events that arrive (or should have arrived)
+     * Processes synapse events i.e. looks in the event wheel for all events that arrive (or should have arrived)
      * at this time (given the time of the last pre-synaptic spike and the delay of the synapse)
-     * and removed them from the event queue. Each event is then processed: meaning that the
-     * appropriate amount of current (the current from the event is stored in the queue) is deposited
+     * and removed them from the event wheel. Each event is then processed: meaning that the
+     * appropriate amount of current (the current from the event is stored in the wheel) is deposited
      * on the appropriate target neuron.
      *
-     * @param eventQ the node local queue containing all synaptic events.
+     * @param eventQ the node local wheel containing all synaptic events.
      * @param incCur the incoming currents to each of the neurons (local to a node) where each synapse's contribution is stored
      * @param time current simulation clock
      * @param dt integration time step
+     * @throws IllegalStateException if an event's synapse doesn't exist
      */
-    public void processEvents(PriorityBlockingQueue<int[]> eventQ, double[] incCur, double time, double dt) {
-        int [] event = null;
-        try {
-            while (!eventQ.isEmpty() && eventQ.peek()[0] * dt <= time) {
-                event = eventQ.poll();
-                incCur[event[3]] += weightsTOrd.getRawData()[event[1]]
-                        * Float.intBitsToFloat(event[2]);
-                // TODO: Fix the event thing to make it not dependent on increment in wts mat, so that callers can apply their own offsets without having to know wts
-                tOrdLastArrivals.setValue(event[1]/2, time, 0);
+    public void processEvents(EventWheel eventQ, double[] incCur, double time, double dt) {
+        int step = (int) (time / dt);
+        int start = eventQ.getDrainStart(step);
+        resolveInvalidated(eventQ, start, step);
+        double [] wts = weightsTOrd.getRawData();
+        if (sortEvents) {
+            EventPool evts = sortArrivals(eventQ, start, step);
+            // Events onto the same target are now adjacent, so their currents are summed before being added
+            int tar = -1;
+            double cur = 0;
+            for (int jj = 0, n = evts.size(); jj < n; ++jj) {
+                if (evts.tar[jj] != tar) {
+                    if (tar >= 0) {
+                        incCur[tar] += cur;
+                    }
+                    tar = evts.tar[jj];
+                    cur = 0;
+                }
+                cur += wts[evts.tOrdInd[jj]] * evts.udf[jj];
+            }
+            if (tar >= 0) {
+                incCur[tar] += cur;
+            }
+            setLastArrivals(evts, time);
+        } else {
+            for (int s = start; s <= step; ++s) {
+                EventPool evts = eventQ.getSlot(s);
+                for (int jj = 0, n = evts.size(); jj < n; ++jj) {
+                    incCur[evts.tar[jj]] += wts[evts.tOrdInd[jj]] * evts.udf[jj];
+                }
+                setLastArrivals(evts, time);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
+        eventQ.drainedThrough(step);
+    }
+
+    /**
+     * Looks up the synapses of invalidated events in the slots [start, step] of the wheel, i.e. sets their tOrdInd to
+     * the absolute (interleaved) index of their weight, as {@link #addEvents} does. The slots are cleared once drained,
+     * so this is safe.
+     * @throws IllegalStateException if an event's synapse doesn't exist
+     */
+    private void resolveInvalidated(EventWheel eventQ, int start, int step) {
+        for (int s = start; s <= step; ++s) {
+            EventPool evts = eventQ.getSlot(s);
+            for (int jj = 0, n = evts.size(); jj < n; ++jj) {
+                if (evts.hash[jj] == -1) {
+                    int pos = weightsTOrd.find(evts.tar[jj], evts.src[jj]);
+                    if (pos < 0) {
+                        throw new IllegalStateException("An event arrived for a synapse from "
+                                + evts.src[jj] + " to " + evts.tar[jj] + " which does not exist.");
+                    }
+                    evts.tOrdInd[jj] = pos * weightsTOrd.getInc();
+                }
+            }
+        }
+    }
+
+    private void setLastArrivals(EventPool evts, double time) {
+        for (int jj = 0, n = evts.size(); jj < n; ++jj) {
+            // TODO: Fix the event thing to make it not dependent on increment in wts mat, so that callers can apply their own offsets without having to know wts
+            tOrdLastArrivals.setValue(evts.tOrdInd[jj] / 2, time, 0);
+        }
+    }
+
+    /**
+     * Gathers the events in the slots [start, step] of the wheel (in slot order) and sorts them by target ordered
+     * index, see {@link #sortEvents}.
+     * @return a scratch pool holding the sorted events, valid until the next call
+     */
+    private EventPool sortArrivals(EventWheel eventQ, int start, int step) {
+        if (sortedArrivals == null) {
+            arrivals = new EventPool();
+            sortedArrivals = new EventPool();
+        }
+        EventPool evts = eventQ.getSlot(start);
+        if (start < step) {
+            arrivals.clear();
+            for (int s = start; s <= step; ++s) {
+                arrivals.addAll(eventQ.getSlot(s), 0, eventQ.getSlot(s).size());
+            }
+            evts = arrivals;
+        }
+        sortedArrivals.sortFrom(evts);
+        return sortedArrivals;
     }
 
     public void inDegrees(final int[] inD) {
         for(int ii=0; ii<noTar; ++ii) {
-            inD[ii] += weightsTOrd.getRawPtrs()[ii+1] - weightsTOrd.getRawPtrs()[ii];
+            inD[ii] += weightsTOrd.getDegree(ii);
         }
     }
 
     public void outDegrees(final int[] oD) {
-        for(int ii=0; ii<weightsTOrd.getNnz(); ++ii) {
-            oD[weightsTOrd.getRawOrdIndices()[ii]]++;
+        for(int ii=0; ii<noSrc; ++ii) {
+            oD[ii] += outDataSOrd.getDegree(ii);
         }
     }
 
@@ -355,11 +639,23 @@ public class MANAMatrix {
         weightsTOrd.addDw2W();
     }
 
+    /**
+     * Adds dws to ws only for synapses onto targets [start, end).
+     */
+    public void updateWeights(int start, int end) {
+        weightsTOrd.addDw2W(start, end);
+    }
+
     public double[] calcAndGetSums(double[] localWtSums) {
         weightsTOrd.sumIncoming(localWtSums, 0);
         return localWtSums;
     }
 
+    public double[] calcAndGetSums(double[] localWtSums, int start, int end) {
+        weightsTOrd.sumIncoming(localWtSums, 0, start, end);
+        return localWtSums;
+    }
+
     public double getMaxWeight() {
         return weightsTOrd.getMax(0);
     }
@@ -372,10 +668,49 @@ public class MANAMatrix {
         return weightsTOrd;
     }
 
+    public InterleavedSparseMatrix getOutDataSOrd() {
+        return outDataSOrd;
+    }
+
     public InterleavedSparseAddOn gettOrdLastArrivals() {
         return tOrdLastArrivals;
     }
 
+    /**
+     * Writes every synapse (both orderings, the lookups between them and last arrival times), including slack.
+     */
+    public void writeState(StateOutput out) throws IOException {
+        out.writeInt(outDataSOrd.precision.ordinal());
+        out.writeInt(nnz);
+        weightsTOrd.writeState(out);
+        tOrdLastArrivals.writeState(out);
+        outDataSOrd.writeState(out);
+        out.writeInts(srcToTargLookup);
+        out.writeInts(targToSrcLookup);
+    }
+
+    /**
+     * Replaces every synapse with those written by {@link #writeState(StateOutput)} from a matrix with the same source
+     * and target sizes. Source ordered values are switched to the precision they were written at, but stay on or off
+     * heap as they are now.
+     */
+    public void readState(StateInput in) throws IOException {
+        Precision prec = Precision.values()[in.readInt()];
+        if (prec != outDataSOrd.precision) {
+            setSrcDataStorage(prec, outDataSOrd.isOffHeap(), srcDataSpillDir);
+        }
+        nnz = in.readInt();
+        weightsTOrd.readState(in);
+        if (weightsTOrd.getNoMajor() != noTar || weightsTOrd.getNoMinor() != noSrc) {
+            throw new IllegalStateException("Checkpointed synapses connect groups of a different size.");
+        }
+        tOrdLastArrivals.readState(in);
+        outDataSOrd.readState(in);
+        srcToTargLookup = in.readInts();
+        targToSrcLookup = in.readInts();
+        noToRemove = 0;
+    }
+
     public static void main(String [] args) {
         int numN = 10;
         MANANeurons src = new MANANeurons(numN, true,
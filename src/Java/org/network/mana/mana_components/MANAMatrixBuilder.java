@@ -0,0 +1,159 @@
+package Java.org.network.mana.mana_components;
+
+import Java.org.network.mana.base_components.neurons.Neuron;
+import Java.org.network.mana.base_components.synapses.ConnectSpecs;
+import Java.org.network.mana.base_components.synapses.ShortTermPlasticity;
+import Java.org.network.mana.enums.ConnectRule;
+import Java.org.network.mana.enums.SynapseType;
+import Java.org.network.mana.globals.Default_Parameters;
+import Java.org.network.mana.utils.Utils;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
+
+/**
+ * Generates the initial synapses between two groups of neurons directly into compressed primitive arrays. Each
+ * source's outgoing synapses are decided independently, so blocks of sources are generated in parallel, each
+ * producing its (already sorted) row of targets. The rows are then packed into source ordered (CSR) arrays and
+ * transposed into target ordered (CSC) arrays with a counting sort, which also yields the source to target lookup.
+ * Nothing is allocated per synapse and nothing is sorted by comparison.
+ *
+ * All randomness comes from ThreadLocalRandom, so results are statistically, but not exactly, reproducible.
+ */
+public class MANAMatrixBuilder {
+
+    /** Number of source rows generated by each parallel task. */
+    public static int ROWS_PER_TASK = 64;
+
+    public final Neuron src;
+    public final MANANeurons tar;
+    public final SynapseType type;
+    public final int noSrc;
+    public final int noTar;
+
+    /** Where each source's synapses begin in the source ordered arrays, size noSrc+1. */
+    public int [] srcPtrs;
+    /** Target of each synapse, source ordered. */
+    public int [] srcOrdTars;
+    /** { delay, lastArr, U, D, F, u, R } for each synapse, source ordered. */
+    public double [] srcOrdVals;
+    /** Where each target's synapses begin in the target ordered arrays, size noTar+1. */
+    public int [] tarPtrs;
+    /** Source of each synapse, target ordered. */
+    public int [] tarOrdSrcs;
+    /** { w, dw } for each synapse, target ordered. */
+    public double [] tarOrdVals;
+    /** The target ordered position of each source ordered synapse. */
+    public int [] srcToTargLookup;
+
+    private final double maxDist;
+    private final double maxDly;
+    private final ConnectSpecs cSpecs;
+
+    public MANAMatrixBuilder(Neuron src, MANANeurons tar, double maxDist, double maxDly, ConnectSpecs cSpecs) {
+        this.src = src;
+        this.tar = tar;
+        this.maxDist = maxDist;
+        this.maxDly = maxDly;
+        this.cSpecs = cSpecs;
+        noSrc = src.getSize();
+        noTar = tar.N;
+        type = SynapseType.getSynType(src.isExcitatory(), tar.isExcitatory());
+    }
+
+    /**
+     * Generates the connections and fills in all the arrays.
+     * @return this
+     */
+    public MANAMatrixBuilder build() {
+        final double [][] srcXYZ = src.getCoordinates(false);
+        final double [][] tarXYZ = tar.getCoordinates(false);
+
+        // Decide every source's targets (and their weights) in parallel
+        final int [][] rowTars = new int[noSrc][];
+        final double [][] rowWts = new double[noSrc][];
+        int noTasks = (noSrc + ROWS_PER_TASK - 1) / ROWS_PER_TASK;
+        IntStream.range(0, noTasks).parallel().forEach(task -> {
+            int [] scratch = new int[noTar];
+            for (int ii = task * ROWS_PER_TASK, n = Math.min(noSrc, ii + ROWS_PER_TASK); ii < n; ++ii) {
+                int deg = 0;
+                for (int jj = 0; jj < noTar; ++jj) {
+                    if ((src != tar || ii != jj) && connects(srcXYZ[ii], tarXYZ[jj])) {
+                        scratch[deg++] = jj;
+                    }
+                }
+                rowTars[ii] = Arrays.copyOf(scratch, deg);
+                rowWts[ii] = new double[deg];
+                for (int kk = 0; kk < deg; ++kk) {
+                    rowWts[ii][kk] = cSpecs.getNewWt();
+                }
+            }
+        });
+
+        // Pack the rows into source ordered arrays
+        srcPtrs = new int[noSrc + 1];
+        for (int ii = 0; ii < noSrc; ++ii) {
+            srcPtrs[ii + 1] = srcPtrs[ii] + rowTars[ii].length;
+        }
+        final int nnz = srcPtrs[noSrc];
+        srcOrdTars = new int[nnz];
+        srcOrdVals = new double[nnz * 7];
+        IntStream.range(0, noTasks).parallel().forEach(task -> {
+            for (int ii = task * ROWS_PER_TASK, n = Math.min(noSrc, ii + ROWS_PER_TASK); ii < n; ++ii) {
+                System.arraycopy(rowTars[ii], 0, srcOrdTars, srcPtrs[ii], rowTars[ii].length);
+                for (int kk = srcPtrs[ii]; kk < srcPtrs[ii + 1]; ++kk) {
+                    // Outbound values... delay, lastArr, U, D, F, u, R
+                    ShortTermPlasticity.setSourceDefaults(srcOrdVals, 7 * kk, type);
+                    srcOrdVals[7 * kk] = Default_Parameters.dt * (int) (maxDly
+                            * Utils.euclidean(srcXYZ[ii], tarXYZ[srcOrdTars[kk]])
+                            / (maxDist * Default_Parameters.dt));
+                }
+            }
+        });
+
+        // Transpose by counting sort on the targets; visiting sources in order keeps each target's sources sorted
+        tarPtrs = new int[noTar + 1];
+        for (int kk = 0; kk < nnz; ++kk) {
+            tarPtrs[srcOrdTars[kk] + 1]++;
+        }
+        for (int jj = 0; jj < noTar; ++jj) {
+            tarPtrs[jj + 1] += tarPtrs[jj];
+        }
+        int [] fill = Arrays.copyOf(tarPtrs, noTar);
+        tarOrdSrcs = new int[nnz];
+        tarOrdVals = new double[nnz * 2];
+        srcToTargLookup = new int[nnz];
+        for (int ii = 0; ii < noSrc; ++ii) {
+            double [] wts = rowWts[ii];
+            for (int kk = srcPtrs[ii], ll = 0; kk < srcPtrs[ii + 1]; ++kk, ++ll) {
+                int pos = fill[srcOrdTars[kk]]++;
+                tarOrdSrcs[pos] = ii;
+                tarOrdVals[2 * pos] = wts[ll]; // w, dw
+                srcToTargLookup[kk] = pos;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Decides whether to connect a single pair of neurons according to the connection rule.
+     */
+    private boolean connects(double[] srcXYZ, double[] tarXYZ) {
+        ThreadLocalRandom rand = ThreadLocalRandom.current();
+        if (cSpecs.rule == ConnectRule.Random) {
+            // TODO: This isn't how this is used... do something _NOT_ dumb with prob dists...
+            return rand.nextDouble() < cSpecs.parms[0];
+        } else if (cSpecs.rule == ConnectRule.Distance) {
+            double distSq = Utils.euclideanSq(srcXYZ, tarXYZ);
+            double cProb = cSpecs.parms[0] * Math.exp(-(distSq/(cSpecs.parms[1] * cSpecs.parms[1])));
+            return rand.nextDouble() < cProb;
+        } else if (cSpecs.rule == ConnectRule.Distance2) {
+            int loc = src.isExcitatory() ? (tar.isExcitatory() ? 0 : 1) : (tar.isExcitatory() ? 2 : 3);
+            return Utils.euclidean(srcXYZ, tarXYZ) <= cSpecs.parms[loc]
+                    && rand.nextDouble() <= cSpecs.parms[cSpecs.parms.length-1];
+        }
+        return true;
+    }
+
+}
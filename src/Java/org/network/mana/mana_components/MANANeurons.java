@@ -4,13 +4,31 @@ import Java.org.network.mana.base_components.neurons.LeakyIFwAdapt;
 import Java.org.network.mana.base_components.neurons.Neuron;
 import Java.org.network.mana.globals.Default_Parameters;
 import Java.org.network.mana.functions.MHPFunctions;
+import Java.org.network.mana.io.StateInput;
+import Java.org.network.mana.io.StateOutput;
 import Java.org.network.mana.utils.*;
 
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.SplittableRandom;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
 
 public class MANANeurons implements Neuron {
 
+	/**
+	 * If true the stages of {@link #performFullUpdate} are applied to blocks of {@link #FUSED_BLOCK} neurons at a time
+	 * rather than each stage being applied to every neuron in turn.
+	 */
+	public static boolean fusedUpdateOn = false;
+	/**
+	 * If true (and fused updates are on) every fused update is checked against the reference update, which is
+	 * very slow.
+	 */
+	public static boolean verifyFusedUpdate = false;
+	/** Number of neurons per block in fused updates, chosen so that a block's state fits in L1. */
+	public static int FUSED_BLOCK = 128;
+
 	public final int id;
 
 
@@ -127,79 +145,191 @@ public class MANANeurons implements Neuron {
 		// Check whose incoming synaptic currents have exceeded their norm values and
 		// turn on normalization for them
 		updateTriggers(secExcSums, secInhSums);
-		update(dt, time, spkBuffer);
-		updateEstFR(dt);
-		homeostaticPlasticity(neus, estFR, prefFR, lambda, dt);
-		descaleNormVals();
-		calcScaleFacs();
-		if (mhpOn && !(allExcSNon && allInhSNon) && time > 20000) {
-
-			for(int ii=0; ii<N; ++ii) {
-				if(prefFR[ii] < Default_Parameters.MIN_PFR) {
-					prefFR[ii] = Default_Parameters.MIN_PFR + (1+ThreadLocalRandom.current().nextGaussian() * 0.1);
-				}
-				if(prefFR[ii] > Default_Parameters.MAX_PFR) {
-					prefFR[ii] = Default_Parameters.MAX_PFR;
-				}
+		if (!fusedUpdateOn) {
+			updateAll(spkBuffer, pfrDts, time, dt, ThreadLocalRandom.current(), N);
+		} else if (!verifyFusedUpdate) {
+			updateAll(spkBuffer, pfrDts, time, dt, ThreadLocalRandom.current(), FUSED_BLOCK);
+		} else {
+			verifiedFusedUpdate(spkBuffer, pfrDts, time, dt);
+		}
+		lambda += dt * (Default_Parameters.final_tau_HP-lambda) * Default_Parameters.hp_decay;
+		eta += dt  * (Default_Parameters.final_tau_MHP-eta) * Default_Parameters.mhp_decay;
+	}
 
-				if(excSNon.get(ii) && inhSNon.get(ii)) {
-					prefFR[ii] += (dt* Default_Parameters.final_tau_MHP/(double)(inDegree[ii]+1))
-							* pfrDts[ii] * ((1+ThreadLocalRandom.current().nextGaussian()) * noiseVar);
-				} else {
-					prefFR[ii] += (dt*eta/(double)(inDegree[ii]+1)) * pfrDts[ii]
-							* ((1+ThreadLocalRandom.current().nextGaussian()) * noiseVar);
-				}
+	/**
+	 * Performs every stage of the update (aside from triggers and the global parameter decays) on blocks of
+	 * blockSize neurons at a time. With a block size of N this is just each stage in turn over all the neurons.
+	 * Every stage only touches the state of the neurons in the block it is given, and random numbers are drawn in the
+	 * same order regardless of block size, so the result does not depend on the block size. Blocks small enough
+	 * to fit in L1 mean the state of each neuron is brought in from memory once per step instead of once per stage.
+	 */
+	private void updateAll(BoolArray spkBuffer, double[] pfrDts, final double time, final double dt,
+						   RandomGenerator rng, int blockSize) {
+		boolean mhpActive = mhpOn && !(allExcSNon && allInhSNon) && time > 20000;
+		neus.prepareUpdate(rng);
+		boolean thNaN = false;
+		for (int start = 0; start < N; start += blockSize) {
+			int end = Math.min(N, start + blockSize);
+			update(dt, time, spkBuffer, start, end);
+			updateEstFR(dt, start, end);
+			if (!thNaN) {
+				thNaN = homeostaticPlasticity(neus, estFR, prefFR, lambda, dt, start, end);
 			}
+			descaleNormVals(start, end);
+			calcScaleFacs(start, end);
+			if (mhpActive) {
+				mhp(pfrDts, dt, rng, start, end);
 //			if(isExcitatory()) {
-			MHPFunctions.calcfTerm(prefFR, fVals, Default_Parameters.default_alpha, Default_Parameters.default_beta, Default_Parameters.default_lowFR);
+				MHPFunctions.calcfTerm(prefFR, fVals, Default_Parameters.default_alpha, Default_Parameters.default_beta,
+						Default_Parameters.default_lowFR, start, end);
 //			} else {
 //				MHPFunctions.calcfTerm(prefFR, fVals, default_alpha, default_beta, 2);
 //			}
-		} else {
-			for(int ii=0; ii<N; ++ii) {
-				prefFR[ii] = estFR.getData(ii);
+			} else {
+				for(int ii=start; ii<end; ++ii) {
+					prefFR[ii] = estFR.getData(ii);
+				}
+			}
+			calcNewNorms(start, end);
+			scaleNormVals(start, end);
+		}
+	}
+
+	/**
+	 * Runs the reference (unblocked) update and the fused update from the same state with the same random numbers
+	 * and throws an exception if they do not produce bit-identical results. Requires the scalar neuron update, since
+	 * the vector kernel's noise can't be replayed.
+	 */
+	private void verifiedFusedUpdate(BoolArray spkBuffer, double[] pfrDts, final double time, final double dt) {
+		if (LeakyIFwAdapt.useVectorKernel) {
+			throw new IllegalStateException("Fused update verification cannot be done with the vector kernel.");
+		}
+		long seed = ThreadLocalRandom.current().nextLong();
+		UpdateState init = new UpdateState(spkBuffer);
+		updateAll(spkBuffer, pfrDts, time, dt, new SplittableRandom(seed), N);
+		UpdateState ref = new UpdateState(spkBuffer);
+		init.restore(spkBuffer);
+		updateAll(spkBuffer, pfrDts, time, dt, new SplittableRandom(seed), FUSED_BLOCK);
+		if (!ref.matches(spkBuffer)) {
+			throw new IllegalStateException("Fused neuron update does not match the reference update at time " + time);
+		}
+	}
+
+	/**
+	 * A copy of every piece of state the per-step update writes to.
+	 */
+	private final class UpdateState {
+		final double [] v_m = neus.v_m.clone();
+		final double [] dv_m = neus.dv_m.clone();
+		final double [] thresh = neus.thresh.clone();
+		final double [] i_e = neus.i_e.clone();
+		final double [] i_i = neus.i_i.clone();
+		final double [] adapt = neus.adapt.clone();
+		final BufferedDoubleArray lastSpkTime = new BufferedDoubleArray(neus.lastSpkTime);
+		final BoolArray spks;
+		final double [] ef_ = ef.clone();
+		final double [] dummy_ = dummy.clone();
+		final BufferedFloatArray estFR_ = new BufferedFloatArray(estFR);
+		final double [] prefFR_ = prefFR.clone();
+		final double [] exc_sf_ = exc_sf.clone();
+		final double [] inh_sf_ = inh_sf.clone();
+		final double [] normValsExc_ = normValsExc.clone();
+		final double [] normValsInh_ = normValsInh.clone();
+		final long [] fVals_ = fVals.clone();
+
+		UpdateState(BoolArray spkBuffer) {
+			spks = new BoolArray(spkBuffer);
+		}
+
+		void restore(BoolArray spkBuffer) {
+			System.arraycopy(v_m, 0, neus.v_m, 0, N);
+			System.arraycopy(dv_m, 0, neus.dv_m, 0, N);
+			System.arraycopy(thresh, 0, neus.thresh, 0, N);
+			System.arraycopy(i_e, 0, neus.i_e, 0, N);
+			System.arraycopy(i_i, 0, neus.i_i, 0, N);
+			System.arraycopy(adapt, 0, neus.adapt, 0, N);
+			neus.lastSpkTime.copyFrom(lastSpkTime);
+			spkBuffer.copyInto(spks);
+			System.arraycopy(ef_, 0, ef, 0, N);
+			System.arraycopy(dummy_, 0, dummy, 0, N);
+			estFR.copyFrom(estFR_);
+			System.arraycopy(prefFR_, 0, prefFR, 0, N);
+			System.arraycopy(exc_sf_, 0, exc_sf, 0, N);
+			System.arraycopy(inh_sf_, 0, inh_sf, 0, N);
+			System.arraycopy(normValsExc_, 0, normValsExc, 0, N);
+			System.arraycopy(normValsInh_, 0, normValsInh, 0, N);
+			System.arraycopy(fVals_, 0, fVals, 0, N);
+		}
+
+		boolean matches(BoolArray spkBuffer) {
+			return Arrays.equals(v_m, neus.v_m) && Arrays.equals(dv_m, neus.dv_m)
+					&& Arrays.equals(thresh, neus.thresh) && Arrays.equals(i_e, neus.i_e)
+					&& Arrays.equals(i_i, neus.i_i) && Arrays.equals(adapt, neus.adapt)
+					&& lastSpkTime.contentEquals(neus.lastSpkTime) && spks.contentEquals(spkBuffer)
+					&& Arrays.equals(ef_, ef) && Arrays.equals(dummy_, dummy)
+					&& estFR_.contentEquals(estFR) && Arrays.equals(prefFR_, prefFR)
+					&& Arrays.equals(exc_sf_, exc_sf) && Arrays.equals(inh_sf_, inh_sf)
+					&& Arrays.equals(normValsExc_, normValsExc) && Arrays.equals(normValsInh_, normValsInh)
+					&& Arrays.equals(fVals_, fVals);
+		}
+	}
+
+	/**
+	 * Updates the preferred firing rates of neurons [start, end) according to meta homeostatic plasticity.
+	 */
+	private void mhp(double[] pfrDts, double dt, RandomGenerator rng, int start, int end) {
+		for(int ii=start; ii<end; ++ii) {
+			if(prefFR[ii] < Default_Parameters.MIN_PFR) {
+				prefFR[ii] = Default_Parameters.MIN_PFR + (1+rng.nextGaussian() * 0.1);
+			}
+			if(prefFR[ii] > Default_Parameters.MAX_PFR) {
+				prefFR[ii] = Default_Parameters.MAX_PFR;
+			}
+
+			if(excSNon.get(ii) && inhSNon.get(ii)) {
+				prefFR[ii] += (dt* Default_Parameters.final_tau_MHP/(double)(inDegree[ii]+1))
+						* pfrDts[ii] * ((1+rng.nextGaussian()) * noiseVar);
+			} else {
+				prefFR[ii] += (dt*eta/(double)(inDegree[ii]+1)) * pfrDts[ii]
+						* ((1+rng.nextGaussian()) * noiseVar);
 			}
 		}
-		calcNewNorms();
-		scaleNormVals();
-		lambda += dt * (Default_Parameters.final_tau_HP-lambda) * Default_Parameters.hp_decay;
-		eta += dt  * (Default_Parameters.final_tau_MHP-eta) * Default_Parameters.mhp_decay;
 	}
 
 	/**
 	 * For triggered normVals, de scales them so that the new scaling can be applied.
 	 */
-	private void descaleNormVals() {
+	private void descaleNormVals(int start, int end) {
 		if(!allExcSNon) {
-			for (int ii = 0; ii < N; ++ii) {
+			for (int ii = start; ii < end; ++ii) {
 				if (excSNon.get(ii)) {
 					normValsExc[ii] /= exc_sf[ii];
 				}
 			}
 		} else  {
-			for (int ii = 0; ii < N; ++ii) {
+			for (int ii = start; ii < end; ++ii) {
 				normValsExc[ii] /= exc_sf[ii];
 			}
 		}
 		if(!allInhSNon) {
-			for (int ii = 0; ii < N; ++ii) {
+			for (int ii = start; ii < end; ++ii) {
 				if (inhSNon.get(ii)) {
 					normValsInh[ii] /= inh_sf[ii];
 				}
 			}
 		} else {
-			for (int ii = 0; ii < N; ++ii) {
+			for (int ii = start; ii < end; ++ii) {
 				normValsInh[ii] /= inh_sf[ii];
 			}
 		}
 
 	}
 
-	private void scaleNormVals() {
-		for(int ii=0; ii<N; ++ii){
+	private void scaleNormVals(int start, int end) {
+		for(int ii=start; ii<end; ++ii){
 			normValsInh[ii] *= inh_sf[ii];
 		}
-		for(int ii=0; ii<N; ++ii){
+		for(int ii=start; ii<end; ++ii){
 			normValsExc[ii] *= exc_sf[ii];
 		}
 
@@ -244,10 +374,10 @@ public class MANANeurons implements Neuron {
 	 * Calculates new normalization values based on pref. firing rate for all non-triggered neurons for
 	 * both types...
 	 */
-	private void calcNewNorms() {
+	private void calcNewNorms(int start, int end) {
 
 		if(!allExcSNon) {
-			for(int ii=0; ii<N; ++ii) {
+			for(int ii=start; ii<end; ++ii) {
 				if(!excSNon.get(ii)) {
 					normValsExc[ii] = newNormVal(ii);
 				}
@@ -255,7 +385,7 @@ public class MANANeurons implements Neuron {
 		}
 
 		if(!allInhSNon) {
-			for(int ii=0; ii<N; ++ii) {
+			for(int ii=start; ii<end; ++ii) {
 				if(!inhSNon.get(ii)) {
 					normValsInh[ii] = newNormVal(ii);
 				}
@@ -288,12 +418,21 @@ public class MANANeurons implements Neuron {
 	 */
 	@Override
 	public void update(double dt, double time, BoolArray spkBuffer) {
+		neus.prepareUpdate(ThreadLocalRandom.current());
+		update(dt, time, spkBuffer, 0, N);
+	}
+
+	/**
+	 * Updates neurons [start, end), the neurons must have had {@link LeakyIFwAdapt#prepareUpdate} called on them
+	 * already this step.
+	 */
+	private void update(double dt, double time, BoolArray spkBuffer, int start, int end) {
 
 		// Update I&F values
-		neus.update(dt, time, spkBuffer);
+		neus.updateRange(dt, time, spkBuffer, start, end);
 
 		// Record firing rate estimates
-		for(int ii=0; ii<N; ++ii) {
+		for(int ii=start; ii<end; ++ii) {
 			if(spkBuffer.get(ii)) {
 				ef[ii] += 1;
 			}
@@ -307,7 +446,11 @@ public class MANANeurons implements Neuron {
 	 * @param dt
 	 */
 	public void updateEstFR(double dt) {
-		for(int ii=0; ii<N; ++ii) {
+		updateEstFR(dt, 0, N);
+	}
+
+	public void updateEstFR(double dt, int start, int end) {
+		for(int ii=start; ii<end; ++ii) {
 			double tauA = 10000 / Math.sqrt(prefFR[ii]);
 			ef[ii] -= dt * ef[ii]/tauA;
 			if (Double.isNaN(ef[ii])) {
@@ -324,7 +467,16 @@ public class MANANeurons implements Neuron {
 	 * @param dt
 	 */
 	public static void homeostaticPlasticity(LeakyIFwAdapt neus, BufferedFloatArray estFR, double [] prefFR, double lambda, double dt) {
-		for(int ii=0; ii<neus.getSize(); ++ii) {
+		homeostaticPlasticity(neus, estFR, prefFR, lambda, dt, 0, neus.getSize());
+	}
+
+	/**
+	 * Homeostatic plasticity for neurons [start, end).
+	 * @return true if a NaN threshold was encountered, in which case no further thresholds should be updated.
+	 */
+	public static boolean homeostaticPlasticity(LeakyIFwAdapt neus, BufferedFloatArray estFR, double [] prefFR,
+											 double lambda, double dt, int start, int end) {
+		for(int ii=start; ii<end; ++ii) {
 //			double estISI = 1/(estFR.getData(ii)+0.001) - ref_p/1000.0;
 //			double estTerm = Math.exp(estISI/tau_m.get(ii));
 //			double e_l_hat = v_reset.get(ii) - thresh[ii]*estTerm;
@@ -344,13 +496,18 @@ public class MANANeurons implements Neuron {
 			neus.thresh[ii] += dt * lambda * Math.log((estFR.getData(ii)+0.0001)/(prefFR[ii]+0.0001));
 			if (Double.isNaN(neus.thresh[ii])) {
 				System.out.println("NaN th");
-				break;
+				return true;
 			}
 		}
+		return false;
 	}
 
 	public void calcScaleFacs() {
-		for(int ii=0; ii<N; ++ii) {
+		calcScaleFacs(0, N);
+	}
+
+	public void calcScaleFacs(int start, int end) {
+		for(int ii=start; ii<end; ++ii) {
 			double rat = exc_sf[ii]/inh_sf[ii];
 			rat += Default_Parameters.dt*lambda * Math.log(prefFR[ii]/estFR.getData(ii));
 			rat /= rat+1;
@@ -463,6 +620,16 @@ public class MANANeurons implements Neuron {
 		return neus.spks;
 	}
 
+	@Override
+	public int[] getSpikeIndices() {
+		return neus.getSpikeIndices();
+	}
+
+	@Override
+	public int getSpikeCount() {
+		return neus.getSpikeCount();
+	}
+
 	@Override
 	public int getSize() {
 		return N;
@@ -507,4 +674,76 @@ public class MANANeurons implements Neuron {
 		return neus.getOutDegree();
 	}
 
+	/**
+	 * Writes the homeostatic and meta-homeostatic state of the neurons followed by the state of the underlying
+	 * {@link LeakyIFwAdapt} neurons.
+	 */
+	public void writeState(StateOutput out) throws IOException {
+		out.writeInt(N);
+		out.writeBoolean(mhpOn);
+		out.writeBoolean(allExcSNon);
+		out.writeBoolean(allInhSNon);
+		out.writeDouble(lambda);
+		out.writeDouble(eta);
+		out.writeDouble(noiseVar);
+		out.writeDouble(sat_a);
+		out.writeDouble(sat_b);
+		alpha.writeState(out);
+		beta.writeState(out);
+		lowFRBound.writeState(out);
+		estFR.writeState(out);
+		out.writeDoubles(ef);
+		out.writeDoubles(prefFR);
+		out.writeDoubles(threshRA);
+		out.writeDoubles(normValsExc);
+		out.writeDoubles(normValsInh);
+		out.writeDoubles(exc_sf);
+		out.writeDoubles(inh_sf);
+		out.writeDoubles(sat_c);
+		out.writeInts(inDegree);
+		out.writeInts(excInDegree);
+		out.writeInts(inhInDegree);
+		out.writeLongs(fVals);
+		excSNon.writeState(out);
+		inhSNon.writeState(out);
+		neus.writeState(out);
+	}
+
+	/**
+	 * Restores what was written by {@link #writeState(StateOutput)} for the same number of neurons. Arrays are
+	 * filled in place since nodes hold on to some of them.
+	 */
+	public void readState(StateInput in) throws IOException {
+		if (in.readInt() != N) {
+			throw new IllegalStateException("Checkpointed neuron group has a different size.");
+		}
+		mhpOn = in.readBoolean();
+		allExcSNon = in.readBoolean();
+		allInhSNon = in.readBoolean();
+		lambda = in.readDouble();
+		eta = in.readDouble();
+		noiseVar = in.readDouble();
+		sat_a = in.readDouble();
+		sat_b = in.readDouble();
+		alpha.readState(in);
+		beta.readState(in);
+		lowFRBound.readState(in);
+		estFR.readState(in);
+		in.readDoublesInto(ef);
+		in.readDoublesInto(prefFR);
+		in.readDoublesInto(threshRA);
+		in.readDoublesInto(normValsExc);
+		in.readDoublesInto(normValsInh);
+		in.readDoublesInto(exc_sf);
+		in.readDoublesInto(inh_sf);
+		in.readDoublesInto(sat_c);
+		in.readIntsInto(inDegree);
+		in.readIntsInto(excInDegree);
+		in.readIntsInto(inhInDegree);
+		in.readLongsInto(fVals);
+		excSNon.readState(in);
+		inhSNon.readState(in);
+		neus.readState(in);
+	}
+
 }
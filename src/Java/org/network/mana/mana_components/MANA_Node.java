@@ -5,17 +5,22 @@ import Java.org.network.mana.base_components.neurons.Neuron;
 import Java.org.network.mana.base_components.sparse.InterleavedSparseAddOn;
 import Java.org.network.mana.base_components.sparse.InterleavedSparseMatrix;
 import Java.org.network.mana.base_components.synapses.ConnectSpecs;
+import Java.org.network.mana.base_components.synapses.EventPool;
+import Java.org.network.mana.base_components.synapses.EventWheel;
 import Java.org.network.mana.base_components.synapses.STDP;
 import Java.org.network.mana.enums.ConnectRule;
 import Java.org.network.mana.enums.SynapseType;
 import Java.org.network.mana.exec.Updatable;
+import Java.org.network.mana.globals.Default_Parameters;
 import Java.org.network.mana.functions.MHPFunctions;
 import Java.org.network.mana.functions.StructuralPlasticity;
+import Java.org.network.mana.io.StateInput;
+import Java.org.network.mana.io.StateOutput;
 import Java.org.network.mana.utils.BoolArray;
 import Java.org.network.mana.utils.Utils;
 
-import java.util.Iterator;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -128,25 +133,31 @@ public class MANA_Node implements Updatable {
 
     /**
      * All spikes produced by inputs are transformed into all the data necessary for the target to do whatever
-     * operations it needs to. That data is stored here, which ensures that spike events to be received by targets
-     * are sorted by arrival time and then target neuron index (no sense in jumping all over the place).
-     */
-    private PriorityBlockingQueue<int[]> evtQueue = new PriorityBlockingQueue<>(5000,
-            (int[] a, int[] b) -> { // Sort by arrival time then absolute target index
-                if(a[0] < b[0]) {
-                    return -1;
-                } else if(a[0] == b[0]) {
-                    if(a[1] < b[1]) {
-                        return -1;
-                    } else if(a[1] > b[1]) {
-                        return 1;
-                    } else {
-                        return 0;
-                    }
-                } else {
-                    return 1;
-                }
-            });
+     * operations it needs to. That data is stored here, binned by arrival time step so that scheduling
+     * and retrieving an event is O(1). Only ever touched by the thread updating this node.
+     */
+    private final EventWheel evtQueue = new EventWheel(Default_Parameters.MAX_DELAY, Default_Parameters.dt);
+
+    private static final double SPK_EMA_ALPHA = 0.05;
+
+    /** Running average of the number of source neurons spiking per step, for load estimates. */
+    private double srcSpkEMA = 0;
+
+    /**
+     * Whether the synapses onto idle targets are skipped. See {@link #setIdleSkipOn(boolean)}.
+     */
+    private boolean idleSkipOn = false;
+
+    /**
+     * Number of steps for which the addition of dws to the weights onto each target has been deferred. See
+     * {@link #setIdleSkipOn(boolean)}.
+     */
+    private final int [] pendingDwSteps;
+    /** Whether any entry of pendingDwSteps may be non-zero. */
+    private boolean dwsPending = false;
+
+    /** Pools for events scheduled by concurrent subtasks before they are added to the event wheel. */
+    private EventPool [] stagingPools = new EventPool[0];
 
     /**
      * Builds a mana node connecting a source and target neuron set.
@@ -205,6 +216,7 @@ public class MANA_Node implements Updatable {
         inputIsExternal = srcData instanceof InputNeurons;
         locCurrents = new double[width];
         localSums = new double[width];
+        pendingDwSteps = new int[width];
     }
 
 
@@ -219,6 +231,32 @@ public class MANA_Node implements Updatable {
      * @param dt
      */
     @Override public void update(final double time, final double dt) {
+        startUpdate();
+
+        // Schedule the events along synapses of neurons that have spiked (in source order)
+        int [] spkInds = srcData.getSpikeIndices();
+        for (int kk = 0, n = srcData.getSpikeCount(); kk < n; ++kk) {
+            synMatrix.calcSpikeResponses(spkInds[kk], time);
+            synMatrix.addEvents(spkInds[kk], time, dt, evtQueue);
+        }
+
+        normalize(0, width);
+        processArrivingEvents(time, dt);
+        updateTargets(0, width, time, dt);
+        finishUpdate(time, dt);
+    }
+
+    /*
+     * The update is broken up into the stages below so that they can also be executed as independent subtasks
+     * (see MANA_Executor's fork/join mode). Stages which take a range operate only on the source neurons
+     * (scheduleSpikes) or target neurons (everything else) in that range and can be run concurrently on disjoint
+     * ranges. The order of the stages must be the same as in update(...).
+     */
+
+    /**
+     * Must be called first at the beginning of every update.
+     */
+    public void startUpdate() {
         if(!updated.compareAndSet(false, true)) {
             throw new IllegalStateException("Multiple threads trying to update the same node");
         }
@@ -227,57 +265,141 @@ public class MANA_Node implements Updatable {
             throw  new IllegalStateException("Node updates cannot be performed until initialization has been done on parent sector.");
         }
 
-        // Check for pre-synaptic spikes, schedule the events along synapses of neurons that have,
-        for (int ii = 0; ii < height; ++ii) {
-            if (srcData.getSpikes().get(ii)) {
-                synMatrix.calcSpikeResponses(ii, time);
-                synMatrix.addEvents(ii, time, dt, evtQueue);
-            }
+        if (normalizationOn) {
+            flushDeferredWeights(); // weights are scaled and summed every step, which can't be deferred
         }
+    }
 
-        if (synPlasticityOn) {
+    /**
+     * Sets whether the weight updates of targets which are idle on a step are skipped, i.e. targets which no event
+     * arrives at and which get no post-triggered STDP. Such a step would only add each dw to its w, so the addition
+     * is deferred and replayed for the target's synapses (see {@link #catchUp(int)}) just before an event or STDP
+     * reads their weights or changes their dws, or when the weights are read from outside the node. A step costs
+     * O(1) per idle target rather than O(in-degree), and replays stop early for synapses with a dw of 0 or once
+     * adding dw no longer changes w. The additions are replayed one at a time in the order they would have been
+     * made, so the weights are identical to those with skipping off. Normalization scales and sums every weight on
+     * every step, so nothing is deferred while it is on; the skip saves work while it is off, e.g. after plasticity
+     * has been shut off. Neurons are never skipped as their update includes noise.
+     */
+    public void setIdleSkipOn(boolean idleSkipOn) {
+        flushDeferredWeights();
+        this.idleSkipOn = idleSkipOn;
+    }
+
+    public boolean isIdleSkipOn() {
+        return idleSkipOn;
+    }
+
+    /**
+     * Applies the deferred dw additions to the weights onto target tar.
+     */
+    private void catchUp(int tar) {
+        if (pendingDwSteps[tar] > 0) {
+            synMatrix.getWeightsTOrd().addDw2WRepeated(tar, pendingDwSteps[tar]);
+            pendingDwSteps[tar] = 0;
+        }
+    }
+
+    /**
+     * Applies every deferred dw addition, so that the weights can be read or changed directly.
+     */
+    public void flushDeferredWeights() {
+        if (!dwsPending) {
+            return;
+        }
+        for (int ii = 0; ii < width; ++ii) {
+            catchUp(ii);
+        }
+        dwsPending = false;
+    }
+
+    /**
+     * Calculates the responses of all synapses from spiking sources in [start, end) and stages the resulting
+     * synaptic events in the given pool. Staged events must then be added to this node's event wheel
+     * with {@link #mergeStagedEvents(EventPool)} (in source order) before events are processed.
+     */
+    public void scheduleSpikes(int start, int end, double time, double dt, EventPool staging) {
+        int [] spkInds = srcData.getSpikeIndices();
+        for (int kk = firstIndexFrom(spkInds, srcData.getSpikeCount(), start), n = srcData.getSpikeCount();
+             kk < n && spkInds[kk] < end; ++kk) {
+            synMatrix.calcSpikeResponses(spkInds[kk], time);
+            synMatrix.addEvents(spkInds[kk], time, dt, staging);
+        }
+    }
+
+    /**
+     * @return the position of the first of the (ascending) spike indices which is at least start.
+     */
+    private static int firstIndexFrom(int[] spkInds, int n, int start) {
+        if (start == 0) {
+            return 0;
+        }
+        int pos = Arrays.binarySearch(spkInds, 0, n, start);
+        return pos >= 0 ? pos : -pos - 1;
+    }
+
+    public void mergeStagedEvents(EventPool staging) {
+        evtQueue.addAll(staging);
+        staging.clear();
+    }
+
+    /**
+     * Synaptic normalization & scaling of the incoming weights of targets in [start, end).
+     */
+    public void normalize(int start, int end) {
+        if (synPlasticityOn && normalizationOn) {
             double [] sectorSums = parent_sector.getSectorSums(srcData.isExcitatory());
-            // Synaptic normalization & scaling
-            if (normalizationOn) {
-                if (!targData.getAllNrmOn(srcData.isExcitatory())) {
-                    for (int ii = 0; ii < width; ++ii) {
-                        if (normFlags.get(ii)) {
-                            synMatrix.scaleWeights(ii, normVals[ii] / sectorSums[ii]);
-                        }
-                    }
-                } else {
-                    for (int ii = 0; ii < width; ++ii) {
+            if (!targData.getAllNrmOn(srcData.isExcitatory())) {
+                for (int ii = start; ii < end; ++ii) {
+                    if (normFlags.get(ii)) {
                         synMatrix.scaleWeights(ii, normVals[ii] / sectorSums[ii]);
                     }
                 }
+            } else {
+                for (int ii = start; ii < end; ++ii) {
+                    synMatrix.scaleWeights(ii, normVals[ii] / sectorSums[ii]);
+                }
             }
+        }
+    }
 
+    /**
+     * Processes all events which arrive this time step. Can't be split, since events
+     * to the same target are accumulated in order.
+     */
+    public void processArrivingEvents(double time, double dt) {
+        if (dwsPending) {
+            int step = (int) (time / dt);
+            for (int s = evtQueue.getDrainStart(step); s <= step; ++s) {
+                EventPool evts = evtQueue.getSlot(s);
+                for (int jj = 0, n = evts.size(); jj < n; ++jj) {
+                    catchUp(evts.tar[jj]);
+                }
+            }
+        }
+        if (synPlasticityOn) {
             // Calculate new dws for synapses tied to arriving events, add their currents to the correct target
             synMatrix.processEventsSTDP(evtQueue, locCurrents, stdpRule,
                     targData.getLastSpkTimes(), time, dt);
-
-            // Check for post-synaptic spikes and adjust synapses incoming to them accordingly.
-            for (int ii = 0; ii < width; ++ii) {
-                if (targData.getSpikes().get(ii)) {
-                    stdpRule.postTriggered(synMatrix.getWeightsTOrd(),
-                            synMatrix.gettOrdLastArrivals(), ii, time, dt);
-                }
-            }
         } else {
             synMatrix.processEvents(evtQueue, locCurrents, time, dt);
         }
+    }
 
-        // Add dws to ws--update synaptic weights
-        synMatrix.updateWeights();
-
-        if (normalizationOn) {
-            synMatrix.calcAndGetSums(localSums);
+    /**
+     * Post-triggered STDP, weight updates, local weight sums and MHP contributions for targets in [start, end).
+     */
+    public void updateTargets(int start, int end, double time, double dt) {
+        if (idleSkipOn && !normalizationOn) {
+            updateTargetsSkippingIdle(start, end, time, dt);
+        } else {
+            updateWeights(start, end, time, dt);
         }
 
         if (!inputIsExternal && targData.mhpOn
                 && !(targData.allInhSNon && targData.allExcSNon)) { //&& (srcData.isExcitatory()==targData.isExcitatory())) {
             //    if((int)(time/dt) % (int)(1/dt) == 0) {
-            for (int ii = 0; ii < width; ++ii) {
+            for (int ii = start; ii < end; ++ii) {
                 if(!(targData.excSNon.get(ii) && targData.inhSNon.get(ii)) ) {
                     if (!(targData.excSNon.get(ii) && targData.inhSNon.get(ii))) {
                         MHPFunctions.mhpStage1(targData.estFR, targData.prefFR, ((MANANeurons) srcData).estFR, ii,
@@ -289,14 +411,93 @@ public class MANA_Node implements Updatable {
                 //      }
             }
         }
+    }
+
+    private void updateWeights(int start, int end, double time, double dt) {
+        // Add dws to ws--update synaptic weights. Synapses incoming to post-synaptic neurons which spiked are adjusted
+        // (post-triggered STDP) and updated in the same pass, the rest in runs between them.
+        if (synPlasticityOn) {
+            int [] spkInds = targData.getSpikeIndices();
+            int n = targData.getSpikeCount();
+            int from = firstIndexFrom(spkInds, n, start);
+            int to = from;
+            while (to < n && spkInds[to] < end) {
+                ++to;
+            }
+            stdpRule.postTriggeredBatch(synMatrix.getWeightsTOrd(), synMatrix.gettOrdLastArrivals(), spkInds,
+                    from, to, start, end, time, dt);
+        } else {
+            synMatrix.updateWeights(start, end);
+        }
+
+        if (normalizationOn) {
+            synMatrix.calcAndGetSums(localSums, start, end);
+        }
+    }
+
+    /**
+     * Same as {@link #updateWeights(int, int, double, double)} without normalization, but only for the targets which
+     * spiked; the dw addition of the rest is deferred, see {@link #setIdleSkipOn(boolean)}.
+     */
+    private void updateTargetsSkippingIdle(int start, int end, double time, double dt) {
+        int [] spkInds = targData.getSpikeIndices();
+        int n = synPlasticityOn ? targData.getSpikeCount() : 0;
+        int kk = firstIndexFrom(spkInds, n, start);
+        for (int ii = start; ii < end; ++ii) {
+            if (kk < n && spkInds[kk] == ii) {
+                catchUp(ii);
+                stdpRule.postTriggeredAndAdd(synMatrix.getWeightsTOrd(), synMatrix.gettOrdLastArrivals(), ii, time, dt);
+                ++kk;
+            } else {
+                pendingDwSteps[ii]++;
+            }
+        }
+        dwsPending = true;
+    }
+
+    /**
+     * @return at least noPools (empty) pools in which events from different ranges of sources can be staged.
+     */
+    public EventPool[] getStagingPools(int noPools) {
+        if (stagingPools.length < noPools) {
+            EventPool [] pools = Arrays.copyOf(stagingPools, noPools);
+            for (int ii = stagingPools.length; ii < noPools; ++ii) {
+                pools[ii] = new EventPool();
+            }
+            stagingPools = pools;
+        }
+        return stagingPools;
+    }
 
+    /**
+     * Must be called last, once all other stages of the update are complete.
+     */
+    public void finishUpdate(double time, double dt) {
         // Last thread working on a node in the sector has to update the sector...
         if (parent_sector.countDown.decrementAndGet() == 0) {
             parent_sector.update(time, dt);
         } else if (parent_sector.countDown.get() < 0) {
             throw new IllegalStateException("Sector countdown can never be less than 0.");
         }
+    }
 
+    /**
+     * Counts the source neurons which spiked on the last step and folds that into a running average.
+     * @return the number of spiking sources
+     */
+    public int countSourceSpikes() {
+        int cnt = srcData.getSpikeCount();
+        srcSpkEMA += (cnt - srcSpkEMA) * SPK_EMA_ALPHA;
+        return cnt;
+    }
+
+    /**
+     * A rough estimate of how much work an update of this node is: every synapse has its dw added every step, and
+     * each spiking source schedules events along all of its synapses.
+     */
+    public double estimateCost() {
+        int nnz = getNNZ();
+        return width + nnz + srcSpkEMA * ((double) nnz / height);
     }
 
     /**
@@ -309,6 +510,7 @@ public class MANA_Node implements Updatable {
      * @param time - simulation time
      */
     public void structuralPlasticity(int maxInD, int maxOutD, double lambda, double maxDist, double time) {
+        flushDeferredWeights();
         double max = StructuralPlasticity.pruneTechnique == StructuralPlasticity.SPTechnique.GLOBAL_MAX ?
         parent_sector.parent.getMaxofType(time, srcData.isExcitatory(), targData.isExcitatory(), inputIsExternal): 0; // TODO: Lol at this convoluted nonsense
         synMatrix = StructuralPlasticity.pruneGrow(this, srcData, targData, maxOutD, maxInD,
@@ -321,18 +523,11 @@ public class MANA_Node implements Updatable {
     }
 
     public void removeEvent(int hashCode) {
-        Iterator<int[]> iter = evtQueue.iterator();
-        while(iter.hasNext()) {
-            if (iter.next()[5] == hashCode) {
-                iter.remove();
-            }
-        }
+        evtQueue.remove(hashCode);
     }
 
     private void invalidatEvents() {
-        for(int [] evt : evtQueue) {
-            evt[evt.length-1] = -1;
-        }
+        evtQueue.invalidate();
     }
 
 
@@ -343,6 +538,7 @@ public class MANA_Node implements Updatable {
     }
 
     public void randomizeWeights(Utils.ProbDistType pdist, double[] params) {
+        flushDeferredWeights();
         synMatrix.getWeightsTOrd().randomize(pdist, params, 0);
     }
 
@@ -380,14 +576,17 @@ public class MANA_Node implements Updatable {
     }
 
     public double[] calcLocalSums() {
+        flushDeferredWeights();
         return synMatrix.calcAndGetSums(localSums);
     }
 
     public double[] calcAndGetWtSums(double [] ret) {
+        flushDeferredWeights();
         return synMatrix.calcAndGetSums(ret);
     }
 
     public double[] calcAndAccumWtSums(double [] ret) {
+        flushDeferredWeights();
         synMatrix.calcAndGetSums(localSums);
         for(int ii=0; ii<width; ++ii) {
             ret[ii] += localSums[ii];
@@ -399,15 +598,21 @@ public class MANA_Node implements Updatable {
         return synMatrix.getWeightsTOrd().getNnz();
     }
 
+    /**
+     * @return the weights, with every deferred change applied
+     */
     public InterleavedSparseMatrix getWeightMatrix() {
+        flushDeferredWeights();
         return synMatrix.getWeightsTOrd();
     }
 
     public void getWeightValues(double[] vals, int absShift) {
+        flushDeferredWeights();
         synMatrix.getWeightsTOrd().getValues(vals, absShift, 0);
     }
 
     public MANAMatrix getSynMatrix() {
+        flushDeferredWeights();
         return  synMatrix;
     }
 
@@ -415,5 +620,47 @@ public class MANA_Node implements Updatable {
         return updated.get();
     }
 
+    /**
+     * Writes the synapses, pending events and everything else this node accumulates between updates. Must only be
+     * called between time steps.
+     */
+    public void writeState(StateOutput out) throws IOException {
+        out.writeInt(height);
+        out.writeInt(width);
+        out.writeBoolean(synPlasticityOn);
+        out.writeBoolean(normalizationOn);
+        out.writeBoolean(idleSkipOn);
+        out.writeBoolean(structureChanged);
+        out.writeBoolean(dwsPending);
+        out.writeDouble(srcSpkEMA);
+        synMatrix.writeState(out);
+        pfrLoc.writeState(out);
+        out.writeDoubles(localSums);
+        out.writeInts(pendingDwSteps);
+        out.writeDoubles(locCurrents);
+        evtQueue.writeState(out);
+    }
+
+    /**
+     * Restores what was written by {@link #writeState(StateOutput)} for a node connecting groups of the same sizes.
+     */
+    public void readState(StateInput in) throws IOException {
+        if (in.readInt() != height || in.readInt() != width) {
+            throw new IllegalStateException("Checkpointed node connects groups of a different size.");
+        }
+        synPlasticityOn = in.readBoolean();
+        normalizationOn = in.readBoolean();
+        idleSkipOn = in.readBoolean();
+        structureChanged = in.readBoolean();
+        dwsPending = in.readBoolean();
+        srcSpkEMA = in.readDouble();
+        synMatrix.readState(in);
+        pfrLoc.readState(in);
+        in.readDoublesInto(localSums);
+        in.readIntsInto(pendingDwSteps);
+        in.readDoublesInto(locCurrents);
+        evtQueue.readState(in);
+    }
+
 }
 
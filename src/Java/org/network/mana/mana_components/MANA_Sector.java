@@ -7,9 +7,12 @@ import Java.org.network.mana.base_components.synapses.STDP;
 import Java.org.network.mana.exec.Syncable;
 import Java.org.network.mana.exec.Updatable;
 import Java.org.network.mana.globals.Default_Parameters;
+import Java.org.network.mana.io.StateInput;
+import Java.org.network.mana.io.StateOutput;
 import Java.org.network.mana.utils.BoolArray;
 import Java.org.network.mana.utils.Utils;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.TreeMap;
@@ -82,7 +85,7 @@ public class MANA_Sector implements Syncable, Updatable {
         secInhSums = new double[target.N];
         snExcOn = new BoolArray(target.N);
         snInhOn = new BoolArray(target.N);
-        spkBuffer = new BoolArray(target.N);
+        spkBuffer = new BoolArray(target.N, true);
         pfrAccum = new double[target.N];
         spkDat = new SpikeTimeData(target.N);
         id = "s"+target.id;
@@ -231,10 +234,12 @@ public class MANA_Sector implements Syncable, Updatable {
         if (!initialized) {
             throw new IllegalStateException("Sector synchronization cannot be performed until initialization has been done.");
         }
-        target.getSpikes().copyInto(spkBuffer);
+        // The buffers become the current values by swapping rather than copying. Every estimated firing rate is
+        // written each step, but last spike times only for the neurons which just spiked.
+        target.getSpikes().swapWith(spkBuffer);
         spkBuffer.clear();
-        target.estFR.pushBufferDeep();
-        target.getLastSpkTimes().pushBufferDeep();
+        target.estFR.pushBufferShallow();
+        target.getLastSpkTimes().pushBuffer(target.getSpikes().getTrueIndices(), target.getSpikes().getNoTrue());
         spkDat.pushSpks(target.getSpks()); // record spiking data
 
         if (!countDown.compareAndSet(0, childNodes.size())) {
@@ -336,4 +341,57 @@ public class MANA_Sector implements Syncable, Updatable {
         return exc ? secExcSums : secInhSums;
     }
 
+    /**
+     * Writes the state of the sector's target neurons, the sector itself and then each of its nodes in order. Must
+     * only be called between time steps.
+     */
+    public void writeState(StateOutput out) throws IOException {
+        out.writeInt(childNodes.size());
+        target.writeState(out);
+        out.writeBoolean(initialized);
+        out.writeBoolean(synPlasticityOn);
+        out.writeDoubles(secExcSums);
+        out.writeDoubles(secInhSums);
+        out.writeDoubles(pfrAccum);
+        snExcOn.writeState(out);
+        snInhOn.writeState(out);
+        spkBuffer.writeState(out);
+        spkDat.writeState(out);
+        out.writeDouble(lastExcTime2);
+        out.writeDouble(lastInhTime2);
+        out.writeDoubles(excThetas);
+        out.writeDoubles(inhThetas);
+        for (MANA_Node node : childNodes.values()) {
+            node.writeState(out);
+        }
+    }
+
+    /**
+     * Restores what was written by {@link #writeState(StateOutput)} into a sector with the same number of target
+     * neurons and nodes, each connecting groups of the same size.
+     */
+    public void readState(StateInput in) throws IOException {
+        if (in.readInt() != childNodes.size()) {
+            throw new IllegalStateException("Checkpointed sector has a different number of nodes.");
+        }
+        target.readState(in);
+        initialized = in.readBoolean();
+        synPlasticityOn = in.readBoolean();
+        in.readDoublesInto(secExcSums);
+        in.readDoublesInto(secInhSums);
+        in.readDoublesInto(pfrAccum);
+        snExcOn.readState(in);
+        snInhOn.readState(in);
+        spkBuffer.readState(in);
+        spkDat.readState(in);
+        lastExcTime2 = in.readDouble();
+        lastInhTime2 = in.readDouble();
+        excThetas = in.readDoubles();
+        inhThetas = in.readDoubles();
+        for (MANA_Node node : childNodes.values()) {
+            node.readState(in);
+        }
+        countDown.set(childNodes.size());
+    }
+
 }
@@ -1,17 +1,24 @@
 package Java.org.network.mana.mana_components;
 
+import Java.org.network.mana.base_components.SpikeTimeData;
 import Java.org.network.mana.base_components.neurons.InputNeurons;
 import Java.org.network.mana.base_components.neurons.Neuron;
 import Java.org.network.mana.base_components.sparse.WeightData;
 import Java.org.network.mana.base_components.synapses.ConnectSpecs;
 import Java.org.network.mana.enums.ConnectRule;
 import Java.org.network.mana.globals.Default_Parameters;
+import Java.org.network.mana.io.StateInput;
+import Java.org.network.mana.io.StateOutput;
+import Java.org.network.mana.utils.SpatialGrid;
 import Java.org.network.mana.utils.Utils;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *
@@ -59,7 +66,6 @@ public class MANA_Unit {
 
 	private int fullSize, size, numExc, numAllExc, numInh, noSecs, nodesPerSec, noInp;
 
-	private List<ArrayList<Double>> allSpikes = new ArrayList<>();
 
 	public double [][] xyzCoors;
 
@@ -84,6 +90,9 @@ public class MANA_Unit {
 
 	public InputNeurons externalInp;
 
+	/** Spatial indices over the coordinates of each group of neurons, built as structural plasticity asks for them. */
+	private final Map<Neuron, SpatialGrid> spatialIndices = new ConcurrentHashMap<>();
+
 	/**
 	 * Creates an independent "MANA Unit" comprised of an experimenter-driven,
 	 * dynamic-less input layer attached to a recurrent reservoir. The properties
@@ -119,10 +128,6 @@ public class MANA_Unit {
 		int numExcSecs = (int) Math.ceil(unit.numExc/nodeDim);
 		int [] excSecSizes = new int[] {unit.numExc/numExcSecs,  unit.numInh%numExcSecs};
 
-		for(int ii=0; ii<unit.fullSize; ++ii) {
-			unit.allSpikes.add(new ArrayList<>());
-		}
-
 		unit.noSecs = numExcSecs + numInhSecs;
 		unit.nodesPerSec = unit.noSecs+1; // input
 
@@ -255,6 +260,19 @@ public class MANA_Unit {
 		return Math.sqrt(Math.pow(xf-x0, 2)+Math.pow(yf-y0, 2)+Math.pow(zf-z0, 2));
 	}
 
+	/**
+	 * Returns a spatial index over the coordinates of a group of neurons in this unit. Neurons don't move, so the
+	 * index is built the first time it is asked for (with the given cell size) and shared after that; it is
+	 * only rebuilt if a different cell size is asked for.
+	 * @param neu
+	 * @param cellSize
+	 * @return
+	 */
+	public SpatialGrid getSpatialIndex(Neuron neu, double cellSize) {
+		return spatialIndices.compute(neu, (n, grid) -> grid != null && grid.cellSize == cellSize
+				? grid : new SpatialGrid(n.getCoordinates(false), cellSize));
+	}
+
 	public void setMhpOn(boolean mhpOn) {
 		this.mhpOn = mhpOn;
 		for(MANA_Sector sec : sectors.values()) {
@@ -276,6 +294,27 @@ public class MANA_Unit {
 		}
 	}
 
+	/**
+	 * Sets whether nodes defer the weight updates of targets which are idle on a step, see
+	 * {@link MANA_Node#setIdleSkipOn(boolean)}.
+	 * @param idleSkipOn
+	 */
+	public void setIdleSkipOn(boolean idleSkipOn) {
+		for(MANA_Node node : nodes) {
+			node.setIdleSkipOn(idleSkipOn);
+		}
+	}
+
+	/**
+	 * Applies all weight changes deferred by idle skipping. Must be called before nodes read
+	 * each other's weights, e.g. before structural plasticity.
+	 */
+	public void flushDeferredWeights() {
+		for(MANA_Node node : nodes) {
+			node.flushDeferredWeights();
+		}
+	}
+
 	private volatile double maxExc = 0;
 	private volatile double maxExcInh = 0;
 
@@ -355,6 +394,62 @@ public class MANA_Unit {
 
 
 
+	/**
+	 * Writes the state of the unit: its inputs' replay state followed by every sector (and so every node) in order.
+	 * See {@link Java.org.network.mana.io.Checkpoint}. Must only be called between time steps.
+	 */
+	public void writeState(StateOutput out) throws IOException {
+		out.writeInt(fullSize);
+		out.writeInt(size);
+		out.writeInt(sectors.size());
+		out.writeBoolean(synPlasticOn);
+		out.writeBoolean(mhpOn);
+		for (double d : new double[]{maxExc, maxExcInh, maxInh, maxInhExc, lastExcTime, lastExcInhTime,
+				lastInhTime, lastInhExcTime, maxInp, lastInpTime}) {
+			out.writeDouble(d);
+		}
+		for (Neuron inp : inputs) {
+			if (inp instanceof InputNeurons) {
+				((InputNeurons) inp).writeState(out);
+			}
+		}
+		for (MANA_Sector sec : sectors.values()) {
+			sec.writeState(out);
+		}
+	}
+
+	/**
+	 * Restores the state written by {@link #writeState(StateOutput)} into a unit of the same size reading the same
+	 * input, e.g. one built by {@link #MANABuilder(String, int)} from the same arguments. Everything that depends on
+	 * the particular network built (neuron locations, synapses...) is overwritten.
+	 */
+	public void readState(StateInput in) throws IOException {
+		if (in.readInt() != fullSize || in.readInt() != size || in.readInt() != sectors.size()) {
+			throw new IllegalStateException("Checkpoint was written by a unit of a different size.");
+		}
+		synPlasticOn = in.readBoolean();
+		mhpOn = in.readBoolean();
+		maxExc = in.readDouble();
+		maxExcInh = in.readDouble();
+		maxInh = in.readDouble();
+		maxInhExc = in.readDouble();
+		lastExcTime = in.readDouble();
+		lastExcInhTime = in.readDouble();
+		lastInhTime = in.readDouble();
+		lastInhExcTime = in.readDouble();
+		maxInp = in.readDouble();
+		lastInpTime = in.readDouble();
+		for (Neuron inp : inputs) {
+			if (inp instanceof InputNeurons) {
+				((InputNeurons) inp).readState(in);
+			}
+		}
+		for (MANA_Sector sec : sectors.values()) {
+			sec.readState(in);
+		}
+		spatialIndices.clear(); // neurons have moved
+	}
+
 	public int getNumAllExc() {
 		return numAllExc;
 	}
@@ -371,8 +466,25 @@ public class MANA_Unit {
 		return fullSize;
 	}
 
-	public List<ArrayList<Double>> getAllSpikes() {
-		return  allSpikes;
+	/**
+	 * Streams the spikes recorded by every sector to a file (see {@link SpikeTimeData#streamTo(Path)}) named
+	 * [prefix]_spikes_[sector id].bin in dir, so that they do not accumulate in memory.
+	 * @param dir
+	 * @param prefix
+	 */
+	public void streamSpikesTo(Path dir, String prefix) throws IOException {
+		for(MANA_Sector sec : sectors.values()) {
+			sec.spkDat.streamTo(dir.resolve(prefix + "_spikes_" + sec.id + ".bin"));
+		}
+	}
+
+	/**
+	 * Writes any spikes not yet written to the sectors' spike files and closes them.
+	 */
+	public void closeSpikeStreams() throws IOException {
+		for(MANA_Sector sec : sectors.values()) {
+			sec.spkDat.close();
+		}
 	}
 
 }
\ No newline at end of file
@@ -1,5 +1,9 @@
 package Java.org.network.mana.utils;
 
+import Java.org.network.mana.io.StateInput;
+import Java.org.network.mana.io.StateOutput;
+
+import java.io.IOException;
 import java.util.Arrays;
 
 //TODO: Refactor this out -- forgot that bitwise storage is a dumb idea w/ concurrency, d'oh
@@ -11,22 +15,51 @@ public class BoolArray {
 
     private final long[] data;
 
-    private final boolean[] dat2;
+    private boolean[] dat2;
+
+    /*
+     * Indexed arrays also keep the indices of their true elements in ascending order, so that sparse arrays
+     * (spikes...) can be iterated and cleared without checking every element. The indices are kept up to date by
+     * whoever produces the values: true elements are set with setTrue(...), in ascending order since the last clear(),
+     * and the bulk operations keep the indices in step. Elements of indexed arrays cannot be set with set(...).
+     * Whether an array is indexed is fixed when it is created.
+     */
+    private final boolean indexed;
+    private int[] trueInds;
+    private int noTrue = 0;
 
     public BoolArray(final int length) {
+        this(length, false);
+    }
+
+    /**
+     * @param length
+     * @param indexed whether to keep the indices of the true elements, see {@link #setTrue(int)}
+     */
+    public BoolArray(final int length, boolean indexed) {
         this.length = length;
+        this.indexed = indexed;
         data = null;//new long[(int) Math.ceil(length/64)+1];
         dat2 = new boolean[length];
+        trueInds = indexed ? new int[length] : null;
     }
 
     public BoolArray(BoolArray toCpy) {
         this.length = toCpy.length;
+        this.indexed = toCpy.indexed;
         dat2 = new boolean[toCpy.length];
         data = null;//new long[(int) Math.ceil(length/64) + 1];
         //System.arraycopy(toCpy.data, 0, data, 0, data.length);
         System.arraycopy(toCpy.dat2, 0, dat2, 0, dat2.length);
+        if (indexed) {
+            trueInds = toCpy.trueInds.clone();
+            noTrue = toCpy.noTrue;
+        }
     }
 
+    /**
+     * @throws IllegalStateException if the array is indexed, see {@link #setTrue(int)}.
+     */
     public void set(int index, boolean value) {
 //        long mask = ONE_MASK << (63 - (index % 64));
 //        if(value) {
@@ -34,9 +67,22 @@ public class BoolArray {
 //        } else {
 //            data[index / 64] &= ~mask;
 //        }
+        if (indexed) {
+            throw new IllegalStateException("Elements of indexed arrays can only be set with setTrue.");
+        }
         dat2[index] = value;
     }
 
+    /**
+     * Sets an element of an indexed array to true and records its index. Elements must be set in ascending order
+     * (and each at most once) between calls to {@link #clear()}, and by one thread at a time.
+     */
+    public void setTrue(int index) {
+        assert indexed && (noTrue == 0 || trueInds[noTrue - 1] < index);
+        dat2[index] = true;
+        trueInds[noTrue++] = index;
+    }
+
     public boolean get(int index) {
 //        return ((data[index/64] >>> (63 - (index % 64))) & ONE_MASK) == 1;
         return dat2[index];
@@ -46,11 +92,90 @@ public class BoolArray {
     {
         System.arraycopy(toCopyIn.dat2, 0, dat2, 0, dat2.length);
         //    System.arraycopy(toCopyIn.data, 0, data, 0, data.length);
+        if (indexed) {
+            reindex();
+        }
+    }
+
+    private void reindex() {
+        int n = 0;
+        for (int ii = 0; ii < length; ++ii) {
+            if (dat2[ii]) {
+                trueInds[n++] = ii;
+            }
+        }
+        noTrue = n;
+    }
+
+    /**
+     * @return the indices of the true elements in ascending order, only the first {@link #getNoTrue()} are valid.
+     * @throws IllegalStateException if the array is not indexed.
+     */
+    public int[] getTrueIndices() {
+        if (!indexed) {
+            throw new IllegalStateException("The indices of the true elements are not kept for this array.");
+        }
+        return trueInds;
+    }
+
+    /**
+     * @return the number of true elements, see {@link #getTrueIndices()}.
+     */
+    public int getNoTrue() {
+        if (!indexed) {
+            throw new IllegalStateException("The indices of the true elements are not kept for this array.");
+        }
+        return noTrue;
+    }
+
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    /**
+     * Makes this array hold what other holds, as {@link #copyInto(BoolArray)} would, and other hold what this held,
+     * by swapping their storage (and true indices) rather than copying it.
+     */
+    public void swapWith(BoolArray other) {
+        if (other.length != length || other.indexed != indexed) {
+            throw new IllegalArgumentException("Cannot swap arrays of different lengths or indexing.");
+        }
+        boolean [] tmpDat = dat2;
+        dat2 = other.dat2;
+        other.dat2 = tmpDat;
+        int [] tmpInds = trueInds;
+        trueInds = other.trueInds;
+        other.trueInds = tmpInds;
+        int tmpNo = noTrue;
+        noTrue = other.noTrue;
+        other.noTrue = tmpNo;
+    }
+
+    public boolean contentEquals(BoolArray other) {
+        return Arrays.equals(dat2, other.dat2);
     }
 
     public void clear() {
         //Arrays.fill(data, 0);
-        Arrays.fill(dat2, false);
+        if (indexed) { // only the true elements need clearing
+            for (int kk = 0; kk < noTrue; ++kk) {
+                dat2[trueInds[kk]] = false;
+            }
+            noTrue = 0;
+        } else {
+            Arrays.fill(dat2, false);
+        }
+    }
+
+    public void writeState(StateOutput out) throws IOException {
+        out.writeBooleans(dat2);
+    }
+
+    public void readState(StateInput in) throws IOException {
+        in.readBooleansInto(dat2);
+        if (indexed) {
+            reindex();
+        }
     }
 
 
@@ -1,52 +1,123 @@
 package Java.org.network.mana.utils;
 
-public class BufferedDoubleArray {
+import Java.org.network.mana.io.StateInput;
+import Java.org.network.mana.io.StateOutput;
 
-    private final double[] dataAndBuff;
+import java.io.IOException;
 
-    public final int length;
+/**
+ * An array of values (data) along with a buffer which the next values are written to while the current ones are
+ * being read. Data and buffer are separate arrays, so that readers of the data only touch the data, and the buffer
+ * is made the data by swapping the two rather than copying it over (see {@link #pushBufferShallow()} and
+ * {@link #pushBuffer(int[], int)}).
+ *
+ * Not thread safe: the buffer is written by the threads updating the owner (on disjoint ranges) and the data read by
+ * anyone in one phase of a time step, and the buffer pushed by one thread in another, the executor's barrier between
+ * the phases making everything written in one visible in the next.
+ */
+public class BufferedDoubleArray {
 
-    private int bufferOffset = 1;
+    private double[] data;
 
-    private int dataOffset = 0;
+    private double[] buffer;
+
+    public final int length;
 
     public BufferedDoubleArray(int length) {
         this.length = length;
-        dataAndBuff = new double[2*length];
+        data = new double[length];
+        buffer = new double[length];
+    }
+
+    public BufferedDoubleArray(BufferedDoubleArray toCpy) {
+        this.length = toCpy.length;
+        data = toCpy.data.clone();
+        buffer = toCpy.buffer.clone();
+    }
+
+    /**
+     * Makes this array's data and buffer the same as other's.
+     */
+    public void copyFrom(BufferedDoubleArray other) {
+        System.arraycopy(other.data, 0, data, 0, length);
+        System.arraycopy(other.buffer, 0, buffer, 0, length);
+    }
+
+    /**
+     * @return true if this and other hold identical data and buffers.
+     */
+    public boolean contentEquals(BufferedDoubleArray other) {
+        for(int ii=0; ii<length; ++ii) {
+            if (Double.doubleToLongBits(getData(ii)) != Double.doubleToLongBits(other.getData(ii))
+                    || Double.doubleToLongBits(getBuffered(ii)) != Double.doubleToLongBits(other.getBuffered(ii))) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public double getBuffered(int index) {
-        return dataAndBuff[bufferIndex(index)];
+        return buffer[index];
     }
 
     public double getData(int index) {
-        return dataAndBuff[dataIndex(index)];
+        return data[index];
+    }
+
+    /**
+     * @return the data itself, for readers which need it as an array (e.g. vector loads). Only valid until the next
+     * push, which may swap it with the buffer.
+     */
+    public double[] getData() {
+        return data;
     }
 
     public void setBuffer(int index, double value) {
-        dataAndBuff[bufferIndex(index)] = value;
+        buffer[index] = value;
     }
 
     public void setData(int index, double value) {
-        dataAndBuff[dataIndex(index)] = value;
+        data[index] = value;
     }
 
-    private int bufferIndex(int ind) {
-        return 2*ind + bufferOffset;
+    /**
+     * Makes the buffer the data and the data the buffer by swapping them, O(1). Values in the buffer which were not
+     * set since the last push are whatever was in the data before the push before that, so this is only the same as
+     * {@link #pushBufferDeep()} if every value was set.
+     */
+    public void pushBufferShallow() {
+        double[] tmp = data;
+        data = buffer;
+        buffer = tmp;
     }
 
-    private int dataIndex(int ind) {
-        return  2*ind + dataOffset;
+    /**
+     * Makes the buffer the data when only the values at the given indices were set since the last push, in time
+     * proportional to their number: the same as {@link #pushBufferDeep()} provided data and buffer were the same
+     * after the last push.
+     * @param inds the indices of the values which were set, only the first n are used
+     */
+    public void pushBuffer(int[] inds, int n) {
+        pushBufferShallow();
+        for(int kk=0; kk<n; ++kk) {
+            buffer[inds[kk]] = data[inds[kk]];
+        }
     }
 
-    public void pushBufferShallow() {
-        dataOffset = -(dataOffset - 1);
-        bufferOffset = -(bufferOffset -1);
+    /**
+     * Copies the buffer into the data.
+     */
+    public void pushBufferDeep() {
+        System.arraycopy(buffer, 0, data, 0, length);
     }
 
-    public void pushBufferDeep() {
-        for(int ii=0; ii<length; ++ii) {
-            dataAndBuff[dataIndex(ii)] = dataAndBuff[bufferIndex(ii)];
-        }
+    public void writeState(StateOutput out) throws IOException {
+        out.writeDoubles(data);
+        out.writeDoubles(buffer);
+    }
+
+    public void readState(StateInput in) throws IOException {
+        in.readDoublesInto(data);
+        in.readDoublesInto(buffer);
     }
 }
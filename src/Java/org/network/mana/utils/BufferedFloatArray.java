@@ -1,58 +1,101 @@
 package Java.org.network.mana.utils;
 
-public class BufferedFloatArray {
+import Java.org.network.mana.io.StateInput;
+import Java.org.network.mana.io.StateOutput;
 
-    private final float[] dataAndBuff;
+import java.io.IOException;
 
-    public final int length;
+/**
+ * The float version of {@link BufferedDoubleArray}, data and a buffer in separate arrays which are swapped to push
+ * the buffer.
+ */
+public class BufferedFloatArray {
 
-    private int bufferOffset = 1;
+    private float[] data;
 
-    private int dataOffset = 0;
+    private float[] buffer;
+
+    public final int length;
 
     public BufferedFloatArray(int length) {
         this.length = length;
-        dataAndBuff = new float[2*length];
+        data = new float[length];
+        buffer = new float[length];
     }
 
-    public float getBuffered(int index) {
-        return dataAndBuff[bufferIndex(index)];
+    public BufferedFloatArray(BufferedFloatArray toCpy) {
+        this.length = toCpy.length;
+        data = toCpy.data.clone();
+        buffer = toCpy.buffer.clone();
     }
 
-    public float getData(int index) {
-        return dataAndBuff[dataIndex(index)];
+    /**
+     * Makes this array's data and buffer the same as other's.
+     */
+    public void copyFrom(BufferedFloatArray other) {
+        System.arraycopy(other.data, 0, data, 0, length);
+        System.arraycopy(other.buffer, 0, buffer, 0, length);
     }
 
-    public void setBuffer(int index, float value) {
-        dataAndBuff[bufferIndex(index)] = value;
+    /**
+     * @return true if this and other hold identical data and buffers.
+     */
+    public boolean contentEquals(BufferedFloatArray other) {
+        for(int ii=0; ii<length; ++ii) {
+            if (Float.floatToIntBits(getData(ii)) != Float.floatToIntBits(other.getData(ii))
+                    || Float.floatToIntBits(getBuffered(ii)) != Float.floatToIntBits(other.getBuffered(ii))) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    public void setData(int index, float value) {
-        dataAndBuff[dataIndex(index)] = value;
+    public float getBuffered(int index) {
+        return buffer[index];
     }
 
-    private int bufferIndex(int ind) {
-        return 2*ind + bufferOffset;
+    public float getData(int index) {
+        return data[index];
+    }
+
+    public void setBuffer(int index, float value) {
+        buffer[index] = value;
     }
 
-    private int dataIndex(int ind) {
-        return  2*ind + dataOffset;
+    public void setData(int index, float value) {
+        data[index] = value;
     }
 
     public void copyTo(final double[] out, int offset) {
         for(int ii=0; ii<length; ++ii) {
-            out[ii+offset] = dataAndBuff[ii*2 + dataOffset];
+            out[ii+offset] = data[ii];
         }
     }
 
+    /**
+     * Makes the buffer the data and the data the buffer by swapping them, O(1). Only the same as
+     * {@link #pushBufferDeep()} if every value in the buffer was set since the last push.
+     */
     public void pushBufferShallow() {
-        dataOffset = -(dataOffset - 1);
-        bufferOffset = -(bufferOffset -1);
+        float[] tmp = data;
+        data = buffer;
+        buffer = tmp;
     }
 
+    /**
+     * Copies the buffer into the data.
+     */
     public void pushBufferDeep() {
-        for(int ii=0; ii<length; ++ii) {
-            dataAndBuff[dataIndex(ii)] = dataAndBuff[bufferIndex(ii)];
-        }
+        System.arraycopy(buffer, 0, data, 0, length);
+    }
+
+    public void writeState(StateOutput out) throws IOException {
+        out.writeFloats(data);
+        out.writeFloats(buffer);
+    }
+
+    public void readState(StateInput in) throws IOException {
+        in.readFloatsInto(data);
+        in.readFloatsInto(buffer);
     }
 }
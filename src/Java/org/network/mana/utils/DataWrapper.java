@@ -1,5 +1,9 @@
 package Java.org.network.mana.utils;
 
+import Java.org.network.mana.io.StateInput;
+import Java.org.network.mana.io.StateOutput;
+
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.concurrent.ThreadLocalRandom;
 
@@ -257,6 +261,28 @@ public final class DataWrapper {
 		}
 	}
 	
+	public void writeState(StateOutput out) throws IOException {
+		out.writeBoolean(compressible);
+		out.writeBoolean(compressed);
+		out.writeDoubles(data);
+	}
+
+	/**
+	 * Restores values written by {@link #writeState(StateOutput)} for a wrapper of the same length, including
+	 * whether or not they are compressed.
+	 */
+	public void readState(StateInput in) throws IOException {
+		boolean cmpible = in.readBoolean();
+		boolean cmped = in.readBoolean();
+		double [] vals = in.readDoubles();
+		if (vals == null || vals.length != (cmped ? 1 : length)) {
+			throw new IllegalStateException("Checkpoint was not written by a network of the same size.");
+		}
+		compressible = cmpible;
+		compressed = cmped;
+		data = vals;
+	}
+
 	public final void decompress() {
 		if(!compressed) {
 			return;
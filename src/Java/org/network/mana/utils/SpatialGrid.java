@@ -0,0 +1,102 @@
+package Java.org.network.mana.utils;
+
+/**
+ * A uniform grid over a fixed set of points in 3D, for finding every point within some radius of a location without
+ * checking all of them. Points are bucketed by cell in a single array (counting sort by cell), so a query only touches
+ * the cells overlapping the query's bounding box. Immutable once built and so safe to share between threads.
+ */
+public class SpatialGrid {
+
+    public final double cellSize;
+
+    private final double [][] xyz;
+    private final double [] min = new double[3];
+    private final int [] dims = new int[3];
+    /** The points in cell c are inds[cellStarts[c]] to inds[cellStarts[c+1]-1]. */
+    private final int [] cellStarts;
+    private final int [] inds;
+
+    /**
+     * @param xyz coordinates of each point, xyz[i] = {x, y, z}
+     * @param cellSize side length of the cells, ideally on the order of typical query radii
+     */
+    public SpatialGrid(double[][] xyz, double cellSize) {
+        if (!(cellSize > 0)) {
+            throw new IllegalArgumentException("Cell size must be positive.");
+        }
+        this.xyz = xyz;
+        this.cellSize = cellSize;
+        double [] max = new double[3];
+        for (int dd = 0; dd < 3; ++dd) {
+            min[dd] = Double.MAX_VALUE;
+            max[dd] = -Double.MAX_VALUE;
+        }
+        for (double [] p : xyz) {
+            for (int dd = 0; dd < 3; ++dd) {
+                min[dd] = Math.min(min[dd], p[dd]);
+                max[dd] = Math.max(max[dd], p[dd]);
+            }
+        }
+        for (int dd = 0; dd < 3; ++dd) {
+            dims[dd] = xyz.length == 0 ? 1 : (int) ((max[dd] - min[dd]) / cellSize) + 1;
+        }
+        int noCells = dims[0] * dims[1] * dims[2];
+        int [] cellOf = new int[xyz.length];
+        cellStarts = new int[noCells + 1];
+        for (int ii = 0; ii < xyz.length; ++ii) {
+            cellOf[ii] = cellIndex(cell(xyz[ii][0], 0), cell(xyz[ii][1], 1), cell(xyz[ii][2], 2));
+            cellStarts[cellOf[ii] + 1]++;
+        }
+        for (int cc = 0; cc < noCells; ++cc) {
+            cellStarts[cc + 1] += cellStarts[cc];
+        }
+        inds = new int[xyz.length];
+        int [] fill = new int[noCells];
+        for (int ii = 0; ii < xyz.length; ++ii) {
+            inds[cellStarts[cellOf[ii]] + fill[cellOf[ii]]++] = ii;
+        }
+    }
+
+    private int cell(double v, int dim) {
+        int c = (int) Math.floor((v - min[dim]) / cellSize);
+        return c < 0 ? 0 : (c >= dims[dim] ? dims[dim] - 1 : c);
+    }
+
+    private int cellIndex(int x, int y, int z) {
+        return (z * dims[1] + y) * dims[0] + x;
+    }
+
+    /**
+     * Finds every point within radius of p.
+     * @param p the location
+     * @param radius maximum (inclusive) distance from p
+     * @param found filled with the indices of the points found, must be able to hold every point
+     * @param distSq filled with the squared distance of each point found from p
+     * @return the number of points found
+     */
+    public int within(double[] p, double radius, int[] found, double[] distSq) {
+        double rSq = radius * radius;
+        int x0 = cell(p[0] - radius, 0), x1 = cell(p[0] + radius, 0);
+        int y0 = cell(p[1] - radius, 1), y1 = cell(p[1] + radius, 1);
+        int z0 = cell(p[2] - radius, 2), z1 = cell(p[2] + radius, 2);
+        int n = 0;
+        for (int zz = z0; zz <= z1; ++zz) {
+            for (int yy = y0; yy <= y1; ++yy) {
+                int row = cellIndex(0, yy, zz);
+                for (int kk = cellStarts[row + x0], end = cellStarts[row + x1 + 1]; kk < end; ++kk) {
+                    double [] q = xyz[inds[kk]];
+                    double dx = q[0] - p[0];
+                    double dy = q[1] - p[1];
+                    double dz = q[2] - p[2];
+                    double d = dx * dx + dy * dy + dz * dz;
+                    if (d <= rSq) {
+                        found[n] = inds[kk];
+                        distSq[n++] = d;
+                    }
+                }
+            }
+        }
+        return n;
+    }
+
+}
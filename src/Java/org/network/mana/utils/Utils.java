@@ -78,6 +78,13 @@ public class Utils {
 		return  euclidean(p1[0], p2[0], p1[1], p2[1], p1[2], p2[2]);
 	}
 
+	public static double euclideanSq(double [] p1, double [] p2) {
+		double xDiff = p2[0]-p1[0];
+		double yDiff = p2[1]-p1[1];
+		double zDiff = p2[2]-p1[2];
+		return xDiff*xDiff + yDiff*yDiff + zDiff*zDiff;
+	}
+
 	public static double euclidean(double[][] srcXYZ, double[][] tarXYZ,
 			final int srcInd, final int tarInd) {
 		return euclidean(srcXYZ[0][srcInd], tarXYZ[0][tarInd],
@@ -168,6 +175,31 @@ public class Utils {
 		return -(d*2-1);
 	}
 
+	/**
+	 * Stable counting sort of the indices [0, n) by their keys.
+	 * @param keys the key of each index, in [0, noKeys)
+	 * @param n number of indices
+	 * @param noKeys number of distinct keys
+	 * @param order the order the indices are in now (ties are kept in this order) or null for ascending
+	 * @return the indices ordered by key
+	 */
+	public static int [] countingSortOrder(int[] keys, int n, int noKeys, int[] order) {
+		int [] starts = new int[noKeys + 1];
+		for(int ii=0; ii<n; ++ii) {
+			starts[keys[ii]+1]++;
+		}
+		for(int ii=0; ii<noKeys; ++ii) {
+			starts[ii+1] += starts[ii];
+		}
+		int [] sorted = new int[n];
+		for(int ii=0; ii<n; ++ii) {
+			int ind = order == null ? ii : order[ii];
+			sorted[starts[keys[ind]]++] = ind;
+		}
+		return sorted;
+	}
+
+	@SuppressWarnings("unchecked") // the first element of each pair is always a T
 	public static <T> int [] getSortKey(List<T> thing, Comparator<T> sorter) {
 		int [] sortKey = new int[thing.size()];
 		List<Object[]> tmp = new ArrayList<>();
@@ -274,7 +306,7 @@ public class Utils {
 	public static double[] intArr2Double(int[] src) {
 		double[] dest = new double[src.length];
 		for(int ii=0, n=src.length; ii<n; ++ii) {
-			dest[ii] = (int) src[ii];
+			dest[ii] = src[ii];
 		}
 		return dest;
 	}
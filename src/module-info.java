@@ -1,5 +1,6 @@
 module org.network.mana {
 	requires java.base;
 	requires jdk.unsupported;
+	requires jdk.incubator.vector;
 	requires matfilerw;
 }
\ No newline at end of file